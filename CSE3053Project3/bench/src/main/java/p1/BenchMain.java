@@ -0,0 +1,27 @@
+package p1;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Runs the JMH suite once per thread count, e.g. java -Dthreads=1,4,8 -jar target/benchmarks.jar SwitchBench
+// Every other argument is a normal JMH option
+public class BenchMain {
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		CommandLineOptions cmd = new CommandLineOptions(args);
+		String[] counts = System.getProperty("threads", "1,4").split(",");
+
+		for(String count : counts) {
+			int threads = Integer.parseInt(count.trim());
+			Options opts = new OptionsBuilder()
+					.parent(cmd)
+					.threads(threads)
+					.build();
+			System.out.println("# ---- " + threads + " thread(s) ----");
+			new Runner(opts).run();
+		}
+	}
+}
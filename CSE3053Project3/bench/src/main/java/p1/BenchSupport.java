@@ -0,0 +1,63 @@
+package p1;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+
+// Shared fixtures, every random input comes from a fixed seed so runs can be compared
+final class BenchSupport {
+	static final long SEED = 3053;
+	static final int IDS = 1024; // power of two so a mask picks the next id
+
+	private BenchSupport() {
+	}
+
+	// Keeps setup and switch messages out of the benchmark output
+	static void quietLogs() {
+		try {
+			Log.configure(Log.Level.OFF, null);
+		} catch(IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static byte[] payload(int size) {
+		byte[] p = new byte[size];
+		new SplittableRandom(SEED).nextBytes(p);
+		return p;
+	}
+
+	// Ids in [from, to) in a fixed random order
+	static int[] ids(int from, int to) {
+		SplittableRandom rnd = new SplittableRandom(SEED);
+		int[] ids = new int[IDS];
+		for(int i = 0; i < IDS; i++) {
+			ids[i] = rnd.nextInt(from, to);
+		}
+		return ids;
+	}
+
+	// Firewall file blocking every other network pair, with node, range and length rules on top at higher priorities
+	static String firewallFile() {
+		StringBuilder sb = new StringBuilder();
+		for(int src = 0; src < 16; src++) {
+			for(int dst = 0; dst < 16; dst++) {
+				sb.append(src).append(' ').append(dst).append(((src + dst) & 1) == 0 ? " allow" : " block").append('\n');
+			}
+		}
+		for(int net = 0; net < 16; net++) {
+			sb.append(net).append("_1-4 * allow prio=1\n");
+			sb.append(net).append("_5 ").append((net + 3) % 16).append("_* block prio=2 len=128-255\n");
+		}
+		sb.append("4-7 8-11 block prio=3 len=1-16\n");
+		try {
+			Path file = Files.createTempFile("bench-firewall", ".txt");
+			Files.writeString(file, sb.toString());
+			file.toFile().deleteOnExit();
+			return file.toString();
+		} catch(IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
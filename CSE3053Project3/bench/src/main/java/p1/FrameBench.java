@@ -0,0 +1,81 @@
+package p1;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Encoding, decoding and checksum cost of one frame
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameBench {
+	@Param({"1", "16", "64", "255"})
+	public int payloadSize;
+
+	@Param({"CRC32C", "SUM8"})
+	public String checksum;
+
+	private byte[] payload;
+	private Frame frame;
+	private byte[] encoded;
+	private Frame decoded;
+	private ByteBuffer heapFrame;
+	private ByteBuffer directFrame;
+
+	@Setup
+	public void setup() {
+		Frame.setChecksum(Frame.Checksum.parse(checksum));
+		payload = BenchSupport.payload(payloadSize);
+		frame = Frame.dataFrame(Address.of(1, 1), Address.of(2, 1), payload, 7);
+		encoded = frame.toBytes();
+		decoded = Frame.fromBytes(encoded);
+		heapFrame = ByteBuffer.wrap(encoded);
+		directFrame = ByteBuffer.allocateDirect(encoded.length);
+		directFrame.put(0, encoded);
+	}
+
+	@Benchmark
+	public Frame dataFrame() {
+		return Frame.dataFrame(Address.of(1, 1), Address.of(2, 1), payload, 7);
+	}
+
+	@Benchmark
+	public byte[] toBytes() {
+		return frame.toBytes();
+	}
+
+	@Benchmark
+	public Frame fromBytes() {
+		return Frame.fromBytes(encoded);
+	}
+
+	@Benchmark
+	public boolean isCrcValid() {
+		return decoded.isCrcValid();
+	}
+
+	// Checks in place like the switches and nodes do, no decode
+	@Benchmark
+	public boolean isCrcValidHeapView() {
+		return Frame.isCrcValid(heapFrame, 0, encoded.length);
+	}
+
+	@Benchmark
+	public boolean isCrcValidDirectView() {
+		return Frame.isCrcValid(directFrame, 0, encoded.length);
+	}
+}
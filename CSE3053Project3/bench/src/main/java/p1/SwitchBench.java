@@ -0,0 +1,115 @@
+package p1;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Per frame decisions of the switches, all threads share one CAS and one CCS like handler threads do
+// Forwarding goes to in-memory ports, each frame is taken back off the egress queue so nothing touches a socket
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SwitchBench {
+	static final int NODES = 15;
+
+	@State(Scope.Benchmark)
+	public static class Switches {
+		@Param({"1", "16", "64", "255"})
+		public int payloadSize;
+
+		CCSSwitch ccs;
+		CASSwitch cas;
+		CASSwitch.ClientHandler[] ports = new CASSwitch.ClientHandler[NODES + 1];
+
+		@Setup(Level.Trial)
+		public void setup() {
+			BenchSupport.quietLogs();
+			ccs = new CCSSwitch(0);
+			ccs.loadFirewallRules(BenchSupport.firewallFile());
+
+			cas = new CASSwitch(0, 1, null, -1);
+			for(int local = 1; local <= NODES; local++) {
+				ports[local] = cas.new ClientHandler();
+				ports[local].setFeatures(Frame.HELLO_ALL); // a current node, so frames go out as they came in
+				cas.table.learn(Address.of(1, local), ports[local]);
+			}
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			for(int local = 1; local <= NODES; local++) {
+				ports[local].egress.close();
+			}
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Cursor {
+		int[] addrs;
+		int[] nodes;
+		FrameView[] frames;
+		int i;
+
+		@Setup(Level.Trial)
+		public void setup(Switches sw) {
+			addrs = BenchSupport.ids(0, 256);
+			for(int k = 0; k < addrs.length; k++) {
+				addrs[k] = Address.fromLegacy(addrs[k]);
+			}
+			nodes = BenchSupport.ids(1, 1 + NODES);
+			byte[] payload = BenchSupport.payload(sw.payloadSize);
+			frames = new FrameView[NODES + 1];
+			for(int local = 1; local <= NODES; local++) {
+				byte[] bytes = Frame.dataFrame(Address.of(1, (local % NODES) + 1), Address.of(1, local), payload).toBytes();
+				frames[local] = FrameView.wrap(ByteBuffer.wrap(bytes), 0, bytes.length);
+			}
+		}
+
+		int next() {
+			i = (i + 1) & (BenchSupport.IDS - 1);
+			return i;
+		}
+	}
+
+	@Benchmark
+	public boolean firewallIsBlocked(Switches sw, Cursor c) {
+		int k = c.next();
+		return sw.ccs.isBlocked(c.addrs[k], c.addrs[(k + 1) & (BenchSupport.IDS - 1)], sw.payloadSize);
+	}
+
+	@Benchmark
+	public Object tableLookup(Switches sw, Cursor c) {
+		return sw.cas.table.lookup(Address.of(1, c.nodes[c.next()]));
+	}
+
+	// Unicast to a learned node, then drain that port like its writer would
+	@Benchmark
+	public boolean forwardLocalFrame(Switches sw, Cursor c) {
+		int local = c.nodes[c.next()];
+		FrameView frame = c.frames[local];
+		CASSwitch.ClientHandler from = sw.ports[(local % NODES) + 1];
+		sw.cas.forwardLocalFrame(frame, from);
+
+		BufferPool.PooledBuffer pb = sw.ports[local].egress.poll();
+		if(pb == null) {
+			return false; // another thread drained it
+		}
+		pb.release();
+		return true;
+	}
+}
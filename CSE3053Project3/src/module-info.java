@@ -5,4 +5,6 @@
  * 
  */
 module CSE3053Project3 {
+	requires java.management;
+	requires jdk.httpserver;
 }
\ No newline at end of file
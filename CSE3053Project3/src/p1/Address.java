@@ -0,0 +1,61 @@
+package p1;
+
+// Node addresses as one int, network in the high 16 bits and local id in the low 16
+// Addresses with network and local id under 16 also fit the original one byte id (network * 16 + local), which is
+// how they go on the wire whenever they can, see Frame.FLAG_EXT_ADDR
+public final class Address {
+	public static final int MAX_NET = 0xFFFF;
+	public static final int MAX_LOCAL = 0xFFFF;
+	// Multicast groups are the addresses of network 0, no node lives there and 0_0 is Frame.CONTROL_ADDR
+	public static final int GROUP_NET = 0;
+	public static final int MAX_GROUP = 0xFFFF;
+
+	private Address() {
+	}
+
+	public static int of(int net, int local) {
+		if(net < 0 || net > MAX_NET || local < 0 || local > MAX_LOCAL) {
+			throw new IllegalArgumentException("address " + net + "_" + local + " is out of range");
+		}
+		return (net << 16) | local;
+	}
+
+	public static int net(int addr) {
+		return addr >>> 16;
+	}
+
+	public static int local(int addr) {
+		return addr & 0xFFFF;
+	}
+
+	// Address of multicast group g, 0_<g>
+	public static int group(int g) {
+		if(g < 1 || g > MAX_GROUP) {
+			throw new IllegalArgumentException("group " + g + " is out of range 1-" + MAX_GROUP);
+		}
+		return of(GROUP_NET, g);
+	}
+
+	public static boolean isGroup(int addr) {
+		return net(addr) == GROUP_NET && local(addr) != 0;
+	}
+
+	// True if the address fits a one byte id
+	public static boolean isLegacy(int addr) {
+		return (addr & 0xFFF0FFF0) == 0;
+	}
+
+	// One byte id of a legacy address
+	public static int toLegacy(int addr) {
+		return ((addr >>> 12) & 0xF0) | (addr & 0x0F);
+	}
+
+	public static int fromLegacy(int id) {
+		return ((id & 0xF0) << 12) | (id & 0x0F);
+	}
+
+	// <net>_<local>, the way node files and logs name nodes
+	public static String toString(int addr) {
+		return net(addr) + "_" + local(addr);
+	}
+}
@@ -0,0 +1,173 @@
+package p1;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Ring of log lines filled by any thread and written out in batches by one daemon thread
+// Callers only copy references under a short lock, timestamps are formatted and written on the writer thread
+// When the ring is full TRACE to INFO lines are dropped and counted, WARN and ERROR wait for room
+public class AsyncLogAppender {
+	public static final int CAPACITY = 8192;
+	private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
+
+	private final long[] times = new long[CAPACITY];
+	private final Log.Level[] levels = new Log.Level[CAPACITY];
+	private final String[] tags = new String[CAPACITY];
+	private final String[] messages = new String[CAPACITY];
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	private int head = 0;
+	private int count = 0;
+	private boolean closed = false;
+	private long dropped = 0;
+
+	private final Writer out;
+	private final boolean closeOut;
+	private final Thread writer;
+
+	private AsyncLogAppender(OutputStream stream, boolean closeOut) {
+		this.out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), 64 * 1024);
+		this.closeOut = closeOut;
+		this.writer = new Thread(this::drainLoop, "log-writer");
+		writer.setDaemon(true);
+		writer.start();
+		// Lines still queued when the JVM exits without Log.shutdown are written out too
+		Runtime.getRuntime().addShutdownHook(new Thread(this::close, "log-flush"));
+	}
+
+	public static AsyncLogAppender toStdout() {
+		return new AsyncLogAppender(System.out, false);
+	}
+
+	public static AsyncLogAppender toFile(String fileName) throws IOException {
+		return new AsyncLogAppender(new FileOutputStream(fileName), true);
+	}
+
+	public void append(Log.Level level, String tag, String msg) {
+		long now = System.currentTimeMillis();
+		lock.lock();
+		try {
+			while(count == CAPACITY && !closed) {
+				if(level.compareTo(Log.Level.WARN) < 0) {
+					dropped++;
+					return;
+				}
+				notFull.awaitUninterruptibly();
+			}
+			if(closed) {
+				return;
+			}
+			int slot = (head + count) % CAPACITY;
+			times[slot] = now;
+			levels[slot] = level;
+			tags[slot] = tag;
+			messages[slot] = msg;
+			count++;
+			if(count == 1) {
+				notEmpty.signal();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Takes everything queued in one go, formats it outside the lock and flushes once per batch
+	private void drainLoop() {
+		long[] batchTimes = new long[CAPACITY];
+		Log.Level[] batchLevels = new Log.Level[CAPACITY];
+		String[] batchTags = new String[CAPACITY];
+		String[] batchMessages = new String[CAPACITY];
+		StringBuilder sb = new StringBuilder(64 * 1024);
+		ZoneId zone = ZoneId.systemDefault();
+
+		while(true) {
+			int n;
+			long lost;
+			lock.lock();
+			try {
+				while(count == 0 && !closed) {
+					notEmpty.awaitUninterruptibly();
+				}
+				if(count == 0) {
+					return; // closed and drained
+				}
+				n = count;
+				for(int i = 0; i < n; i++) {
+					int slot = (head + i) % CAPACITY;
+					batchTimes[i] = times[slot];
+					batchLevels[i] = levels[slot];
+					batchTags[i] = tags[slot];
+					batchMessages[i] = messages[slot];
+					tags[slot] = null;
+					messages[slot] = null;
+				}
+				head = (head + n) % CAPACITY;
+				count = 0;
+				lost = dropped;
+				dropped = 0;
+				notFull.signalAll();
+			} finally {
+				lock.unlock();
+			}
+
+			sb.setLength(0);
+			if(lost > 0) {
+				sb.append("[Log] dropped ").append(lost).append(" lines, ring full").append(System.lineSeparator());
+			}
+			for(int i = 0; i < n; i++) {
+				TIME.formatTo(LocalTime.ofInstant(Instant.ofEpochMilli(batchTimes[i]), zone), sb);
+				sb.append(' ').append(batchLevels[i]).append(' ').append(batchTags[i]).append(batchMessages[i]).append(System.lineSeparator());
+				batchTags[i] = null;
+				batchMessages[i] = null;
+			}
+			try {
+				out.write(sb.toString());
+				out.flush();
+			} catch(IOException e) {
+				System.err.println("[Log] write failed: " + e.getMessage());
+			}
+		}
+	}
+
+	// Stops taking lines, waits for the queued ones to be written
+	public void close() {
+		lock.lock();
+		try {
+			if(closed) {
+				return;
+			}
+			closed = true;
+			notEmpty.signalAll();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		try {
+			writer.join(2000);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			if(closeOut) {
+				out.close();
+			} else {
+				out.flush();
+			}
+		} catch(IOException ignored) {
+
+		}
+	}
+}
@@ -0,0 +1,214 @@
+package p1;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Size-class pool of reference counted buffers carved out of 64KB slabs
+public class BufferPool {
+	private static final int MIN_CLASS_SHIFT = 6; // 64 bytes
+	private static final int MAX_CLASS_SHIFT = 16; // 64KB, enough for any length-prefixed frame
+	private static final int SLAB_BYTES = 64 * 1024;
+	private static final int MIN_BUFFERS_PER_SLAB = 4;
+	private static final int MAX_SLABS_PER_CLASS = 64;
+
+	// Direct buffers for channel I/O, heap buffers for the stream based handlers that need a byte[]
+	public static final BufferPool DIRECT = new BufferPool(true);
+	public static final BufferPool HEAP = new BufferPool(false);
+
+	private final boolean direct;
+	private final SizeClass[] classes = new SizeClass[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1];
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder unpooled = new LongAdder();
+	private final LongAdder acquired = new LongAdder();
+	private final LongAdder released = new LongAdder();
+	private final LongAdder doubleReleases = new LongAdder();
+
+	public BufferPool(boolean direct) {
+		this.direct = direct;
+		for(int i = 0; i < classes.length; i++) {
+			classes[i] = new SizeClass(1 << (MIN_CLASS_SHIFT + i));
+		}
+	}
+
+	// Hands out a cleared buffer with at least minCapacity bytes and a reference count of 1
+	public PooledBuffer acquire(int minCapacity) {
+		acquired.increment();
+		int idx = classIndex(minCapacity);
+		if(idx < 0) {
+			misses.increment();
+			unpooled.increment();
+			return new PooledBuffer(this, null, allocate(minCapacity)).reset();
+		}
+
+		SizeClass sc = classes[idx];
+		PooledBuffer pb = sc.free.poll();
+		if(pb != null) {
+			hits.increment();
+			return pb.reset();
+		}
+
+		misses.increment();
+		pb = sc.grow();
+		if(pb == null) {
+			unpooled.increment();
+			pb = new PooledBuffer(this, null, allocate(sc.size));
+		}
+		return pb.reset();
+	}
+
+	private static int classIndex(int capacity) {
+		for(int i = 0; i <= MAX_CLASS_SHIFT - MIN_CLASS_SHIFT; i++) {
+			if(capacity <= (1 << (MIN_CLASS_SHIFT + i))) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private ByteBuffer allocate(int bytes) {
+		return direct ? ByteBuffer.allocateDirect(bytes) : ByteBuffer.allocate(bytes);
+	}
+
+	// Counters
+	public long hits() {
+		return hits.sum();
+	}
+
+	public long misses() {
+		return misses.sum();
+	}
+
+	public long unpooled() {
+		return unpooled.sum();
+	}
+
+	public long doubleReleases() {
+		return doubleReleases.sum();
+	}
+
+	// Buffers handed out and not released yet
+	public long outstanding() {
+		return acquired.sum() - released.sum();
+	}
+
+	// Slab buffers that have been held for longer than maxHoldMs, likely leaked
+	public int suspectedLeaks(long maxHoldMs) {
+		long cutoff = System.nanoTime() - maxHoldMs * 1_000_000L;
+		int leaks = 0;
+		for(SizeClass sc : classes) {
+			for(PooledBuffer pb : sc.all) {
+				if(pb.refCnt.get() > 0 && pb.acquiredAt - cutoff < 0) {
+					leaks++;
+				}
+			}
+		}
+		return leaks;
+	}
+
+	public String stats() {
+		return (direct ? "direct" : "heap") + " pool hits=" + hits() + " misses=" + misses() + " unpooled=" + unpooled() + " outstanding=" + outstanding() + " doubleReleases=" + doubleReleases();
+	}
+
+	// One size class, grows a slab at a time up to MAX_SLABS_PER_CLASS
+	private class SizeClass {
+		private final int size;
+		private final Queue<PooledBuffer> free = new ConcurrentLinkedQueue<>();
+		private final List<PooledBuffer> all = new CopyOnWriteArrayList<>();
+		private int slabs = 0;
+
+		private SizeClass(int size) {
+			this.size = size;
+		}
+
+		// Cuts a new slab into buffers, keeps one for the caller
+		private synchronized PooledBuffer grow() {
+			PooledBuffer pb = free.poll();
+			if(pb != null) {
+				return pb;
+			}
+			if(slabs >= MAX_SLABS_PER_CLASS) {
+				return null;
+			}
+			slabs++;
+
+			int count = Math.max(MIN_BUFFERS_PER_SLAB, SLAB_BYTES / size);
+			ByteBuffer slab = allocate(count * size);
+			PooledBuffer first = null;
+			for(int i = 0; i < count; i++) {
+				PooledBuffer slice = new PooledBuffer(BufferPool.this, this, slab.slice(i * size, size));
+				all.add(slice);
+				if(first == null) {
+					first = slice;
+				} else {
+					free.add(slice);
+				}
+			}
+			return first;
+		}
+	}
+
+	// A pooled buffer, goes back to its size class when the last reference is released
+	public static final class PooledBuffer {
+		private final BufferPool pool;
+		private final SizeClass owner; // null for unpooled buffers
+		private final ByteBuffer buf;
+		private final AtomicInteger refCnt = new AtomicInteger();
+		private volatile long acquiredAt;
+
+		private PooledBuffer(BufferPool pool, SizeClass owner, ByteBuffer buf) {
+			this.pool = pool;
+			this.owner = owner;
+			this.buf = buf;
+		}
+
+		private PooledBuffer reset() {
+			buf.clear();
+			acquiredAt = System.nanoTime();
+			refCnt.set(1);
+			return this;
+		}
+
+		// The underlying buffer, cleared on acquire
+		public ByteBuffer buffer() {
+			return buf;
+		}
+
+		public int capacity() {
+			return buf.capacity();
+		}
+
+		public int refCount() {
+			return refCnt.get();
+		}
+
+		// Adds a reference for another holder, for example a queued send
+		public PooledBuffer retain() {
+			refCnt.incrementAndGet();
+			return this;
+		}
+
+		// Drops a reference, the last one returns the buffer to the pool
+		public void release() {
+			int left = refCnt.decrementAndGet();
+			if(left > 0) {
+				return;
+			}
+			if(left < 0) {
+				refCnt.set(0);
+				pool.doubleReleases.increment();
+				return;
+			}
+			pool.released.increment();
+			if(owner != null) {
+				owner.free.add(this);
+			}
+		}
+	}
+}
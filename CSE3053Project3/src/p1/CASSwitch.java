@@ -1,37 +1,118 @@
 package p1;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 
 public class CASSwitch implements Runnable{
 	private final int port;
 	private final int networkId;
+	private final Log log;
 	private boolean running = true;
 	
     private final String ccsHost;
     private final int ccsPort;
-    private Socket ccsSocket;
-    private DataInputStream ccsIn;
-    private DataOutputStream ccsOut;
-    private Thread ccsListenerThread;
+    private String standbyHost; // shadow CCS, null when there is none
+    private int standbyPort = -1;
+    
+    // Trunks to the CCS and its hot standby, frames go up the active one
+    // trunkLock is read-held to send and write-held to fail over, so no frame slips into a trunk being abandoned
+    private volatile Trunk activeTrunk;
+    private volatile Trunk standbyTrunk;
+    private final ReentrantReadWriteLock trunkLock = new ReentrantReadWriteLock();
+    private Thread heartbeatThread;
+    private long heartbeatMs = DEFAULT_HEARTBEAT_MS;
+    public static final long DEFAULT_HEARTBEAT_MS = 100;
+    static final int MISSED_HEARTBEATS = 3; // silence that counts as a dead CCS
+    // How long a new link may wait for its first frame from the CCS before its silence counts. A CCS accepting
+    // every link of every network at once answers late, it is not dead
+    static final long CONNECT_GRACE_MS = 5000;
+    
+    // Cross-network frames wait here while no trunk is up, and keep queueing behind the backlog while it drains
+    private HoldQueue held;
+    private volatile boolean backlogged; // set by the first held frame, cleared once the drain empties the queue
+    private boolean drainerRunning; // guarded by the trunk write lock
+    private int holdFrames = HoldQueue.DEFAULT_CAPACITY;
+    private String spillFile; // null holds in memory only
+    private int spillBytes = HoldQueue.DEFAULT_SPILL_MB << 20;
+    static final long INITIAL_BACKOFF_MS = 100;
+    static final long MAX_BACKOFF_MS = 5000;
+    
+    // The CCS's firewall, pushed down the trunks so denied frames never leave this switch
+    private volatile FirewallPolicy firewall = FirewallPolicy.ALLOW_EVERYTHING;
+    
+    // Frames sent up the trunk, the ones the CCS may not have seen are replayed to the standby on failover
+    private final CaptureRing trunkReplay = new CaptureRing(TRUNK_REPLAY_FRAMES, CAPTURE_SNAPLEN);
+    static final int TRUNK_REPLAY_FRAMES = 4096;
+    
+    private int trunkLinks = 1; // parallel connections bundled into each trunk, see setTrunkLinks
+    public static final int MAX_TRUNK_LINKS = 16;
+    private int trunkBatchBytes = EgressWriter.DEFAULT_BATCH_BYTES;
+    private long trunkLingerMicros = 0;
+    
+    // Per-port egress queues, see setEgressPolicy
+    private int egressCapacity = EgressQueue.DEFAULT_CAPACITY;
+    private EgressQueue.OverflowPolicy overflowPolicy = EgressQueue.OverflowPolicy.DROP_TAIL;
+    private long blockTimeoutMs = EgressQueue.DEFAULT_BLOCK_MS;
+    
+    static final int TRUNK_READ_BUFFER = 64 * 1024; // lets one read pull in many frames
+    
+    private static final String[] PORT_METRICS = {"cas_port_frames_in_total", "cas_port_bytes_in_total", "cas_port_frames_out_total", "cas_port_bytes_out_total", "cas_port_egress_depth", "cas_port_egress_drops"};
 	
-	private Map<Integer, ClientHandler> table = new HashMap<>(); // Switching table
+	final ForwardingTable<ClientHandler> table; // Switching table, indexed by node id, package-private for the benchmarks
 	
-	private final List<ClientHandler> clients = Collections.synchronizedList(new ArrayList<>());
+	// Copied on change, so a flood walks a snapshot and a port that blocks it holds up no lock
+	private final List<ClientHandler> clients = new CopyOnWriteArrayList<>();
 	
-	private List<Frame> frameBuffer = new ArrayList<>(); // buffer for storing frames
+	// Multicast member ports by group address, replaced on change under the groups lock so fan-out reads without one
+	// Only a group's first join and last leave here go up to the CCS, which then sends its frames to this network once
+	private final Map<Integer, Group> groups = new ConcurrentHashMap<>();
+	private long groupVersion; // last version announced, guarded by groups
+	
+	// buffer for storing frames, fixed size so it doesn't grow with uptime
+	private final CaptureRing frameBuffer = new CaptureRing(CAPTURE_FRAMES, CAPTURE_SNAPLEN);
+	static final int CAPTURE_FRAMES = 4096;
+	static final int CAPTURE_SNAPLEN = 320;
+	
+	// Runtime metrics, all labelled switch=cas<networkId>
+	private final String metricsId;
+	private final Metrics.Counter unicastHits;
+	private final Metrics.Counter floods;
+	private final Metrics.Counter multicasts;
+	private final Metrics.Counter trunkFramesIn;
+	private final Metrics.Counter trunkFramesOut;
+	private final Metrics.Counter trunkSendFailures;
+	private final Metrics.Counter failovers;
+	private final Metrics.Counter linkFailovers;
+	private final Metrics.Counter replayedFrames;
+	private final Metrics.Counter firewallBlocks;
+	private final Metrics.Counter featureDrops;
+	private final AtomicInteger nextPortNo = new AtomicInteger(); // ports are numbered in accept order
+	
+	private NioEventLoopGroup eventLoops; // set for NIO mode, null for thread per node
+	private ServerSocketChannel serverChannel;
+	private final Object stopLock = new Object();
 	
 	public CASSwitch(int port) {
 		this(port, 1, null, -1);
@@ -40,26 +121,141 @@ public class CASSwitch implements Runnable{
 	public CASSwitch(int port, int networkId, String ccsHost, int ccsPort) {
 		this.port = port;
 		this.networkId = networkId;
+		this.log = Log.get("[CAS " + networkId + "]");
 		this.ccsHost = ccsHost;
 		this.ccsPort = ccsPort;
+		this.table = new ForwardingTable<>("CAS-" + networkId + "-table");
+		
+		this.metricsId = "cas" + networkId;
+		Metrics m = Metrics.REGISTRY;
+		this.unicastHits = m.counter("cas_unicast_total", "Frames sent to the one port the table knows for their destination", "switch", metricsId);
+		this.floods = m.counter("cas_flood_total", "Frames flooded because the table did not know their destination", "switch", metricsId);
+		this.multicasts = m.counter("cas_multicast_total", "Group frames sent to the member ports of this switch", "switch", metricsId);
+		this.trunkFramesIn = m.counter("cas_trunk_frames_in_total", "Frames received from the CCS trunk", "switch", metricsId);
+		this.trunkFramesOut = m.counter("cas_trunk_frames_out_total", "Frames queued up the CCS trunk", "switch", metricsId);
+		this.trunkSendFailures = m.counter("cas_trunk_send_failures_total", "Frames for other networks dropped because the trunk was down or its queue full", "switch", metricsId);
+		this.failovers = m.counter("cas_failovers_total", "Times traffic moved to the standby CCS", "switch", metricsId);
+		this.linkFailovers = m.counter("cas_link_failovers_total", "Times the flows of failed trunk links moved to the other links of the bundle", "switch", metricsId);
+		this.replayedFrames = m.counter("cas_replayed_frames_total", "Frames sent again to the standby CCS after a failover", "switch", metricsId);
+		this.firewallBlocks = m.counter("cas_firewall_blocks_total", "Frames for other networks refused here by the CCS's firewall", "switch", metricsId);
+		this.featureDrops = m.counter("cas_feature_drops_total", "Frames with extended addresses or fragments not sent to a node or CCS that never agreed to them", "switch", metricsId);
+		m.gauge("cas_firewall_version", "Version of the CCS firewall policy this switch enforces", () -> firewall.version(), "switch", metricsId);
+		m.gauge("cas_trunk_links_up", "Links of the active CCS trunk that are connected", () -> activeTrunk == null ? 0 : activeTrunk.linksUp(), "switch", metricsId);
+		m.gauge("cas_held_frames", "Frames waiting for a CCS trunk, in memory or spilled", () -> held == null ? 0 : held.size(), "switch", metricsId);
+		m.gauge("cas_hold_drops", "Frames lost because the hold queue and spill file were full", () -> held == null ? 0 : held.drops(), "switch", metricsId);
+		m.gauge("cas_handlers", "Node connections being served, one handler thread each unless nio is on", clients::size, "switch", metricsId);
+		m.gauge("cas_table_entries", "Nodes in the forwarding table", table::size, "switch", metricsId);
+		m.gauge("cas_groups", "Multicast groups with member ports on this switch", groups::size, "switch", metricsId);
+	}
+	
+	// Forgets nodes that have been silent for agingMs
+	public void setTableAging(long agingMs) {
+		table.startAging(agingMs);
+	}
+	
+	// Bounds every port's egress queue and picks what happens when one is full, must be set before run
+	public void setEgressPolicy(int capacity, EgressQueue.OverflowPolicy policy, long blockTimeoutMs) {
+		this.egressCapacity = capacity;
+		this.overflowPolicy = policy;
+		this.blockTimeoutMs = blockTimeoutMs;
+	}
+	
+	// Coalesces frames going up to the CCS into batches of up to maxBytes, held open for at most lingerMicros
+	// maxBytes 0 keeps the default, which only coalesces frames that are already queued
+	public void setTrunkBatching(int maxBytes, long lingerMicros) {
+		this.trunkBatchBytes = maxBytes > 0 ? maxBytes : EgressWriter.DEFAULT_BATCH_BYTES;
+		this.trunkLingerMicros = lingerMicros;
+	}
+	
+	// Bundles links parallel connections into each trunk, frames of one (src, dst) flow always share a link so
+	// they stay in order, and flows move to the other links while one is down. Must be set before run
+	public void setTrunkLinks(int links) {
+		if(links < 1 || links > MAX_TRUNK_LINKS) {
+			throw new IllegalArgumentException("trunk links must be 1 to " + MAX_TRUNK_LINKS);
+		}
+		this.trunkLinks = links;
+	}
+	
+	// Keeps a warm second trunk to the shadow CCS at host:port and fails over to it, must be set before run
+	public void setStandby(String host, int port) {
+		this.standbyHost = host;
+		this.standbyPort = port;
+	}
+	
+	// Heartbeat period on the trunks, a CCS silent for MISSED_HEARTBEATS periods is taken as dead
+	public void setHeartbeat(long intervalMs) {
+		if(intervalMs < 1) {
+			throw new IllegalArgumentException("heartbeat must be at least 1 ms");
+		}
+		this.heartbeatMs = intervalMs;
+	}
+	
+	// Bounds the frames held for the CCS while no trunk is up, past holdFrames they spill to spillMb of a
+	// memory-mapped spillFile when one is given, must be set before run
+	public void setTrunkHold(int holdFrames, String spillFile, int spillMb) {
+		if(holdFrames < 1 || spillMb < 1 || spillMb > 2047) {
+			throw new IllegalArgumentException("hold must be at least 1 frame and spill 1 to 2047 MB");
+		}
+		this.holdFrames = holdFrames;
+		this.spillFile = spillFile;
+		this.spillBytes = spillMb << 20;
+	}
+	
+	// Serves node ports from a shared event loop group instead of one thread per node
+	public void useEventLoops(NioEventLoopGroup eventLoops) {
+		this.eventLoops = eventLoops;
 	}
 	
 	@Override
 	public void run() {
         if (ccsHost != null) {
-            try {
-                connectToCCS();
-                ccsListenerThread = new Thread(this::listenFromCCS, "CAS-" + networkId + "-CCSListener");
-                ccsListenerThread.start();
-            } catch (IOException e) {
-                log("Could not connect to CCS at " + ccsHost + ":" + ccsPort
-                        + " (" + e.getMessage() + ")");
-                // We can still run local-only if CCS is down
+            held = new HoldQueue(holdFrames);
+            if (spillFile != null) {
+                try {
+                    held.spillTo(spillFile, spillBytes);
+                } catch (IOException e) {
+                    log.warn("Could not map spill file " + spillFile + " (" + e.getMessage() + "), holding frames in memory only");
+                }
+            }
+            // Trunks connect in the background, local nodes are served meanwhile and remote frames are held
+            activeTrunk = new Trunk(ccsHost, ccsPort);
+            if (standbyHost != null) {
+                standbyTrunk = new Trunk(standbyHost, standbyPort); // connected by the heartbeat thread
             }
+            heartbeatThread = new Thread(this::heartbeatLoop, "CAS-" + networkId + "-heartbeat");
+            heartbeatThread.setDaemon(true);
+            heartbeatThread.start();
+        }
+        
+        if(eventLoops != null) {
+        	runNio();
+        } else {
+        	runBlocking();
         }
 		
+		log.info("CAS for network " + networkId + " stopping.");
+		table.stopAging();
+		if(held != null) {
+			if(!held.isEmpty()) {
+				log.warn("Dropping " + held.size() + " frames still held for the CCS");
+			}
+			held.close();
+		}
+		
+		if(heartbeatThread != null) {
+			try {
+				heartbeatThread.interrupt();
+				heartbeatThread.join(200);
+			} catch(InterruptedException ignored) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	// Thread per node connection
+	private void runBlocking() {
 		try(ServerSocket serverSocket = new ServerSocket(port)){
-			log("Switch listening on port " + port);
+			log.info("Switch listening on port " + port);
 			
 			// runs until shutdown is called
 			while(running) {
@@ -77,182 +273,951 @@ public class CASSwitch implements Runnable{
 				s.setTcpNoDelay(true);
 				
 				ClientHandler handler = new ClientHandler(s);
-				synchronized(clients) {
-					clients.add(handler);
-				}
+				handler.sendHello();
+				clients.add(handler);
 				
+				handler.startWriter();
 				Thread t = new Thread(handler);
 				t.start();
 				
-				log("Accepted connection from " + s.getRemoteSocketAddress());
+				log.info("Accepted connection from " + s.getRemoteSocketAddress());
 			}
 		} catch(IOException e) {
 			if(running) {
-				e.printStackTrace();
+				log.error("Accept loop on port " + port + " failed", e);
 			}
 		}
-		
-		log("CAS for network " + networkId + " stopping.");
-		
-		if(ccsListenerThread != null) {
+	}
+	
+	// Node connections are multiplexed on the event loop group, this thread just waits for shutdown
+	private void runNio() {
+		try {
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.bind(new InetSocketAddress(port));
+			log.info("Switch listening on port " + port + " (nio, " + eventLoops.size() + " loops)");
+			
+			eventLoops.next().listen(serverChannel, this::acceptNio);
+			
+			synchronized(stopLock) {
+				while(running) {
+					stopLock.wait();
+				}
+			}
+		} catch(IOException e) {
+			if(running) {
+				log.error("NIO listener on port " + port + " failed", e);
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
 			try {
-				ccsListenerThread.interrupt();
-				ccsListenerThread.join(200);
-			} catch(InterruptedException ignored) {
-				Thread.currentThread().interrupt();
+				if(serverChannel != null) serverChannel.close();
+			} catch(IOException ignored) {
+				
+			}
+			for(ClientHandler handler : clients) {
+				handler.close();
 			}
 		}
 	}
 	
-	// Lets Main tell switch to stop
-	public void shutdown() {
-		running = false;
-		
-		if(ccsSocket != null) {
+	// Accepted channels are spread over the loops
+	private void acceptNio(SocketChannel ch) {
+		if(!running) {
 			try {
-				ccsSocket.close();
+				ch.close();
 			} catch(IOException ignored) {
 				
 			}
+			return;
+		}
+		try {
+			ch.socket().setTcpNoDelay(true);
+			ClientHandler handler = new ClientHandler();
+			handler.sendHello(); // queued now, the loop flushes it once the channel is registered
+			clients.add(handler);
+			handler.conn = eventLoops.next().register(ch, handler, handler.egress);
+			log.info("Accepted connection from " + ch.getRemoteAddress());
+		} catch(IOException e) {
+			log.warn("Failed to accept nio connection: " + e.getMessage());
 		}
 	}
 	
-	// Helper to print messages
-	private void log(String msg) {
-		System.out.println("[CAS " + networkId + "]" + msg);
+	// Lets Main tell switch to stop
+	public void shutdown() {
+		running = false;
+		
+		synchronized(stopLock) {
+			stopLock.notifyAll();
+		}
+		
+		Trunk active = activeTrunk;
+		Trunk standby = standbyTrunk;
+		if(active != null) {
+			active.close();
+		}
+		if(standby != null) {
+			standby.close();
+		}
 	}
 	
-	// Connects to CCS
-    private void connectToCCS() throws IOException {
-        int attempts = 0;
-        while (true) {
-            try {
-                ccsSocket = new Socket(ccsHost, ccsPort);
-                ccsSocket.setTcpNoDelay(true);
-                ccsIn = new DataInputStream(new BufferedInputStream(ccsSocket.getInputStream()));
-                ccsOut = new DataOutputStream(new BufferedOutputStream(ccsSocket.getOutputStream()));
-                log("Connected to CCS " + ccsHost + ":" + ccsPort);
-                return;
-            } catch (IOException e) {
-                attempts++;
-                log("CCS not ready (" + e.getMessage() + "), retry " + attempts);
-                try {
-                    Thread.sleep(500);
-                } catch (InterruptedException ie) {
-                    Thread.currentThread().interrupt();
-                    throw new IOException("Interrupted while waiting for CCS", ie);
+	// Dumps the captured frames to a pcap file, ports are node ids and 0 for the CCS trunk
+	public void exportCapture(String fileName) {
+		try {
+			int n = frameBuffer.exportPcap(fileName);
+			log.info("Wrote " + n + " captured frames to " + fileName);
+		} catch(IOException e) {
+			log.warn("Could not write capture " + fileName + ": " + e.getMessage());
+		}
+	}
+	
+    // Sends heartbeats on every link of both trunks, reconnects links that are down and fails over when the active trunk goes quiet
+    private void heartbeatLoop() {
+        while (running) {
+            for (Trunk trunk : new Trunk[] {activeTrunk, standbyTrunk}) {
+                if (trunk == null) {
+                    continue;
+                }
+                for (Trunk.Link link : trunk.links) {
+                    if (!link.up) {
+                        if (System.nanoTime() - link.retryAtNanos < 0) {
+                            continue;
+                        }
+                        // With the rest of the bundle up only this link's frames can be missing, else the whole trunk's
+                        long unconfirmedSince = trunk.linksUp() > 0 ? (link.moved ? 0 : link.ackedUpToNanos) : trunk.ackedUpToNanos();
+                        try {
+                            link.connect();
+                        } catch (IOException e) {
+                            long waitMs = link.backOff();
+                            log.info("CCS " + link + " not reachable (" + e.getMessage() + "), retry in " + waitMs + " ms");
+                            continue;
+                        }
+                        log.info("Connected to CCS " + link + (trunk == standbyTrunk ? " as standby" : ""));
+                        resumeIfActive(trunk, unconfirmedSince);
+                    }
+                    link.sendHeartbeat();
                 }
             }
+            checkTrunks();
+            try {
+                Thread.sleep(heartbeatMs);
+            } catch (InterruptedException e) {
+                break;
+            }
         }
     }
 
-    // Listen for frames coming from CCS and forward them to local nodes
-    private void listenFromCCS() {
-        if (ccsIn == null) return;
+    // A link came back: if its trunk carries the traffic, resend what went unconfirmed when links went away, then the held frames
+    private void resumeIfActive(Trunk trunk, long unconfirmedSince) {
+        trunkLock.writeLock().lock();
+        try {
+            if (trunk != activeTrunk) {
+                return; // a standby waits until checkTrunks moves traffic to it
+            }
+            int replayed = replay(trunk, unconfirmedSince);
+            trunk.forgetUnconfirmed(unconfirmedSince);
+            if (replayed > 0) {
+                log.info("Resent " + replayed + " frames CCS " + trunk + " had not confirmed before it went away");
+            }
+            startDraining();
+        } finally {
+            trunkLock.writeLock().unlock();
+        }
+    }
 
+    // Moves traffic to the standby when no link of the active trunk is up and heard from within MISSED_HEARTBEATS
+    // heartbeats. A link the CCS has not answered yet gets CONNECT_GRACE_MS first, a slow CCS start is not a dead
+    // CCS. While one is, links that died or went quiet just have their flows moved to the others
+    private void checkTrunks() {
+        long deadNanos = TimeUnit.MILLISECONDS.toNanos(heartbeatMs * MISSED_HEARTBEATS);
+        trunkLock.writeLock().lock();
         try {
-            while (running) {
-                int frameLen;
-                try {
-                    frameLen = ccsIn.readUnsignedShort();
-                } catch (EOFException eof) {
-                    break;
-                }
+            if (!running) {
+                return;
+            }
+            Trunk active = activeTrunk;
+            Trunk standby = standbyTrunk;
+            boolean activeOk = active.isAlive(deadNanos);
+            boolean standbyOk = standby != null && standby.isAlive(deadNanos);
+            if (activeOk) {
+                rebalance(active, deadNanos);
+            }
+            if (!activeOk && standbyOk) {
+                failOver(active, standby);
+            } else if (active.linksUp() > 0) {
+                startDraining(); // no-op unless frames were held around a reconnect
+            }
+        } finally {
+            trunkLock.writeLock().unlock();
+        }
+    }
 
-                byte[] buf = ccsIn.readNBytes(frameLen);
-                Frame frame = Frame.fromBytes(buf);
+    // Called with the write lock held while some link of trunk is alive. Closes links that went quiet and resends what
+    // the closed ones left unconfirmed, their flows hash to the links still up from here on
+    private void rebalance(Trunk trunk, long deadNanos) {
+        long now = System.nanoTime();
+        for (Trunk.Link link : trunk.links) {
+            if (link.quiet(now, deadNanos)) {
+                log.warn("CCS " + link + " went quiet, moving its flows to the other links");
+                link.close();
+            }
+        }
+        long since = trunk.unmovedSince();
+        if (since != 0) {
+            int replayed = replay(trunk, since);
+            int moved = trunk.markMoved(since);
+            linkFailovers.inc();
+            log.info("Moved the flows of " + moved + " down links of CCS " + trunk + " to the other links, resent " + replayed + " frames");
+        }
+    }
 
-                frameBuffer.add(frame);
-                log("Got frame from CCS " + frame);
+    // Called with the write lock held. Frames sent after the last heartbeat the old CCS echoed on each link may never
+    // have been forwarded, they are replayed to the standby, so some can arrive twice but none are lost
+    private void failOver(Trunk dead, Trunk standby) {
+        long started = System.nanoTime();
+        long unconfirmedSince = dead.ackedUpToNanos();
+        activeTrunk = standby;
+        standbyTrunk = dead; // reconnected by the heartbeat loop and kept as the standby once that CCS is back
+        failovers.inc();
+        dead.close();
+        standby.forgetUnconfirmed(0); // left from an earlier turn as the active trunk, replayed back then
+        
+        int replayed = replay(standby, unconfirmedSince);
+        startDraining();
+        if (unconfirmedSince == 0) {
+            log.warn("CCS " + dead + " has not come up, moved traffic to " + standby);
+        } else {
+            long silentMs = Math.max(0, TimeUnit.NANOSECONDS.toMillis(started - dead.lastHeardNanos())); // a reader may still be draining its buffer
+            log.warn("Failed over from CCS " + dead + " to " + standby + " after " + silentMs + " ms of silence, replayed " + replayed + " frames");
+        }
+    }
 
-                // Frames from CCS should have dstNet == this.networkId
-                forwardLocalFrame(frame, null);
-            }
-        } catch (IOException e) {
-            if (running) {
-                log("Error reading from CCS: " + e.getMessage());
+    // Resends to trunk the frames recorded after sinceNanos, 0 means nothing was ever sent. Write lock held
+    private int replay(Trunk to, long sinceNanos) {
+        if (sinceNanos == 0) {
+            return 0;
+        }
+        if (!trunkReplay.holdsSince(sinceNanos)) {
+            log.warn("Replay ring overran since the last heartbeat, some unconfirmed frames are lost");
+        }
+        int replayed = trunkReplay.forEachSince(sinceNanos, (buf, off, len) -> {
+            FrameView frame = FrameView.wrap(buf, off, len);
+            Trunk.Link link = to.pick(frame);
+            if (link != null && link.accepts(frame) && EgressWriter.enqueue(link.egress, frame, link.features)) {
+                trunkReplay.record(0, frame);
             }
-        } finally {
+        });
+        replayedFrames.add(replayed);
+        return replayed;
+    }
+
+    // Starts moving held frames to the active trunk, write lock held so no sender slips past the backlog
+    private void startDraining() {
+        if (!backlogged || drainerRunning) {
+            return;
+        }
+        drainerRunning = true;
+        Thread t = new Thread(this::drainHeld, "CAS-" + networkId + "-trunk-drain");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // Feeds held frames to the active trunk as fast as its queues take them. New frames keep going to the hold
+    // queue until it is empty, so they stay in order behind the backlog
+    private void drainHeld() {
+        long moved = 0;
+        while (true) {
+            boolean stop = false;
+            boolean full = false;
+            trunkLock.readLock().lock();
             try {
-                if (ccsSocket != null) ccsSocket.close();
-            } catch (IOException ignored) {}
-            log("Disconnected from CCS");
+                Trunk trunk = activeTrunk;
+                if (!running || trunk.linksUp() == 0) {
+                    stop = true; // resumes when a trunk is back
+                } else if (trunk.anyFull()) {
+                    full = true;
+                } else {
+                    BufferPool.PooledBuffer pb = held.poll();
+                    if (pb == null) {
+                        stop = true;
+                    } else {
+                        FrameView frame = FrameView.wrap(pb.buffer(), 2, pb.buffer().limit() - 2);
+                        Trunk.Link link = trunk.pick(frame);
+                        if (link == null) {
+                            held.giveBack(pb); // its link went down under us, try again from the top
+                            full = true;
+                        } else if (!link.accepts(frame)) {
+                            featureDrops.inc();
+                            pb.release();
+                        } else if (EgressWriter.enqueue(link.egress, frame, link.features)) {
+                            trunkReplay.record(0, frame);
+                            trunkFramesOut.inc();
+                            moved++;
+                            pb.release();
+                        } else {
+                            held.giveBack(pb); // the link closed or filled up mid-drain, the frame stays held
+                            full = true;
+                        }
+                    }
+                }
+            } finally {
+                trunkLock.readLock().unlock();
+            }
+            
+            if (stop) {
+                trunkLock.writeLock().lock();
+                try {
+                    if (!held.isEmpty() && running && activeTrunk.linksUp() > 0) {
+                        continue; // more arrived while we looked
+                    }
+                    backlogged = !held.isEmpty();
+                    drainerRunning = false;
+                } finally {
+                    trunkLock.writeLock().unlock();
+                }
+                break;
+            }
+            if (full) {
+                LockSupport.parkNanos(DRAIN_PAUSE_NANOS);
+            }
         }
+        log.info("Sent " + moved + " frames held while the CCS was unreachable, " + held.size() + " still held");
     }
+    
+    private static final long DRAIN_PAUSE_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
 
-    // Send a frame up to CCS
-    private void sendToCCS(Frame frame) {
-        if (ccsOut == null) {
-            log("No CCS connection; dropping frame " + frame);
+    // Handles a control frame from a CCS, its hello, heartbeat echoes and firewall policies
+    private void handleControl(Trunk.Link link, FrameView frame, FirewallPolicy.Assembler firewallText) {
+        byte op = frame.controlOp();
+        if (op == Frame.CONTROL_HEARTBEAT_ACK && frame.getDataLength() >= HEARTBEAT_BODY + 1) {
+            link.ackedUpToNanos = frame.buffer().getLong(frame.dataOffset() + 1 + HEARTBEAT_TIME);
+        } else if (op == Frame.CONTROL_HELLO && frame.getDataLength() >= 2) {
+            link.features = frame.buffer().get(frame.dataOffset() + 1) & Frame.HELLO_ALL;
+            link.sendControl(Frame.helloFrame(link.features));
+            sendGroups(link);
+        } else if (op == Frame.CONTROL_FIREWALL) {
+            String rules = firewallText.add(frame.buffer(), frame.dataOffset() + 1, frame.getDataLength() - 1, firewall);
+            if (rules != null) {
+                installFirewall(rules, firewallText.version(), link);
+            }
+        }
+    }
+    
+    // Swaps in a policy from a CCS, every link of both trunks gets the same ones so anything not newer is already here
+    private synchronized void installFirewall(String rules, long version, Trunk.Link from) {
+        if (version <= firewall.version()) {
             return;
         }
+        List<String> errors = new ArrayList<>();
         try {
-            byte[] bytes = frame.toBytes();
-            synchronized (ccsOut) {
-                ccsOut.writeShort(bytes.length);
-                ccsOut.write(bytes);
-                ccsOut.flush();
+            firewall = FirewallPolicy.compile(rules, version, errors);
+        } catch (IllegalArgumentException e) {
+            log.warn("Could not compile firewall version " + version + " from CCS " + from + ", keeping version " + firewall.version() + ": " + e.getMessage());
+            return;
+        }
+        log.info("Enforcing firewall version " + version + " from CCS " + from + ", " + firewall.ruleCount() + " rules");
+    }
+
+    // Send a frame up to CCS, the received bytes are queued unchanged for the writer of the link its flow hashes to
+    private void sendToCCS(FrameView frame) {
+        trunkLock.readLock().lock();
+        try {
+            Trunk trunk = activeTrunk;
+            Trunk.Link link = trunk.pick(frame);
+            if (link != null && !backlogged) {
+                if (!link.accepts(frame)) {
+                    featureDrops.inc();
+                    log.debug(() -> "CCS " + link + " can't take this frame's header, dropped " + frame);
+                    return;
+                }
+                if (EgressWriter.enqueue(link.egress, frame, link.features)) {
+                    trunkReplay.record(0, frame); // after the enqueue, see Trunk.Link.ackedUpToNanos
+                    trunkFramesOut.inc();
+                    log.trace(() -> "Sent frame up to CCS " + link + " " + frame);
+                    return;
+                }
+                if (!link.egress.isClosed()) {
+                    trunkSendFailures.inc();
+                    log.debug(() -> "CCS trunk queue full; dropped frame " + frame);
+                    return;
+                }
+                // the link closed under us, hold the frame like any sent while the trunk is down
+            }
+            backlogged = true;
+            if (held.offer(frame)) {
+                log.trace(() -> "Holding frame for CCS " + frame);
+            } else {
+                trunkSendFailures.inc();
+                log.debug(() -> "No CCS connection and hold queue full; dropped frame " + frame);
+            }
+        } finally {
+            trunkLock.readLock().unlock();
+        }
+    }
+    
+    static final int HEARTBEAT_BODY = 2 + 8 + 8; // network id, send time, firewall version
+    static final int HEARTBEAT_TIME = 2;
+    static final int HEARTBEAT_FIREWALL = 10;
+    static final int GROUP_BODY = 2 + 2 + 8; // group, network id, version
+    static final int GROUP_VERSION = 4;
+    
+    // CONTROL_JOIN or CONTROL_LEAVE of a network's CAS as it goes up a trunk
+    static Frame groupFrame(byte op, int group, int networkId, long version) {
+        byte[] body = new byte[GROUP_BODY];
+        ByteBuffer.wrap(body).putShort(0, (short) Address.local(group)).putShort(2, (short) networkId).putLong(GROUP_VERSION, version);
+        return Frame.controlFrame(op, body);
+    }
+    
+    // A node port joined a group, the first member on this switch tells the CCS
+    private void joinGroup(int group, ClientHandler member) {
+        synchronized (groups) {
+            if (!member.joined.add(group)) {
+                return;
+            }
+            Group g = groups.get(group);
+            if (g != null) {
+                ClientHandler[] members = Arrays.copyOf(g.members, g.members.length + 1);
+                members[members.length - 1] = member;
+                groups.put(group, new Group(members, g.version));
+                return;
+            }
+            long version = nextGroupVersion();
+            groups.put(group, new Group(new ClientHandler[] {member}, version));
+            announceGroup(Frame.CONTROL_JOIN, group, version);
+        }
+        log.info("Group " + Address.toString(group) + " has members on this switch");
+    }
+    
+    // A node port left a group or closed, the last member on this switch tells the CCS
+    private void leaveGroup(int group, ClientHandler member) {
+        synchronized (groups) {
+            if (!member.joined.remove(group)) {
+                return;
+            }
+            Group g = groups.get(group);
+            if (g.members.length > 1) {
+                List<ClientHandler> members = new ArrayList<>(Arrays.asList(g.members));
+                members.remove(member);
+                groups.put(group, new Group(members.toArray(new ClientHandler[0]), g.version));
+                return;
+            }
+            groups.remove(group);
+            announceGroup(Frame.CONTROL_LEAVE, group, nextGroupVersion());
+        }
+        log.info("Group " + Address.toString(group) + " has no members on this switch any more");
+    }
+    
+    // Versions are times in ms like firewall versions, so a restarted switch still counts up from what a CCS holds
+    private long nextGroupVersion() {
+        groupVersion = Math.max(System.currentTimeMillis(), groupVersion + 1);
+        return groupVersion;
+    }
+    
+    // Tells both CCS on every link that is up, the CCS keeps the newest version whichever link it comes in on
+    private void announceGroup(byte op, int group, long version) {
+        if (ccsHost == null) {
+            return;
+        }
+        Frame frame = groupFrame(op, group, networkId, version);
+        for (Trunk trunk : new Trunk[] {activeTrunk, standbyTrunk}) {
+            if (trunk == null) {
+                continue;
+            }
+            for (Trunk.Link link : trunk.links) {
+                if (link.up) {
+                    link.sendControl(frame);
+                }
+            }
+        }
+    }
+    
+    // A link that just came up may lead to a new or restarted CCS, it is told every group with members here
+    private void sendGroups(Trunk.Link link) {
+        for (Map.Entry<Integer, Group> e : groups.entrySet()) {
+            link.sendControl(groupFrame(Frame.CONTROL_JOIN, e.getKey(), networkId, e.getValue().version));
+        }
+    }
+    
+    // Trunk to one CCS, a bundle of trunkLinks parallel connections the CCS treats as one port. Each flow (src, dst)
+    // hashes to one link so it stays in order, and the links write on their own threads so uplink throughput scales
+    // with them. A closed trunk's links can connect again
+    private class Trunk {
+        private final String host;
+        private final int port;
+        final Link[] links;
+        
+        Trunk(String host, int port) {
+            this.host = host;
+            this.port = port;
+            this.links = new Link[trunkLinks];
+            for (int i = 0; i < links.length; i++) {
+                links[i] = new Link(i);
+            }
+        }
+        
+        // The link frame's flow goes up, null when none is up. A flow whose own link is down is hashed again over
+        // the links that are up, so a failed link's flows spread over the others and no other flow moves
+        Link pick(FrameView frame) {
+            if (links.length == 1) {
+                return links[0].up ? links[0] : null;
+            }
+            int hash = frame.flowHash();
+            Link own = links[Integer.remainderUnsigned(hash, links.length)];
+            if (own.up) {
+                return own;
+            }
+            int upCount = linksUp();
+            if (upCount == 0) {
+                return null;
+            }
+            int nth = Integer.remainderUnsigned(Integer.divideUnsigned(hash, links.length), upCount);
+            for (Link link : links) {
+                if (link.up && nth-- == 0) {
+                    return link;
+                }
+            }
+            return null; // a link went down while we looked
+        }
+        
+        int linksUp() {
+            int n = 0;
+            for (Link link : links) {
+                if (link.up) {
+                    n++;
+                }
+            }
+            return n;
+        }
+        
+        // Some link is up and not quiet, see Link.quiet
+        boolean isAlive(long deadNanos) {
+            long now = System.nanoTime();
+            for (Link link : links) {
+                if (link.up && !link.quiet(now, deadNanos)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        // Some up link's egress queue is full, the drain waits rather than pick a link and find it full
+        boolean anyFull() {
+            for (Link link : links) {
+                if (link.up && link.egress.depth() >= link.egress.capacity()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        long lastHeardNanos() {
+            long newest = links[0].lastHeardNanos;
+            for (Link link : links) {
+                if (link.lastHeardNanos - newest > 0) {
+                    newest = link.lastHeardNanos;
+                }
+            }
+            return newest;
+        }
+        
+        // Oldest heartbeat echo on any link, frames recorded after it may not have reached the CCS. 0 when no link
+        // ever connected or everything unconfirmed was resent already. Links whose flows moved count too, what was
+        // resent for them went up links that may have died since
+        long ackedUpToNanos() {
+            return oldestAcked(false);
+        }
+        
+        // Oldest heartbeat echo on a down link whose flows were not moved to the other links yet
+        long unmovedSince() {
+            return oldestAcked(true);
+        }
+        
+        private long oldestAcked(boolean unmovedOnly) {
+            long oldest = 0;
+            for (Link link : links) {
+                long acked = link.ackedUpToNanos;
+                if (acked != 0 && !(unmovedOnly && (link.up || link.moved)) && (oldest == 0 || acked - oldest < 0)) {
+                    oldest = acked;
+                }
+            }
+            return oldest;
+        }
+        
+        // Called with the write lock held once the frames recorded after sinceNanos were resent on the links still
+        // up, marks the down links that left nothing older unconfirmed. Returns how many
+        int markMoved(long sinceNanos) {
+            int n = 0;
+            for (Link link : links) {
+                if (!link.up && !link.moved && link.ackedUpToNanos != 0 && link.ackedUpToNanos - sinceNanos >= 0) {
+                    link.moved = true;
+                    n++;
+                }
+            }
+            return n;
+        }
+        
+        // Called with the write lock held once the frames recorded after sinceNanos were resent, so the down links
+        // that left nothing older unconfirmed aren't resent for again. 0 forgets every down link
+        void forgetUnconfirmed(long sinceNanos) {
+            for (Link link : links) {
+                if (!link.up && (sinceNanos == 0 || link.ackedUpToNanos - sinceNanos >= 0)) {
+                    link.ackedUpToNanos = 0;
+                }
+            }
+        }
+        
+        void close() {
+            for (Link link : links) {
+                link.close();
+            }
+        }
+        
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+        
+        // One connection of the bundle with its reader and writer threads, a closed link can connect again
+        class Link {
+            private final int index;
+            private Socket socket; // current connection, each reader thread keeps its own
+            private volatile EgressQueue egress; // frames waiting to go up this link
+            
+            volatile boolean up;
+            volatile int features; // HELLO_* bits the CCS offered in its CONTROL_HELLO, which we answered
+            volatile long lastHeardNanos; // any frame from the CCS counts as a sign of life
+            volatile boolean heard; // the CCS sent something since this connection came up
+            // Send time of the newest heartbeat the CCS echoed on this link. The link is FIFO and the CCS handles its
+            // frames in order, so it has seen every frame queued here before that heartbeat, and sendToCCS records
+            // frames after queueing them. 0 once nothing this link carried is left unconfirmed
+            volatile long ackedUpToNanos;
+            volatile boolean moved; // down, and its flows went to the other links with what it left unconfirmed
+            
+            // Reconnect schedule, read and written by the heartbeat thread only
+            long retryAtNanos;
+            private long backoffMs;
+            
+            Link(int index) {
+                this.index = index;
+            }
+            
+            // Up and silent for longer than deadNanos. Until the CCS first answers, the silence only counts once the
+            // link has waited CONNECT_GRACE_MS, which also covers a CCS that took the connection and never spoke
+            boolean quiet(long now, long deadNanos) {
+                if (!up) {
+                    return false;
+                }
+                if (!heard) {
+                    return now - lastHeardNanos > Math.max(deadNanos, TimeUnit.MILLISECONDS.toNanos(CONNECT_GRACE_MS));
+                }
+                return now - lastHeardNanos > deadNanos;
+            }
+            
+            // One connection attempt, starts the reader and writer when it works
+            void connect() throws IOException {
+                Socket s = new Socket();
+                DataInputStream in;
+                EgressQueue queue = new EgressQueue(egressCapacity, overflowPolicy, blockTimeoutMs);
+                EgressWriter writer;
+                try {
+                    s.connect(new InetSocketAddress(host, port), (int) Math.max(100, heartbeatMs * MISSED_HEARTBEATS));
+                    s.setTcpNoDelay(true);
+                    in = new DataInputStream(new BufferedInputStream(s.getInputStream(), TRUNK_READ_BUFFER));
+                    writer = new EgressWriter("CAS-" + networkId + "-trunk-writer-" + port + suffix(), queue, s.getOutputStream(), trunkBatchBytes, trunkLingerMicros);
+                } catch (IOException e) {
+                    s.close();
+                    throw e;
+                }
+                synchronized (this) {
+                    socket = s;
+                    egress = queue;
+                    long now = System.nanoTime();
+                    lastHeardNanos = now;
+                    heard = false;
+                    ackedUpToNanos = now;
+                    moved = false;
+                    features = 0;
+                    up = true;
+                    backoffMs = 0;
+                }
+                writer.start();
+                Thread reader = new Thread(() -> listen(s, in, writer, queue), "CAS-" + networkId + "-CCSListener-" + port + suffix());
+                reader.setDaemon(true);
+                reader.start();
+            }
+            
+            // Pushes the next connect attempt out, doubling up to MAX_BACKOFF_MS with equal jitter so the CAS
+            // switches don't all hit a restarting CCS at once. Returns the wait in ms
+            long backOff() {
+                backoffMs = backoffMs == 0 ? INITIAL_BACKOFF_MS : Math.min(backoffMs * 2, MAX_BACKOFF_MS);
+                long waitMs = backoffMs / 2 + ThreadLocalRandom.current().nextLong(backoffMs / 2 + 1);
+                retryAtNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMs);
+                return waitMs;
+            }
+            
+            // Queues a heartbeat stamped with the current time, the CCS echoes it back on this link
+            void sendHeartbeat() {
+                byte[] body = new byte[HEARTBEAT_BODY];
+                ByteBuffer.wrap(body).putShort(0, (short) networkId).putLong(HEARTBEAT_TIME, System.nanoTime()).putLong(HEARTBEAT_FIREWALL, firewall.version());
+                sendControl(Frame.controlFrame(Frame.CONTROL_HEARTBEAT, body));
+            }
+            
+            void sendControl(Frame frame) {
+                BufferPool.PooledBuffer pb = BufferPool.HEAP.acquire(frame.encodedLength());
+                try {
+                    int len = frame.encodeTo(pb.buffer());
+                    EgressWriter.enqueue(egress, FrameView.wrap(pb.buffer(), 0, len), features);
+                } finally {
+                    pb.release();
+                }
+            }
+            
+            // False for a frame with extended addresses or fragments when the CCS never said it understands them
+            boolean accepts(FrameView frame) {
+                int needs = frame.helloBits();
+                return (features & needs) == needs;
+            }
+            
+            // Listen for frames coming from CCS and forward them to local nodes
+            private void listen(Socket s, DataInputStream in, EgressWriter writer, EgressQueue queue) {
+                FrameView view = new FrameView(); // reused for every frame on this connection
+                FirewallPolicy.Assembler firewallText = new FirewallPolicy.Assembler();
+                try {
+                    while (running && socket == s) {
+                        int frameLen;
+                        try {
+                            frameLen = in.readUnsignedShort();
+                        } catch (EOFException eof) {
+                            break;
+                        }
+
+                        BufferPool.PooledBuffer pb = BufferPool.HEAP.acquire(frameLen);
+                        try {
+                            ByteBuffer buf = pb.buffer();
+                            in.readFully(buf.array(), buf.arrayOffset(), frameLen);
+                            view.reset(buf, 0, frameLen);
+                            lastHeardNanos = System.nanoTime();
+                            heard = true;
+                            
+                            if (view.isControl()) {
+                                handleControl(this, view, firewallText);
+                                continue;
+                            }
+
+                            frameBuffer.record(0, view); // port 0 is the CCS trunk
+                            trunkFramesIn.inc();
+                            log.trace(() -> "Got frame from CCS " + view);
+
+                            // Frames from CCS should have dstNet == this.networkId
+                            forwardLocalFrame(view, null);
+                        } finally {
+                            pb.release();
+                        }
+                    }
+                } catch (IOException e) {
+                    if (running && socket == s) {
+                        log.warn("Error reading from CCS " + this + ": " + e.getMessage());
+                    }
+                } finally {
+                    close(s);
+                    log.info("Trunk writes averaged " + String.format("%.1f", writer.framesPerBatch()) + " frames, egress " + queue.stats());
+                    log.info("Disconnected from CCS " + this);
+                    checkTrunks(); // fail over or move this link's flows now rather than waiting out the heartbeats
+                }
+            }
+            
+            void close() {
+                close(socket);
+            }
+            
+            // Closes connection s, and the link with it if s is still its current connection
+            private synchronized void close(Socket s) {
+                if (s == null) {
+                    return;
+                }
+                if (s == socket) {
+                    up = false;
+                    egress.close();
+                }
+                try {
+                    s.close();
+                } catch (IOException ignored) {}
+            }
+            
+            // Names and threads only carry the link number when there is more than one
+            private String suffix() {
+                return links.length == 1 ? "" : "-" + (index + 1);
+            }
+            
+            @Override
+            public String toString() {
+                return links.length == 1 ? Trunk.this.toString() : Trunk.this + " link " + (index + 1);
             }
-            log("Sent frame up to CCS " + frame);
-        } catch (IOException e) {
-            log("Failed to send frame to CCS: " + e.getMessage());
         }
     }
 	
 	// Forward a frame from the switching table, if destination port is known, send only there, otherwise flood to all except the source port
-	private void forwardLocalFrame(Frame frame, ClientHandler from) {
+	void forwardLocalFrame(FrameView frame, ClientHandler from) {
 		int dstId = frame.getDst();
+		if(Address.isGroup(dstId)) {
+			multicast(frame, from);
+			return;
+		}
 		
-		ClientHandler dstHandler = table.get(dstId);
+		ClientHandler dstHandler = table.lookup(dstId);
 		if(dstHandler != null && dstHandler != from) {
-			try {
-				dstHandler.sendFrame(frame);
-			} catch(IOException e) {
-				log("Failed to send to node " + dstId);
+			unicastHits.inc();
+			if(!dstHandler.accepts(frame)) {
+				featureDrops.inc();
+				log.debug(() -> "Node " + Address.toString(dstId) + " can't take this frame's header, dropped " + frame);
+			} else if(!dstHandler.sendFrame(frame)) {
+				log.debug(() -> "Egress queue to node " + Address.toString(dstId) + " dropped a frame");
 			}
 			return;
 		}
 		
-		// Flood to every port except main port
-		synchronized(clients) {
+		// Flood to every port except main port, one copy shared by all their queues
+		floods.inc();
+		BufferPool.PooledBuffer shared = EgressWriter.prefixed(frame, sharedPool());
+		try {
 			for(ClientHandler other : clients) {
 				if(other == from) {
 					continue;
 				}
-				try {
-					other.sendFrame(frame);
-				} catch(IOException e) {
-					log("Flood failed to local node");
+				if(!other.accepts(frame)) {
+					featureDrops.inc();
+				} else if(!other.sendShared(shared)) {
+					log.debug("Egress queue dropped a flooded frame");
 				}
 			}
+		} finally {
+			shared.release();
 		}
 	}
 	
-    private void handleFrameFromNode(Frame frame, ClientHandler from) {
+	// Sends a group frame to every member port but the sender's, one copy shared by all their queues
+	private void multicast(FrameView frame, ClientHandler from) {
+		Group group = groups.get(frame.getDst());
+		if(group == null) {
+			return;
+		}
+		multicasts.inc();
+		BufferPool.PooledBuffer shared = EgressWriter.prefixed(frame, sharedPool());
+		try {
+			for(ClientHandler member : group.members) {
+				if(member == from) {
+					continue;
+				}
+				if(!member.accepts(frame)) {
+					featureDrops.inc();
+				} else if(!member.sendShared(shared)) {
+					log.debug("Egress queue dropped a group frame");
+				}
+			}
+		} finally {
+			shared.release();
+		}
+	}
+	
+	// NIO ports write from direct buffers, like NioEventLoop.Connection.send copies into
+	private BufferPool sharedPool() {
+		return eventLoops != null ? BufferPool.DIRECT : BufferPool.HEAP;
+	}
+	
+    private void handleFrameFromNode(FrameView frame, ClientHandler from) {
         int dstId = frame.getDst();
-        int dstNet = dstId / 16;
+        int dstNet = Address.net(dstId);
 
-        if (dstNet == this.networkId || ccsHost == null) {
+        if (Address.isGroup(dstId)) {
+            // Members here get it right away, the CCS sends one copy on to each other network with members
+            forwardLocalFrame(frame, from);
+            if (ccsHost == null) {
+                return;
+            }
+            if (firewall.isBlocked(frame.getSrc(), dstId, frame.getDataLength())) {
+                firewallBlocks.inc();
+                log.debug(() -> "Firewall BLOCKED group frame from " + Address.toString(frame.getSrc()) + " to " + Address.toString(dstId) + ", no NACK as nobody waits for one");
+            } else {
+                sendToCCS(frame);
+            }
+        } else if (dstNet == this.networkId || ccsHost == null) {
             // Local traffic
             forwardLocalFrame(frame, from);
+        } else if (!frame.isAck() && firewall.isBlocked(frame.getSrc(), dstId, frame.getDataLength())) {
+            rejectFrame(frame, from);
         } else {
             // Remote network sends to CCS
             sendToCCS(frame);
         }
     }
 	
+    // Answers a frame the firewall denies with the NACK the CCS would have sent, straight back to the sender
+    private void rejectFrame(FrameView frame, ClientHandler from) {
+        firewallBlocks.inc();
+        log.debug(() -> "Firewall BLOCKED traffic " + Address.net(frame.getSrc()) + " to " + Address.net(frame.getDst()) + " (src=" + Address.toString(frame.getSrc()) + ", dst=" + Address.toString(frame.getDst()) + ")");
+        Frame nack = Frame.ackFrame(frame.getDst(), frame.getSrc(), Frame.ACK_FIREWALL, frame.getSeq());
+        BufferPool.PooledBuffer pb = BufferPool.HEAP.acquire(nack.encodedLength());
+        try {
+            int len = nack.encodeTo(pb.buffer());
+            if (!from.sendFrame(FrameView.wrap(pb.buffer(), 0, len))) {
+                log.debug(() -> "Egress queue to node " + Address.toString(frame.getSrc()) + " dropped a firewall NACK");
+            }
+        } finally {
+            pb.release();
+        }
+    }
+	
+	// A group's member ports on this switch and the version the CCS was told when the first one joined
+	private static final class Group {
+		final ClientHandler[] members;
+		final long version;
+		
+		Group(ClientHandler[] members, long version) {
+			this.members = members;
+			this.version = version;
+		}
+	}
+	
 	// Handles a single node connection, reads frames from the node and passes them to forwardFrame
-	private class ClientHandler implements Runnable {
+	class ClientHandler implements Runnable, NioEventLoop.FrameListener {
 		private Socket socket;
 		private DataInputStream in;
-		private DataOutputStream out;
+		private NioEventLoop.Connection conn; // only in NIO mode
+		private final FrameView view = new FrameView(); // reused for every frame read on this connection
+		final EgressQueue egress = new EgressQueue(egressCapacity, overflowPolicy, blockTimeoutMs);
+		
+		// Per port metrics, removed again when the port closes
+		private final String portNo = String.valueOf(nextPortNo.incrementAndGet());
+		private final Metrics.Counter framesIn = Metrics.REGISTRY.counter("cas_port_frames_in_total", "Frames received on a node port", "switch", metricsId, "port", portNo);
+		private final Metrics.Counter bytesIn = Metrics.REGISTRY.counter("cas_port_bytes_in_total", "Frame bytes received on a node port", "switch", metricsId, "port", portNo);
+		private final Metrics.Counter framesOut = Metrics.REGISTRY.counter("cas_port_frames_out_total", "Frames queued out of a node port", "switch", metricsId, "port", portNo);
+		private final Metrics.Counter bytesOut = Metrics.REGISTRY.counter("cas_port_bytes_out_total", "Frame bytes queued out of a node port", "switch", metricsId, "port", portNo);
+		{
+			Metrics.REGISTRY.gauge("cas_port_egress_depth", "Frames waiting in a node port's egress queue", egress::depth, "switch", metricsId, "port", portNo);
+			Metrics.REGISTRY.gauge("cas_port_egress_drops", "Frames a node port's egress queue dropped", egress::drops, "switch", metricsId, "port", portNo);
+		}
 		
 		private Integer nodeId = null;
+		private volatile int features; // HELLO_* bits the node answered our CONTROL_HELLO with
+		private final Set<Integer> joined = new HashSet<>(); // groups this port is a member of, guarded by groups
 		
 		public ClientHandler(Socket socket) throws IOException {
 			this.socket = socket;
 			this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
-			this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		}
+		
+		// NIO handler, the connection is attached once the channel is registered
+		public ClientHandler() {
+		}
+		
+		// As if the node had answered CONTROL_HELLO with features, for the benchmarks' ports that never connect
+		void setFeatures(int features) {
+			this.features = features;
+		}
+		
+		// Thread per node mode, a writer thread drains this port's queue so forwarding never waits on the socket
+		public void startWriter() throws IOException {
+			new EgressWriter("CAS-" + networkId + "-port-writer", egress, socket.getOutputStream(), EgressWriter.DEFAULT_BATCH_BYTES, 0).start();
 		}
 		
 		@Override
@@ -266,16 +1231,15 @@ public class CASSwitch implements Runnable{
 						break;
 					}
 					
-					// Read frame data
-					byte[] receivedBytes = in.readNBytes(frameLen);
-					Frame frame = Frame.fromBytes(receivedBytes);
-					
-					int srcId = frame.getSrc();
-					learnNodeId(srcId, this);
-					frameBuffer.add(frame);
-					
-					log("Got frame " + frame.toString());
-					handleFrameFromNode(frame, this);
+					// Read frame data into a pooled buffer, released once the frame has been forwarded
+					BufferPool.PooledBuffer pb = BufferPool.HEAP.acquire(frameLen);
+					try {
+						ByteBuffer buf = pb.buffer();
+						in.readFully(buf.array(), buf.arrayOffset(), frameLen);
+						receive(buf, 0, frameLen);
+					} finally {
+						pb.release();
+					}
 				}
 			} catch(IOException e) {
 				
@@ -284,43 +1248,152 @@ public class CASSwitch implements Runnable{
 			}
 		}
 		
+		@Override
+		public void onFrame(NioEventLoop.Connection c, ByteBuffer buf, int off, int len) {
+			receive(buf, off, len);
+		}
+		
+		@Override
+		public void onClose(NioEventLoop.Connection c) {
+			cleanup();
+		}
+		
+		// Same handling for both modes, the frame is decoded once as a view and forwarded without re-encoding
+		private void receive(ByteBuffer buf, int off, int len) {
+			FrameView frame;
+			try {
+				frame = view.reset(buf, off, len);
+			} catch(IllegalArgumentException e) {
+				// A corrupted length byte, drop the frame but keep the node connected
+				log.warn("Dropping malformed frame: " + e.getMessage());
+				return;
+			}
+			
+			framesIn.inc();
+			bytesIn.add(len);
+			
+			if(frame.isControl()) {
+				byte op = frame.controlOp();
+				if(op == Frame.CONTROL_HELLO && frame.getDataLength() >= 2) {
+					features = frame.buffer().get(frame.dataOffset() + 1) & Frame.HELLO_ALL;
+				} else if((op == Frame.CONTROL_JOIN || op == Frame.CONTROL_LEAVE) && frame.getDataLength() >= 3) {
+					int group = frame.buffer().getShort(frame.dataOffset() + 1) & 0xFFFF;
+					if(group == 0) {
+						return;
+					}
+					if(op == Frame.CONTROL_JOIN) {
+						joinGroup(Address.group(group), this);
+					} else {
+						leaveGroup(Address.group(group), this);
+					}
+				}
+				return;
+			}
+			
+			int srcId = frame.getSrc();
+			learnNodeId(srcId, this);
+			frameBuffer.record(Address.local(srcId), frame);
+			
+			log.trace(() -> "Got frame " + frame.toString());
+			handleFrameFromNode(frame, this);
+		}
+		
 		// Read the data
 		private void learnNodeId(int srcId, ClientHandler handler) {
-			table.put(srcId, handler);
+			table.learn(srcId, handler);
 			
 			if(nodeId == null) {
 				nodeId = srcId;
-				log("Learned node " + nodeId + " on this connection");
+				log.info("Learned node " + Address.toString(srcId) + ((features & Frame.HELLO_EXT_ADDR) != 0 ? " (extended addresses)" : "") + " on this connection");
+			}
+		}
+		
+		// Offers extended addressing, fragments and format v2, the first frame on every node port. Nodes that know them
+		// answer. The HELLO itself is format v1, which a node that predates it can read, and such a node is sent
+		// every frame as v1 from then on
+		void sendHello() {
+			Frame hello = Frame.helloFrame(Frame.HELLO_ALL);
+			BufferPool.PooledBuffer pb = BufferPool.HEAP.acquire(hello.encodedLength());
+			try {
+				int len = hello.encodeTo(pb.buffer());
+				EgressWriter.enqueue(egress, FrameView.wrap(pb.buffer(), 0, len));
+			} finally {
+				pb.release();
+			}
+		}
+		
+		// False for a frame with extended addresses or fragments when the node never said it understands them
+		boolean accepts(FrameView frame) {
+			int needs = frame.helloBits();
+			return (features & needs) == needs;
+		}
+		
+		// Queues the frame for this node, false if the queue was full or the port is gone
+		public boolean sendFrame(FrameView frame) {
+			boolean queued;
+			if(EgressWriter.needsSum8(frame, features)) {
+				BufferPool.PooledBuffer pb = EgressWriter.prefixed(frame, BufferPool.HEAP, features);
+				try {
+					queued = conn != null ? conn.sendShared(pb) : EgressWriter.enqueueShared(egress, pb);
+				} finally {
+					pb.release();
+				}
+			} else {
+				queued = conn != null ? conn.send(frame.buffer(), frame.offset(), frame.length()) : EgressWriter.enqueue(egress, frame);
+			}
+			if(queued) {
+				framesOut.inc();
+				bytesOut.add(frame.length());
 			}
+			return queued;
 		}
 		
-		// Send the frame back to node
-		public void sendFrame(Frame frame) throws IOException {
-			byte[] receivedBytes = frame.toBytes();
-			out.writeShort(receivedBytes.length);
-			out.write(receivedBytes);
-			out.flush();
+		// Queues a frame other ports' queues share, see EgressWriter.prefixed
+		public boolean sendShared(BufferPool.PooledBuffer prefixed) {
+			FrameView frame = EgressWriter.unprefixed(prefixed);
+			if(EgressWriter.needsSum8(frame, features)) {
+				return sendFrame(frame);
+			}
+			boolean queued = conn != null ? conn.sendShared(prefixed) : EgressWriter.enqueueShared(egress, prefixed);
+			if(queued) {
+				framesOut.inc();
+				bytesOut.add(prefixed.buffer().limit() - 2);
+			}
+			return queued;
+		}
+		
+		// Closes the connection, cleanup runs from the read side
+		public void close() {
+			if(conn != null) {
+				conn.close();
+			} else {
+				try {
+					socket.close();
+				} catch(IOException ignored) {
+					
+				}
+			}
 		}
 		
 		// Close the socket
 		private void cleanup() {
-			try {
-				socket.close();
-			} catch(IOException ignored) {
-				
+			close();
+			egress.close();
+			for(String name : PORT_METRICS) {
+				Metrics.REGISTRY.remove(name, "switch", metricsId, "port", portNo);
 			}
 			
-			if(nodeId != null) {
-				ClientHandler current = table.get(nodeId);
-				if(current == this) {
-					table.remove(nodeId);
-					log("Node " + nodeId + " disconnected");
+			synchronized(groups) {
+				for(int group : new ArrayList<>(joined)) {
+					leaveGroup(group, this);
 				}
 			}
 			
-			synchronized(clients) {
-				clients.remove(this);
+			if(nodeId != null && table.remove(nodeId, this)) {
+				log.info("Node " + Address.toString(nodeId) + " disconnected (egress " + egress.stats() + ")");
 			}
+			
+			clients.remove(this);
 		}
 	}
 }
@@ -1,8 +1,103 @@
 package p1;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+// Hot standby for the CCS. Forwards like CCSSwitch on its own port, so a CAS can move its trunk here at any time,
+// and keeps the primary's firewall over a control link. The network table needs no copying, every CAS heartbeats
+// both CCSs, so the shadow learns the same networks as the primary
 public class CCSShadowSwitch extends CCSSwitch {
+	private static final long MIRROR_RETRY_MS = 500;
+
+	private String primaryHost;
+	private int primaryPort = -1;
+	private volatile Socket primarySocket;
+
 	// Does what CCSSwitch does
 	public CCSShadowSwitch(int port) {
-		super(port);
+		super(port, "[CCS Shadow] ");
+	}
+
+	// Copies the firewall of the primary CCS at host:port and follows its changes, must be set before run
+	public void mirror(String host, int port) {
+		this.primaryHost = host;
+		this.primaryPort = port;
+	}
+
+	@Override
+	public void run() {
+		if(primaryHost != null) {
+			Thread t = new Thread(this::mirrorLoop, "CCS-Shadow-mirror");
+			t.setDaemon(true);
+			t.start();
+		}
+		super.run();
+	}
+
+	@Override
+	public void shutdown() {
+		super.shutdown();
+		Socket s = primarySocket;
+		if(s != null) {
+			try {
+				s.close();
+			} catch(IOException ignored) {
+
+			}
+		}
+	}
+
+	// Keeps a link to the primary open, asks for its state on every connect and applies what it sends
+	// When the primary is gone the last state stays in force, that is when the shadow is carrying the traffic
+	private void mirrorLoop() {
+		boolean linked = false;
+		while(isRunning()) {
+			try(Socket s = new Socket()) {
+				s.connect(new InetSocketAddress(primaryHost, primaryPort), (int) MIRROR_RETRY_MS);
+				s.setTcpNoDelay(true);
+				primarySocket = s;
+
+				DataOutputStream out = new DataOutputStream(s.getOutputStream());
+				byte[] request = Frame.controlFrame(Frame.CONTROL_SYNC_REQUEST, new byte[0]).toBytes();
+				out.writeShort(request.length);
+				out.write(request);
+				out.flush();
+				if(!linked) {
+					log.info("Mirroring primary CCS " + primaryHost + ":" + primaryPort);
+					linked = true;
+				}
+
+				DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+				FrameView view = new FrameView();
+				FirewallPolicy.Assembler firewallText = new FirewallPolicy.Assembler();
+				while(isRunning()) {
+					byte[] bytes = new byte[in.readUnsignedShort()];
+					in.readFully(bytes);
+					view.reset(ByteBuffer.wrap(bytes), 0, bytes.length);
+					if(view.isControl() && view.controlOp() == Frame.CONTROL_FIREWALL) {
+						String rules = firewallText.add(view.buffer(), view.dataOffset() + 1, view.getDataLength() - 1, firewall());
+						if(rules != null) {
+							installFirewall(rules, firewallText.version(), "from primary CCS");
+						}
+					}
+				}
+			} catch(IOException | IllegalArgumentException e) {
+				if(linked && isRunning()) {
+					log.warn("Lost primary CCS, keeping its last firewall");
+				}
+				linked = false;
+			}
+
+			try {
+				Thread.sleep(MIRROR_RETRY_MS);
+			} catch(InterruptedException e) {
+				return;
+			}
+		}
 	}
 }
@@ -2,42 +2,179 @@ package p1;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
-import java.io.FileReader;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class CCSSwitch implements Runnable {
 	private final int port;
-	private boolean running = true;
-	private static final int MAX_NET = 16;
-	private final boolean[][] firewallBlock = new boolean[MAX_NET][MAX_NET];
+	final Log log;
+	private volatile boolean running = true;
+	private volatile ServerSocket serverSocket;
+	private volatile FirewallPolicy firewall = FirewallPolicy.ALLOW_EVERYTHING; // swapped whole on reload
+	private String firewallFile = "firewall.txt";
+	private FileWatcher firewallWatcher;
 	
-	private final Map<Integer, ClientHandler> networkTable = new HashMap<>();
+	private final ForwardingTable<Bundle> networkTable; // indexed by network id
 	
-	private final List<ClientHandler> clients = Collections.synchronizedList(new ArrayList<>());
+	// A CAS's parallel trunk links by its network, guarded by clientsLock. The bundle is the one port networkTable holds
+	private final Map<Integer, Bundle> bundles = new HashMap<>();
 	
-	private final List<Frame> frameBuffer = new ArrayList<>();
+	// Multicast, the networks with members of each group, replaced on change under clientsLock so forwarding reads
+	// without it. A group frame goes down to each of them once, see applyGroup
+	private final Map<Integer, int[]> groupNets = new ConcurrentHashMap<>();
+	private final Map<Integer, Map<Integer, Long>> groupVersions = new HashMap<>(); // by network, group to the version last applied, guarded by clientsLock
+	
+	// Sharded core, see setShards. Frames for networks of other shards go out on that shard's PeerTrunk
+	private ShardMap shards;
+	private int shardId;
+	private PeerTrunk[] peers; // by shard id, null for this shard
+	
+	// Changed under clientsLock along with the bundles, a ReentrantLock so virtual threads don't pin their carrier.
+	// Copied on change, floods and firewall pushes walk a snapshot without the lock, a full queue there can block
+	private final List<ClientHandler> clients = new CopyOnWriteArrayList<>();
+	private final ReentrantLock clientsLock = new ReentrantLock();
+	
+	private ExecutionMode executionMode = ExecutionMode.PLATFORM;
+	
+	private int trunkBatchBytes = EgressWriter.DEFAULT_BATCH_BYTES;
+	private long trunkLingerMicros = 0;
+	
+	// Per-port egress queues, see setEgressPolicy
+	private int egressCapacity = EgressQueue.DEFAULT_CAPACITY;
+	private EgressQueue.OverflowPolicy overflowPolicy = EgressQueue.OverflowPolicy.DROP_TAIL;
+	private long blockTimeoutMs = EgressQueue.DEFAULT_BLOCK_MS;
+	
+	private final CaptureRing frameBuffer = new CaptureRing(CASSwitch.CAPTURE_FRAMES, CASSwitch.CAPTURE_SNAPLEN); // fixed size capture
+	
+	// Runtime metrics, all labelled switch=ccs<port>
+	private final String metricsId;
+	private final Metrics.Counter unicastHits;
+	private final Metrics.Counter floods;
+	private final Metrics.Counter multicasts;
+	private final Metrics.Counter firewallBlocks;
+	private final Metrics.Counter trunkSendFailures;
+	private final Metrics.Counter featureDrops;
+	private final Metrics.Counter peerDrops;
+	private final AtomicInteger nextPortNo = new AtomicInteger(); // ports are numbered in accept order
+	private static final String[] PORT_METRICS = {"ccs_port_frames_in_total", "ccs_port_bytes_in_total", "ccs_port_frames_out_total", "ccs_port_bytes_out_total", "ccs_port_egress_depth", "ccs_port_egress_drops"};
 	
 	public CCSSwitch(int port) {
+		this(port, "[CCS] ");
+	}
+	
+	// logTag tells the shadow's log lines apart
+	protected CCSSwitch(int port, String logTag) {
 		this.port = port;
-		loadFirewallRules("firewall.txt");
+		this.log = Log.get(logTag);
+		this.networkTable = new ForwardingTable<>("CCS-" + port + "-table");
+		loadFirewallRules(firewallFile);
+		
+		this.metricsId = "ccs" + port;
+		Metrics m = Metrics.REGISTRY;
+		this.unicastHits = m.counter("ccs_unicast_total", "Frames sent to the one CAS the table knows for their network", "switch", metricsId);
+		this.floods = m.counter("ccs_flood_total", "Frames flooded because the table did not know their network", "switch", metricsId);
+		this.multicasts = m.counter("ccs_multicast_total", "Group frames sent on to the networks with members", "switch", metricsId);
+		this.firewallBlocks = m.counter("ccs_firewall_blocks_total", "Data frames the firewall refused", "switch", metricsId);
+		this.trunkSendFailures = m.counter("ccs_trunk_send_failures_total", "Frames a CAS trunk's egress queue dropped", "switch", metricsId);
+		this.featureDrops = m.counter("ccs_feature_drops_total", "Frames with extended addresses or fragments not sent to a CAS that never agreed to them", "switch", metricsId);
+		this.peerDrops = m.counter("ccs_peer_drops_total", "Frames for another shard dropped because its trunk was down or full", "switch", metricsId);
+		m.gauge("ccs_handlers", "CAS trunks being served, one handler thread each", this::clientCount, "switch", metricsId);
+		m.gauge("ccs_table_entries", "Networks in the forwarding table", networkTable::size, "switch", metricsId);
+		m.gauge("ccs_groups", "Multicast groups with members in some network", groupNets::size, "switch", metricsId);
+		m.gauge("ccs_firewall_version", "Version of the firewall policy in force", () -> firewall.version(), "switch", metricsId);
+		m.gauge("ccs_firewall_rules", "Rules in the firewall policy in force", () -> firewall.ruleCount(), "switch", metricsId);
+	}
+	
+	private long clientCount() {
+		return clients.size();
+	}
+	
+	// Forgets networks whose CAS has been silent for agingMs
+	public void setTableAging(long agingMs) {
+		networkTable.startAging(agingMs);
+	}
+	
+	// Bounds every CAS port's egress queue and picks what happens when one is full, must be set before run
+	public void setEgressPolicy(int capacity, EgressQueue.OverflowPolicy policy, long blockTimeoutMs) {
+		this.egressCapacity = capacity;
+		this.overflowPolicy = policy;
+		this.blockTimeoutMs = blockTimeoutMs;
+	}
+	
+	// Coalesces frames going down to each CAS into batches of up to maxBytes, held open for at most lingerMicros
+	// maxBytes 0 keeps the default, which only coalesces frames that are already queued
+	public void setTrunkBatching(int maxBytes, long lingerMicros) {
+		this.trunkBatchBytes = maxBytes > 0 ? maxBytes : EgressWriter.DEFAULT_BATCH_BYTES;
+		this.trunkLingerMicros = lingerMicros;
+	}
+	
+	// Makes this CCS shard shardId of a sharded core, must be set before run. It keeps a trunk to every other shard,
+	// checks the firewall on frames its own CAS switches send and passes frames for networks it doesn't own to
+	// their shard, which forwards them without checking again
+	public void setShards(ShardMap shards, int shardId) {
+		if(shards.shard(shardId) == null) {
+			throw new IllegalArgumentException("shard " + shardId + " is not in the shard map");
+		}
+		this.shards = shards;
+		this.shardId = shardId;
+		int maxId = 0;
+		for(ShardMap.Shard s : shards.shards()) {
+			maxId = Math.max(maxId, s.id());
+		}
+		peers = new PeerTrunk[maxId + 1];
+		for(ShardMap.Shard s : shards.shards()) {
+			if(s.id() != shardId) {
+				peers[s.id()] = new PeerTrunk(s);
+			}
+		}
+	}
+	
+	int port() {
+		return port;
+	}
+	
+	// Shard this CCS serves, 0 when the core isn't sharded
+	int shardId() {
+		return shardId;
+	}
+	
+	// Picks platform or virtual threads for the CAS trunk handlers, must be set before run
+	public void setExecutionMode(ExecutionMode executionMode) {
+		this.executionMode = executionMode;
 	}
 	
 	@Override
 	public void run() {
+		Executor handlerExecutor = executionMode.newExecutor("CCS-" + port + "-trunk-");
+		
 		try(ServerSocket serverSocket = new ServerSocket(port)) {
-			log("CCS listening on port " + port);
+			this.serverSocket = serverSocket;
+			log.info("CCS listening on port " + port + " (" + executionMode.effective().name().toLowerCase() + " threads)" + (shards != null ? " as shard " + shardId : ""));
+			if(peers != null) {
+				for(PeerTrunk peer : peers) {
+					if(peer != null) {
+						peer.start();
+					}
+				}
+			}
 			
 			while(running) {
 				Socket s;
@@ -50,157 +187,515 @@ public class CCSSwitch implements Runnable {
 					throw e;
 				}
 				
-				s.setTcpNoDelay(true);
-				
-				ClientHandler handler = new ClientHandler(s);
-				synchronized(clients) {
-					clients.add(handler);
-				}
-				
-				Thread t = new Thread(handler);
-				t.start();
+				// Writer start and HELLO happen on the handler's thread, so a burst of CAS links at startup is not
+				// answered one at a time from here
+				Socket accepted = s;
+				handlerExecutor.execute(() -> serve(accepted));
 				
-				log("Accepted CAS connection from " + s.getRemoteSocketAddress());
+				log.info("Accepted CAS connection from " + s.getRemoteSocketAddress());
 			}
 		} catch(IOException e) {
 			if(running) {
-				e.printStackTrace();
+				log.error("Accept loop on port " + port + " failed", e);
 			}
 		}
-		log("CCS stopping.");
+		log.info("CCS stopping.");
+		networkTable.stopAging();
 	}
 	
-	// Loads up the rules from firewall.txt
-	private void loadFirewallRules(String filename) {
-		for(int i = 0; i < MAX_NET; i++) {
-			Arrays.fill(firewallBlock[i], false);
+	// Loads up the rules from firewall.txt, a file that can't be read leaves the rules in force as they are
+	void loadFirewallRules(String filename) {
+		String source;
+		try {
+			source = Files.readString(Paths.get(filename));
+		} catch(IOException e) {
+			log.warn("Could not load firewall rules from " + filename + ": " + e.getMessage());
+			log.warn(firewall.version() == 0 ? "Defaulting to no firewall." : "Keeping firewall version " + firewall.version());
+			return;
 		}
-		
-		try(BufferedReader br = new BufferedReader(new FileReader(filename))) {
-			String line;
-			int count = 0;
-			while((line = br.readLine()) != null) {
-				line = line.trim();
-				if(line.isEmpty() || line.startsWith("#")) {
-					continue;
+		if(firewall.version() > 0 && source.equals(firewall.source())) {
+			log.debug(() -> "Firewall rules in " + filename + " did not change");
+			return;
+		}
+		// Versions are load times in ms, so a restarted CCS still counts up from what the CAS switches hold
+		installFirewall(source, Math.max(System.currentTimeMillis(), firewall.version() + 1), "from " + filename);
+	}
+	
+	// Reloads firewall.txt whenever it changes, traffic keeps flowing under the old rules until the new ones are in
+	public void watchFirewall() {
+		try {
+			firewallWatcher = new FileWatcher(Paths.get(firewallFile), FileWatcher.DEFAULT_SETTLE_MS, () -> loadFirewallRules(firewallFile));
+			firewallWatcher.start("CCS-" + port + "-firewall-watch");
+			log.info("Watching " + firewallFile + " for changes");
+		} catch(IOException e) {
+			log.warn("Could not watch " + firewallFile + ", rules will not reload: " + e.getMessage());
+		}
+	}
+	
+	// Compiles rule text and swaps it in as one policy, so no frame ever sees half of a reload
+	synchronized void installFirewall(String source, long version, String from) {
+		List<String> errors = new ArrayList<>();
+		long start = System.nanoTime();
+		FirewallPolicy policy;
+		try {
+			policy = FirewallPolicy.compile(source, version, errors);
+		} catch(IllegalArgumentException e) {
+			log.warn("Could not compile firewall rules " + from + ", keeping version " + firewall.version() + ": " + e.getMessage());
+			return;
+		}
+		long micros = (System.nanoTime() - start) / 1000;
+		for(String error : errors) {
+			log.warn("Skipping bad firewall " + error);
+		}
+		FirewallPolicy previous = firewall;
+		firewall = policy;
+		log.info("Loaded " + policy.ruleCount() + " firewall rules " + from + " (version " + version + ", compiled in " + micros + "us)");
+		pushFirewall(previous);
+	}
+	
+	// Checks if blocked
+	boolean isBlocked(int srcId, int dstId, int payloadLen) {
+		return firewall.isBlocked(srcId, dstId, payloadLen);
+	}
+	
+	FirewallPolicy firewall() {
+		return firewall;
+	}
+	
+	// Sends the new rules to every CAS and shadow CCS, so the CAS switches can refuse frames before they reach the trunk
+	// Other shards load firewall.txt themselves
+	private void pushFirewall(FirewallPolicy previous) {
+		for(ClientHandler handler : clients) {
+			if(handler.peer) continue;
+			sendFirewall(handler, previous);
+		}
+	}
+	
+	// The policy's rule text in CONTROL_FIREWALL frames, the receiver compiles it itself
+	// Only the changed text goes to a peer known to hold previous, pass null to send it all
+	private void sendFirewall(ClientHandler to, FirewallPolicy previous) {
+		FirewallPolicy policy = firewall;
+		boolean delta = previous != null && previous.version() > 0 && to.firewallVersion == previous.version();
+		List<Frame> frames = delta ? policy.toControlFrames(Frame.CONTROL_FIREWALL, previous) : policy.toControlFrames(Frame.CONTROL_FIREWALL);
+		to.firewallVersion = policy.version();
+		for(Frame f : frames) {
+			to.sendControl(f);
+		}
+	}
+	
+	// Answers heartbeats and state requests, control frames are never forwarded
+	private void handleControl(FrameView frame, ClientHandler from) {
+		byte op = frame.controlOp();
+		int bodyLen = frame.getDataLength() - 1;
+		if(op == Frame.CONTROL_HEARTBEAT && bodyLen >= 2) {
+			// Heartbeats keep the table learned and fresh even with no traffic, which is what keeps a shadow ready
+			from.learnNetwork(frame.buffer().getShort(frame.dataOffset() + 1) & 0xFFFF);
+			byte[] body = new byte[bodyLen];
+			frame.buffer().get(frame.dataOffset() + 1, body);
+			from.sendControl(Frame.controlFrame(Frame.CONTROL_HEARTBEAT_ACK, body));
+			// A CAS reports the firewall version it holds, one that is behind gets the whole policy
+			if(bodyLen >= CASSwitch.HEARTBEAT_BODY) {
+				from.firewallVersion = frame.buffer().getLong(frame.dataOffset() + 1 + CASSwitch.HEARTBEAT_FIREWALL);
+				if(from.firewallVersion < firewall.version()) {
+					sendFirewall(from, null);
 				}
-				String[] parts = line.split("\\s+");
-				if(parts.length < 3) {
-					log("Skipping bad firewall line: " + line);
-					continue;
+			}
+		} else if(op == Frame.CONTROL_HELLO && bodyLen >= 1) {
+			from.features = frame.buffer().get(frame.dataOffset() + 1) & Frame.HELLO_ALL;
+			log.debug(() -> "CAS at " + from.socket.getRemoteSocketAddress() + " answered hello with 0x" + Integer.toHexString(from.features));
+		} else if(op == Frame.CONTROL_PEER && bodyLen >= 2) {
+			from.peer = true;
+			log.info("Shard " + (frame.buffer().getShort(frame.dataOffset() + 1) & 0xFFFF) + " at " + from.socket.getRemoteSocketAddress() + " connected its trunk");
+		} else if((op == Frame.CONTROL_JOIN || op == Frame.CONTROL_LEAVE) && bodyLen >= CASSwitch.GROUP_BODY) {
+			int at = frame.dataOffset() + 1;
+			int group = frame.buffer().getShort(at) & 0xFFFF;
+			int net = frame.buffer().getShort(at + 2) & 0xFFFF;
+			long version = frame.buffer().getLong(at + CASSwitch.GROUP_VERSION);
+			if(group == 0) {
+				return;
+			}
+			if(!from.peer) {
+				from.learnNetwork(net); // like a heartbeat, so the membership goes when the CAS does
+			}
+			if(applyGroup(Address.group(group), net, op == Frame.CONTROL_JOIN, version) && !from.peer) {
+				relayGroup(op, Address.group(group), net, version);
+			}
+		} else if(op == Frame.CONTROL_SYNC_REQUEST) {
+			from.mirror = true;
+			log.info("Shadow CCS at " + from.socket.getRemoteSocketAddress() + " is mirroring this one");
+			sendFirewall(from, null);
+		} else {
+			log.debug(() -> "Ignoring control frame op " + op);
+		}
+	}
+	
+	// Applies a join or leave from net's CAS unless a newer one already was. The CAS sends each on all its links and
+	// again whenever a link comes up, so they can arrive twice or out of order. True if it was news
+	private boolean applyGroup(int group, int net, boolean join, long version) {
+		clientsLock.lock();
+		try {
+			Map<Integer, Long> versions = groupVersions.computeIfAbsent(net, k -> new HashMap<>());
+			Long last = versions.get(group);
+			if(last != null && version <= last) {
+				return false;
+			}
+			versions.put(group, version);
+			int[] nets = groupNets.getOrDefault(group, NO_NETS);
+			int at = indexOf(nets, net);
+			if(join && at < 0) {
+				nets = Arrays.copyOf(nets, nets.length + 1);
+				nets[nets.length - 1] = net;
+				groupNets.put(group, nets);
+				log.info("Network " + net + " joined group " + Address.toString(group));
+			} else if(!join && at >= 0) {
+				if(nets.length == 1) {
+					groupNets.remove(group);
+				} else {
+					int[] left = new int[nets.length - 1];
+					System.arraycopy(nets, 0, left, 0, at);
+					System.arraycopy(nets, at + 1, left, at, left.length - at);
+					groupNets.put(group, left);
 				}
-				
-				int srcNet;
-				int dstNet;
-				try {
-					srcNet = Integer.parseInt(parts[0]);
-					dstNet = Integer.parseInt(parts[1]);
-				} catch(NumberFormatException e) {
-					log("Skipping firewall line with bad nets: " + line);
+				log.info("Network " + net + " left group " + Address.toString(group));
+			}
+			return true;
+		} finally {
+			clientsLock.unlock();
+		}
+	}
+	
+	private static final int[] NO_NETS = new int[0];
+	
+	private static int indexOf(int[] nets, int net) {
+		for(int i = 0; i < nets.length; i++) {
+			if(nets[i] == net) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	// The CAS of net is gone, it leaves all its groups. Called with clientsLock held
+	private void dropGroups(int net) {
+		Map<Integer, Long> versions = groupVersions.get(net);
+		if(versions == null) {
+			return;
+		}
+		for(int group : new ArrayList<>(versions.keySet())) {
+			if(indexOf(groupNets.getOrDefault(group, NO_NETS), net) >= 0) {
+				long version = versions.get(group) + 1;
+				applyGroup(group, net, false, version);
+				relayGroup(Frame.CONTROL_LEAVE, group, net, version);
+			}
+		}
+	}
+	
+	// Passes a change for one of this shard's networks to the other shards, whose CAS switches' group frames then
+	// come here for it
+	private void relayGroup(byte op, int group, int net, long version) {
+		if(peers == null) {
+			return;
+		}
+		Frame frame = CASSwitch.groupFrame(op, group, net, version);
+		for(PeerTrunk peer : peers) {
+			if(peer != null && peer.up) {
+				peer.sendControl(frame);
+			}
+		}
+	}
+	
+	// Every join and leave of this shard's networks, for a peer trunk that just came up
+	private void sendGroups(PeerTrunk to) {
+		List<Frame> frames = new ArrayList<>();
+		clientsLock.lock();
+		try {
+			for(Map.Entry<Integer, Map<Integer, Long>> byNet : groupVersions.entrySet()) {
+				int net = byNet.getKey();
+				if(shards.ownerOf(net) != shardId) {
 					continue;
 				}
-				
-				String action = parts[2].toLowerCase();
-				boolean isBlock = action.startsWith("block") || action.startsWith("deny") || action.equals("0");
-				
-				if(srcNet >= 0 && srcNet < MAX_NET && dstNet >= 0 && dstNet < MAX_NET) {
-					firewallBlock[srcNet][dstNet] = isBlock;
-					count++;
-				} else {
-					log("Skipping firewall line with out of range nets: " + line);
+				for(Map.Entry<Integer, Long> e : byNet.getValue().entrySet()) {
+					boolean member = indexOf(groupNets.getOrDefault(e.getKey(), NO_NETS), net) >= 0;
+					frames.add(CASSwitch.groupFrame(member ? Frame.CONTROL_JOIN : Frame.CONTROL_LEAVE, e.getKey(), net, e.getValue()));
 				}
 			}
-			log("Loaded " + count + " firewall rules from " + filename);
-		} catch(IOException e) {
-			log("Could not load firewall rules from " + filename + ": " + e.getMessage());
-			log("Defaulting to no firewall.");
+		} finally {
+			clientsLock.unlock();
+		}
+		for(Frame frame : frames) {
+			to.sendControl(frame);
 		}
 	}
 	
-	// Checks if blocked
-	private boolean isBlocked(int srcNet, int dstNet) {
-		if(srcNet < 0 || srcNet >= MAX_NET || dstNet < 0 || dstNet >= MAX_NET) {
-			return false;
-		}
-		return firewallBlock[srcNet][dstNet];
+	boolean isRunning() {
+		return running;
 	}
 	
 	// Shuts down
 	public void shutdown() {
 		running = false;
+		if(firewallWatcher != null) {
+			firewallWatcher.stop();
+		}
+		closePeers();
+	}
+	
+	private void closePeers() {
+		if(peers != null) {
+			for(PeerTrunk peer : peers) {
+				if(peer != null) {
+					peer.close();
+				}
+			}
+		}
+	}
+	
+	// Sets up one accepted CAS link and handles it until it closes
+	private void serve(Socket s) {
+		ClientHandler handler;
+		try {
+			s.setTcpNoDelay(true);
+			handler = new ClientHandler(s);
+		} catch(IOException e) {
+			log.warn("Could not set up CAS connection from " + s.getRemoteSocketAddress() + ": " + e.getMessage());
+			try {
+				s.close();
+			} catch(IOException ignored) {
+				
+			}
+			return;
+		}
+		clientsLock.lock();
+		try {
+			clients.add(handler);
+			// A simulated failure already closed the others, this link goes down with them
+			if(!running) {
+				s.close();
+			}
+		} catch(IOException ignored) {
+			
+		} finally {
+			clientsLock.unlock();
+		}
+		handler.run();
+	}
+	
+	// Stops at once and drops every trunk like a crashed process would, so the CAS switches fail over (ccsfail= option)
+	public void simulateFailure() {
+		log.warn("Simulating CCS failure");
+		running = false;
+		try {
+			if(serverSocket != null) serverSocket.close();
+		} catch(IOException ignored) {
+			
+		}
+		clientsLock.lock();
+		try {
+			for(ClientHandler handler : clients) {
+				try {
+					handler.socket.close();
+				} catch(IOException ignored) {
+					
+				}
+			}
+		} finally {
+			clientsLock.unlock();
+		}
+		closePeers();
 	}
 	
-	// Helper log
-	private void log(String msg) {
-		System.out.println("[CCS] " + msg);
+	// Dumps the captured frames to a pcap file, ports are the CAS network ids
+	public void exportCapture(String fileName) {
+		try {
+			int n = frameBuffer.exportPcap(fileName);
+			log.info("Wrote " + n + " captured frames to " + fileName);
+		} catch(IOException e) {
+			log.warn("Could not write capture " + fileName + ": " + e.getMessage());
+		}
 	}
 	
-	// Forwards the frame
-	private void forwardFrame(Frame frame, ClientHandler from) {
+	// Forwards the frame, to the link of the destination CAS's bundle its flow hashes to
+	private void forwardFrame(FrameView frame, ClientHandler from) {
 		int dstId = frame.getDst();
-		int dstNet = dstId / 16;
+		int dstNet = Address.net(dstId);
+		Bundle fromBundle = from == null ? null : from.bundle;
+		if(Address.isGroup(dstId)) {
+			multicast(frame, from);
+			return;
+		}
 		
-		ClientHandler dstHandler = networkTable.get(dstNet);
-		if(dstHandler != null && dstHandler != from) {
-			try {
-				dstHandler.sendFrame(frame);
-			} catch(IOException e) {
-				log("Failed to send to network " + dstNet);
+		Bundle dstBundle = networkTable.lookup(dstNet);
+		ClientHandler dstHandler = dstBundle == null || dstBundle == fromBundle ? null : dstBundle.pick(frame);
+		if(dstHandler != null) {
+			unicastHits.inc();
+			if(!dstHandler.accepts(frame)) {
+				featureDrops.inc();
+				log.debug(() -> "CAS for network " + dstNet + " can't take this frame's header, dropped " + frame);
+			} else if(!dstHandler.sendFrame(frame)) {
+				trunkSendFailures.inc();
+				log.debug(() -> "Egress queue to network " + dstNet + " dropped a frame");
 			}
 			return;
 		}
 		
-		synchronized(clients) {
+		floods.inc();
+		BufferPool.PooledBuffer shared = EgressWriter.prefixed(frame, BufferPool.HEAP); // one copy for every trunk
+		try {
 			for(ClientHandler other : clients) {
-				if(other == from) continue;
-				try {
-					other.sendFrame(frame);
-				} catch(IOException e) {
-					log("Flood failed to a connected CAS");
+				if(other == from || other.mirror || other.peer) continue;
+				// one link per bundle, and never back to the sender's
+				if(other.bundle != null && (other.bundle == fromBundle || other.bundle.pick(frame) != other)) continue;
+				if(!other.accepts(frame)) {
+					featureDrops.inc();
+				} else if(!other.sendShared(shared)) {
+					trunkSendFailures.inc();
+					log.debug("Egress queue dropped a flooded frame");
+				}
+			}
+		} finally {
+			shared.release();
+		}
+	}
+	
+	// Sends a group frame down to each network with members but the sender's, whose CAS delivered it already, on one
+	// link of its bundle. Every queue shares one copy. Networks of other shards get it once per shard over its trunk,
+	// and a frame from another shard only goes to this shard's networks
+	private void multicast(FrameView frame, ClientHandler from) {
+		int[] nets = groupNets.get(frame.getDst());
+		if(nets == null) {
+			return;
+		}
+		multicasts.inc();
+		Bundle fromBundle = from == null ? null : from.bundle;
+		boolean fromPeer = from != null && from.peer;
+		boolean[] sentToShard = null;
+		BufferPool.PooledBuffer shared = EgressWriter.prefixed(frame, BufferPool.HEAP);
+		try {
+			for(int net : nets) {
+				int owner = shards == null ? 0 : shards.ownerOf(net);
+				if(owner != 0 && owner != shardId) {
+					if(fromPeer) {
+						continue;
+					}
+					if(sentToShard == null) {
+						sentToShard = new boolean[peers.length];
+					}
+					if(!sentToShard[owner]) {
+						sentToShard[owner] = true;
+						if(!peers[owner].send(frame, shared)) {
+							peerDrops.inc();
+							log.debug(() -> "Trunk to shard " + owner + " is down or full, dropped group frame " + frame);
+						}
+					}
+					continue;
+				}
+				Bundle bundle = networkTable.lookup(net);
+				ClientHandler link = bundle == null || bundle == fromBundle ? null : bundle.pick(frame);
+				if(link == null) {
+					continue;
+				}
+				if(!link.accepts(frame)) {
+					featureDrops.inc();
+				} else if(!link.sendShared(shared)) {
+					trunkSendFailures.inc();
+					log.debug(() -> "Egress queue to network " + net + " dropped a group frame");
+				}
+			}
+		} finally {
+			shared.release();
+		}
+	}
+	
+	// Sends a frame from one of our CAS switches on its way, to the shard owning its network or out of this one
+	private void route(FrameView frame, ClientHandler from) {
+		if(shards != null) {
+			int owner = shards.ownerOf(Address.net(frame.getDst()));
+			if(owner != 0 && owner != shardId) {
+				PeerTrunk peer = peers[owner];
+				if(!peer.send(frame)) {
+					peerDrops.inc();
+					log.debug(() -> "Trunk to shard " + owner + " is down or full, dropped " + frame);
 				}
+				return;
 			}
 		}
+		forwardFrame(frame, from);
 	}
 	
 	// Handles the frame from CAS
-	private void handleFrameFromCAS(Frame frame, ClientHandler from) {
+	private void handleFrameFromCAS(FrameView frame, ClientHandler from) {
 		int srcId = frame.getSrc();
 		int dstId = frame.getDst();
-		int srcNet = srcId / 16;
-		int dstNet = dstId / 16;
+		int srcNet = Address.net(srcId);
+		int dstNet = Address.net(dstId);
 		
-		log("Got frame from CAS net=" + from.networkId + " " + frame.toString());
+		log.trace(() -> "Got frame from CAS net=" + from.networkId + " " + frame.toString());
 		
 		if(frame.isAck()) {
-			forwardFrame(frame, from);
+			route(frame, from);
 			return;
 		}
 		
-		if(isBlocked(srcNet, dstNet)) {
-			log("Firewall BLOCKED traffic " + srcNet + " to " + dstNet + " (srcId=" + srcId + ", dst=" + dstId + ")");
+		if(isBlocked(srcId, dstId, frame.getDataLength())) {
+			firewallBlocks.inc();
+			log.debug(() -> "Firewall BLOCKED traffic " + srcNet + " to " + dstNet + " (src=" + Address.toString(srcId) + ", dst=" + Address.toString(dstId) + ")");
+			if(Address.isGroup(dstId)) {
+				return; // nobody waits on a group frame, so no NACK
+			}
 			
 			int ackSrcId = dstId;
 			int ackDstId = srcId;
 			
-			Frame nack = Frame.ackFrame(ackSrcId, ackDstId, Frame.ACK_FIREWALL);
+			Frame nack = Frame.ackFrame(ackSrcId, ackDstId, Frame.ACK_FIREWALL, frame.getSeq());
 			
-			forwardFrame(nack, null);
+			BufferPool.PooledBuffer pb = BufferPool.HEAP.acquire(nack.encodedLength());
+			try {
+				int len = nack.encodeTo(pb.buffer());
+				route(FrameView.wrap(pb.buffer(), 0, len), null);
+			} finally {
+				pb.release();
+			}
 			return;
 		}
-		forwardFrame(frame, from);
+		route(frame, from);
 	}
 	
 	private class ClientHandler implements Runnable {
 		private final Socket socket;
 		private final DataInputStream in;
-		private final DataOutputStream out;
+		private final EgressQueue egress = new EgressQueue(egressCapacity, overflowPolicy, blockTimeoutMs);
 		
 		private Integer networkId = null;
+		private volatile Bundle bundle; // joined on the first frame that tells the network, null until then
+		private volatile boolean mirror; // a shadow CCS's state link, gets no traffic
+		private volatile boolean peer; // another shard's PeerTrunk, its frames were checked there and only go to our CAS switches
+		private volatile int features; // HELLO_* bits the CAS answered our CONTROL_HELLO with
+		private volatile long firewallVersion = -1; // what the peer last reported or was sent, -1 unknown
+		private final FrameView view = new FrameView(); // reused for every frame read on this trunk
+		
+		// Per port metrics, removed again when the trunk closes
+		private final String portNo = String.valueOf(nextPortNo.incrementAndGet());
+		private final Metrics.Counter framesIn = Metrics.REGISTRY.counter("ccs_port_frames_in_total", "Frames received on a CAS trunk", "switch", metricsId, "port", portNo);
+		private final Metrics.Counter bytesIn = Metrics.REGISTRY.counter("ccs_port_bytes_in_total", "Frame bytes received on a CAS trunk", "switch", metricsId, "port", portNo);
+		private final Metrics.Counter framesOut = Metrics.REGISTRY.counter("ccs_port_frames_out_total", "Frames queued out of a CAS trunk", "switch", metricsId, "port", portNo);
+		private final Metrics.Counter bytesOut = Metrics.REGISTRY.counter("ccs_port_bytes_out_total", "Frame bytes queued out of a CAS trunk", "switch", metricsId, "port", portNo);
+		{
+			Metrics.REGISTRY.gauge("ccs_port_egress_depth", "Frames waiting in a CAS trunk's egress queue", egress::depth, "switch", metricsId, "port", portNo);
+			Metrics.REGISTRY.gauge("ccs_port_egress_drops", "Frames a CAS trunk's egress queue dropped", egress::drops, "switch", metricsId, "port", portNo);
+		}
 		
 		public ClientHandler(Socket socket) throws IOException {
 			this.socket = socket;
-			this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
-			this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), CASSwitch.TRUNK_READ_BUFFER));
+			new EgressWriter("CCS-" + port + "-trunk-writer", egress, socket.getOutputStream(), trunkBatchBytes, trunkLingerMicros).start();
+			// First thing on every trunk, a CAS that knows extended addressing or fragments answers it
+			sendControl(Frame.helloFrame(Frame.HELLO_ALL));
+		}
+		
+		// False for a frame with extended addresses or fragments when the CAS never said it understands them
+		boolean accepts(FrameView frame) {
+			int needs = frame.helloBits();
+			return (features & needs) == needs;
 		}
 		
 		@Override
@@ -214,16 +709,36 @@ public class CCSSwitch implements Runnable {
 						break;
 					}
 					
-					byte[] recievedBytes = in.readNBytes(frameLen);
-					Frame frame = Frame.fromBytes(recievedBytes);
-					
-					int srcId = frame.getSrc();
-					int srcNet = srcId / 16;
-					
-					learnNetwork(srcNet, this);
-					frameBuffer.add(frame);
-					
-					handleFrameFromCAS(frame, this);
+					BufferPool.PooledBuffer pb = BufferPool.HEAP.acquire(frameLen);
+					try {
+						ByteBuffer buf = pb.buffer();
+						in.readFully(buf.array(), buf.arrayOffset(), frameLen);
+						FrameView frame = view.reset(buf, 0, frameLen);
+						framesIn.inc();
+						bytesIn.add(frameLen);
+						
+						if(frame.isControl()) {
+							handleControl(frame, this);
+							continue;
+						}
+						
+						int srcId = frame.getSrc();
+						int srcNet = Address.net(srcId);
+						
+						if(peer) {
+							frameBuffer.record(srcNet, frame);
+							log.trace(() -> "Got frame from shard peer " + frame);
+							forwardFrame(frame, this);
+							continue;
+						}
+						
+						learnNetwork(srcNet);
+						frameBuffer.record(srcNet, frame);
+						
+						handleFrameFromCAS(frame, this);
+					} finally {
+						pb.release();
+					}
 				}
 			} catch(IOException e) {
 				
@@ -232,42 +747,259 @@ public class CCSSwitch implements Runnable {
 			}
 		}
 		
-		// Learns the network from networkID
-		private void learnNetwork(int netId, ClientHandler handler) {
-			networkTable.put(netId, handler);
-			
-			if(networkId == null) {
+		// Learns the network from networkID, for the bundle this link belongs to
+		private void learnNetwork(int netId) {
+			if(bundle == null) {
+				joinBundle(netId);
+			}
+			networkTable.learn(netId, bundle);
+		}
+		
+		// Adds this link to the bundle of its CAS's network, the first link of a CAS starts it
+		private void joinBundle(int netId) {
+			clientsLock.lock();
+			try {
+				Bundle b = bundles.get(netId);
+				if(b == null) {
+					b = new Bundle(netId);
+					bundles.put(netId, b);
+					log.info("Learned CAS for network " + netId + " on this connection.");
+				} else {
+					log.info("Added a trunk link for network " + netId + ", " + (b.size() + 1) + " in its bundle");
+				}
+				b.add(this);
 				networkId = netId;
-				log("Learned CAS for network " + networkId + " on this connection.");
+				bundle = b;
+			} finally {
+				clientsLock.unlock();
 			}
 		}
 		
 		// Sends the frame
-		public void sendFrame(Frame frame) throws IOException {
-			byte[] bytes = frame.toBytes();
-			out.writeShort(bytes.length);
-			out.write(bytes);
-			out.flush();
+		// Queues a frame for this CAS, false if its egress queue dropped it
+		public boolean sendFrame(FrameView frame) {
+			if(!EgressWriter.enqueue(egress, frame, features)) {
+				return false;
+			}
+			framesOut.inc();
+			bytesOut.add(frame.length());
+			return true;
+		}
+		
+		// Queues a frame other trunks' queues share, see EgressWriter.prefixed
+		public boolean sendShared(BufferPool.PooledBuffer prefixed) {
+			if(!EgressWriter.enqueueShared(egress, prefixed, features)) {
+				return false;
+			}
+			framesOut.inc();
+			bytesOut.add(prefixed.buffer().limit() - 2);
+			return true;
+		}
+		
+		// Queues a frame made here, like a heartbeat echo
+		private void sendControl(Frame frame) {
+			BufferPool.PooledBuffer pb = BufferPool.HEAP.acquire(frame.encodedLength());
+			try {
+				int len = frame.encodeTo(pb.buffer());
+				EgressWriter.enqueue(egress, FrameView.wrap(pb.buffer(), 0, len), features);
+			} finally {
+				pb.release();
+			}
 		}
 		
 		// Closes the sockets
 		private void cleanup() {
+			egress.close();
+			log.info("Egress to port " + portNo + " (" + socket.getRemoteSocketAddress() + "): " + egress.stats());
+			for(String name : PORT_METRICS) {
+				Metrics.REGISTRY.remove(name, "switch", metricsId, "port", portNo);
+			}
 			try {
 				socket.close();
 			} catch(IOException ignored) {
 				
 			}
 			
-			if(networkId != null) {
-				ClientHandler current = networkTable.get(networkId);
-				if(current == this) {
-					networkTable.remove(networkId);
-					log("CAS for network " + networkId + " disconnected");
+			clientsLock.lock();
+			try {
+				clients.remove(this);
+				// The bundle stays the network's port while it has a link left, their flows move over to it
+				if(bundle != null && bundle.remove(this) == 0) {
+					bundles.remove(networkId, bundle);
+					dropGroups(networkId);
+					if(networkTable.remove(networkId, bundle)) {
+						log.info("CAS for network " + networkId + " disconnected");
+					}
+				} else if(bundle != null) {
+					log.info("Trunk link for network " + networkId + " closed, " + bundle.size() + " left in its bundle");
 				}
+			} finally {
+				clientsLock.unlock();
 			}
-			
-			synchronized(clients) {
-				clients.remove(this);
+		}
+	}
+	
+	// The trunk links of one CAS, one logical port. A frame goes down the link its (src, dst) flow hashes to, so a
+	// flow stays in order, and when a link closes its flows hash over the ones left
+	private static final class Bundle {
+		private final int networkId;
+		private volatile ClientHandler[] links = new ClientHandler[0]; // copied on change, guarded by clientsLock
+		
+		Bundle(int networkId) {
+			this.networkId = networkId;
+		}
+		
+		// The link for frame's flow, null once the last one closed
+		ClientHandler pick(FrameView frame) {
+			ClientHandler[] l = links;
+			if(l.length == 0) {
+				return null;
+			}
+			return l.length == 1 ? l[0] : l[Integer.remainderUnsigned(frame.flowHash(), l.length)];
+		}
+		
+		int size() {
+			return links.length;
+		}
+		
+		void add(ClientHandler link) {
+			ClientHandler[] l = Arrays.copyOf(links, links.length + 1);
+			l[l.length - 1] = link;
+			links = l;
+		}
+		
+		// Links left
+		int remove(ClientHandler link) {
+			List<ClientHandler> l = new ArrayList<>(Arrays.asList(links));
+			l.remove(link);
+			links = l.toArray(new ClientHandler[0]);
+			return links.length;
+		}
+		
+		@Override
+		public String toString() {
+			return "network " + networkId + " (" + links.length + " links)";
+		}
+	}
+	
+	// Trunk to the CCS of another shard, frames for its networks go out here. Each attempt tries the next of the
+	// shard's primary and shadow, so traffic follows a shard that failed over. Only control frames come back
+	private class PeerTrunk implements Runnable {
+		private static final int PEER_CONNECT_TIMEOUT_MS = 500;
+		
+		private final ShardMap.Shard shard;
+		private volatile Socket socket;
+		private volatile EgressQueue egress;
+		private volatile boolean up; // connected and the peer's hello answered
+		private volatile int features; // HELLO_* bits the peer offered
+		private final Metrics.Counter framesOut;
+		
+		PeerTrunk(ShardMap.Shard shard) {
+			this.shard = shard;
+			this.framesOut = Metrics.REGISTRY.counter("ccs_peer_frames_out_total", "Frames sent on to the CCS of another shard", "switch", metricsId, "shard", String.valueOf(shard.id()));
+		}
+		
+		void start() {
+			Thread t = new Thread(this, "CCS-" + port + "-peer-" + shard.id());
+			t.setDaemon(true);
+			t.start();
+		}
+		
+		@Override
+		public void run() {
+			long backoffMs = 0;
+			for(int attempt = 0; running; attempt++) {
+				int peerPort = shard.port() + (attempt % 2); // primary, then its shadow
+				Socket s = new Socket();
+				EgressQueue queue = new EgressQueue(egressCapacity, overflowPolicy, blockTimeoutMs);
+				try {
+					s.connect(new InetSocketAddress(shard.host(), peerPort), PEER_CONNECT_TIMEOUT_MS);
+					s.setTcpNoDelay(true);
+					socket = s;
+					egress = queue;
+					features = 0;
+					new EgressWriter("CCS-" + port + "-peer-writer-" + shard.id(), queue, s.getOutputStream(), trunkBatchBytes, trunkLingerMicros).start();
+					backoffMs = 0;
+					listen(s, peerPort);
+				} catch(IOException | IllegalArgumentException e) {
+					if(up && running) {
+						log.warn("Lost trunk to shard " + shard.id() + " at " + shard.host() + ":" + peerPort + ": " + (e instanceof EOFException ? "closed" : e.getMessage()));
+					}
+				} finally {
+					up = false;
+					queue.close();
+					try {
+						s.close();
+					} catch(IOException ignored) {
+						
+					}
+				}
+				if(attempt % 2 == 1) {
+					backoffMs = backoffMs == 0 ? CASSwitch.INITIAL_BACKOFF_MS : Math.min(backoffMs * 2, CASSwitch.MAX_BACKOFF_MS);
+					try {
+						Thread.sleep(backoffMs);
+					} catch(InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}
+		
+		// The peer opens with its hello, answering it and naming our shard makes the link a peer trunk there
+		private void listen(Socket s, int peerPort) throws IOException {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+			FrameView view = new FrameView();
+			while(running) {
+				byte[] bytes = new byte[in.readUnsignedShort()];
+				in.readFully(bytes);
+				view.reset(ByteBuffer.wrap(bytes), 0, bytes.length);
+				if(view.isControl() && view.controlOp() == Frame.CONTROL_HELLO && view.getDataLength() >= 2 && !up) {
+					features = bytes[view.dataOffset() + 1] & Frame.HELLO_ALL;
+					sendControl(Frame.helloFrame(features));
+					sendControl(Frame.controlFrame(Frame.CONTROL_PEER, new byte[] {(byte) (shardId >>> 8), (byte) shardId}));
+					up = true;
+					log.info("Trunk to shard " + shard.id() + " at " + shard.host() + ":" + peerPort + " is up");
+					sendGroups(this);
+				}
+			}
+		}
+		
+		// Queues a frame for the peer, false if the trunk is down, the peer can't read it or the queue dropped it
+		boolean send(FrameView frame) {
+			return send(frame, null);
+		}
+		
+		// shared is frame already copied for a fan-out, see EgressWriter.prefixed, null copies it here
+		boolean send(FrameView frame, BufferPool.PooledBuffer shared) {
+			int needs = frame.helloBits();
+			if(!up || (features & needs) != needs) {
+				return false;
+			}
+			if(!(shared != null ? EgressWriter.enqueueShared(egress, shared, features) : EgressWriter.enqueue(egress, frame, features))) {
+				return false;
+			}
+			framesOut.inc();
+			return true;
+		}
+		
+		private void sendControl(Frame frame) {
+			BufferPool.PooledBuffer pb = BufferPool.HEAP.acquire(frame.encodedLength());
+			try {
+				int len = frame.encodeTo(pb.buffer());
+				EgressWriter.enqueue(egress, FrameView.wrap(pb.buffer(), 0, len), features);
+			} finally {
+				pb.release();
+			}
+		}
+		
+		void close() {
+			Socket s = socket;
+			if(s != null) {
+				try {
+					s.close();
+				} catch(IOException ignored) {
+					
+				}
 			}
 		}
 	}
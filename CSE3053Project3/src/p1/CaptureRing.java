@@ -0,0 +1,171 @@
+package p1;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Fixed size frame capture shared by all handler threads of a switch, the oldest frames are overwritten
+// Producers claim a slot with one atomic increment and never block, memory use is fixed at construction
+public class CaptureRing {
+	// pcap link type for our frames, each packet is a 2 byte port id followed by the encoded frame
+	public static final int LINKTYPE_USER0 = 147;
+	private static final int PCAP_MAGIC_NANOS = 0xa1b23c4d;
+	private static final long IN_PROGRESS = -1;
+
+	private final int capacity;
+	private final int mask;
+	private final int snapLen;
+	private final byte[] data;
+	private final int[] lengths;
+	private final int[] captured;
+	private final int[] ports;
+	private final long[] timestamps;
+	private final AtomicLongArray published; // ticket stored in each slot, IN_PROGRESS while being written
+	private final AtomicLong head = new AtomicLong();
+
+	// Wall clock in nanoseconds from one currentTimeMillis plus nanoTime deltas
+	private final long baseEpochNanos = System.currentTimeMillis() * 1_000_000L;
+	private final long baseNanoTime = System.nanoTime();
+
+	// capacity is rounded up to a power of two, frames longer than snapLen are truncated
+	public CaptureRing(int capacity, int snapLen) {
+		int cap = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+		this.capacity = cap;
+		this.mask = cap - 1;
+		this.snapLen = snapLen;
+		this.data = new byte[cap * snapLen];
+		this.lengths = new int[cap];
+		this.captured = new int[cap];
+		this.ports = new int[cap];
+		this.timestamps = new long[cap];
+		this.published = new AtomicLongArray(cap);
+		for(int i = 0; i < cap; i++) {
+			published.set(i, IN_PROGRESS);
+		}
+	}
+
+	// Records one frame seen on a port
+	public void record(int portId, ByteBuffer buf, int off, int len) {
+		long ticket = head.getAndIncrement();
+		int slot = (int) (ticket & mask);
+		int capLen = Math.min(len, snapLen);
+
+		published.set(slot, IN_PROGRESS);
+		VarHandle.storeStoreFence(); // the plain stores below can't move above IN_PROGRESS
+		buf.get(off, data, slot * snapLen, capLen);
+		lengths[slot] = len;
+		captured[slot] = capLen;
+		ports[slot] = portId;
+		timestamps[slot] = baseEpochNanos + (System.nanoTime() - baseNanoTime);
+		published.set(slot, ticket);
+	}
+
+	public void record(int portId, FrameView frame) {
+		record(portId, frame.buffer(), frame.offset(), frame.length());
+	}
+
+	// Frames recorded since start, including ones already overwritten
+	public long recorded() {
+		return head.get();
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	// Receives frames from forEachSince, buf is only valid during the call
+	public interface FrameVisitor {
+		void visit(ByteBuffer buf, int off, int len);
+	}
+
+	// Visits the whole frames recorded after sinceNanos (a System.nanoTime value), oldest first
+	// Returns how many were visited, slots overwritten while visiting are skipped
+	public int forEachSince(long sinceNanos, FrameVisitor visitor) {
+		long since = baseEpochNanos + (sinceNanos - baseNanoTime);
+		long end = head.get();
+		long start = Math.max(0, end - capacity);
+		byte[] copy = new byte[snapLen];
+		ByteBuffer view = ByteBuffer.wrap(copy);
+		int visited = 0;
+
+		for(long ticket = start; ticket < end; ticket++) {
+			int slot = (int) (ticket & mask);
+			if(published.get(slot) != ticket) {
+				continue;
+			}
+			long ts = timestamps[slot];
+			int len = lengths[slot];
+			int capLen = captured[slot];
+			if(ts <= since || capLen < len) {
+				continue;
+			}
+			System.arraycopy(data, slot * snapLen, copy, 0, capLen);
+			VarHandle.loadLoadFence(); // the plain loads above can't move below the re-check
+			if(published.get(slot) != ticket) {
+				continue;
+			}
+			visitor.visit(view, 0, len);
+			visited++;
+		}
+		return visited;
+	}
+
+	// False once frames recorded after sinceNanos have been overwritten, so forEachSince would miss some
+	public boolean holdsSince(long sinceNanos) {
+		long end = head.get();
+		if(end <= capacity) {
+			return true;
+		}
+		int oldest = (int) ((end - capacity) & mask);
+		return timestamps[oldest] <= baseEpochNanos + (sinceNanos - baseNanoTime);
+	}
+
+	// Writes what the ring holds, oldest first, as a nanosecond pcap file
+	// Slots overwritten while exporting are skipped
+	public int exportPcap(String fileName) throws IOException {
+		long end = head.get();
+		long start = Math.max(0, end - capacity);
+		byte[] copy = new byte[snapLen];
+		int written = 0;
+
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName)))) {
+			out.writeInt(PCAP_MAGIC_NANOS);
+			out.writeShort(2);
+			out.writeShort(4);
+			out.writeInt(0); // thiszone
+			out.writeInt(0); // sigfigs
+			out.writeInt(snapLen + 2);
+			out.writeInt(LINKTYPE_USER0);
+
+			for(long ticket = start; ticket < end; ticket++) {
+				int slot = (int) (ticket & mask);
+				if(published.get(slot) != ticket) {
+					continue;
+				}
+				int len = lengths[slot];
+				int capLen = captured[slot];
+				int port = ports[slot];
+				long ts = timestamps[slot];
+				System.arraycopy(data, slot * snapLen, copy, 0, capLen);
+				VarHandle.loadLoadFence(); // the plain loads above can't move below the re-check
+				if(published.get(slot) != ticket) {
+					continue; // a producer lapped us while copying
+				}
+
+				out.writeInt((int) (ts / 1_000_000_000L));
+				out.writeInt((int) (ts % 1_000_000_000L));
+				out.writeInt(capLen + 2);
+				out.writeInt(len + 2);
+				out.writeShort(port);
+				out.write(copy, 0, capLen);
+				written++;
+			}
+		}
+		return written;
+	}
+}
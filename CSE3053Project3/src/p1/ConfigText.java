@@ -0,0 +1,33 @@
+package p1;
+
+// Number fields of the hand-written config files (firewall rules, shard map, group list), a bad one throws an
+// IllegalArgumentException that the file's parser prefixes with the line
+final class ConfigText {
+	private ConfigText() {
+	}
+
+	// <n> within min..max
+	static int number(String s, int min, int max) {
+		int n;
+		try {
+			n = Integer.parseInt(s);
+		} catch(NumberFormatException e) {
+			throw new IllegalArgumentException("not a number: " + s);
+		}
+		if(n < min || n > max) {
+			throw new IllegalArgumentException(n + " is out of range " + min + "-" + max);
+		}
+		return n;
+	}
+
+	// <n> or <a>-<b> within min..max as {lo, hi}, a leading minus belongs to the number
+	static int[] range(String s, int min, int max) {
+		int dash = s.indexOf('-', 1);
+		int lo = number(dash < 0 ? s : s.substring(0, dash), min, max);
+		int hi = dash < 0 ? lo : number(s.substring(dash + 1), min, max);
+		if(lo > hi) {
+			throw new IllegalArgumentException("empty range " + s);
+		}
+		return new int[] {lo, hi};
+	}
+}
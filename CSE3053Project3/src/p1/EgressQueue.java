@@ -0,0 +1,189 @@
+package p1;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Bounded queue of length-prefixed frames waiting to go out of one port
+// Any thread can offer, one writer drains it, a full queue is handled by the overflow policy
+public class EgressQueue {
+	public enum OverflowPolicy {
+		DROP_TAIL, // drop the frame being offered
+		DROP_HEAD, // drop the oldest queued frame to make room
+		BLOCK; // wait up to the block timeout, then drop the frame being offered
+
+		// Parses the overflow= option, e.g. drop-tail
+		public static OverflowPolicy parse(String value) {
+			return valueOf(value.trim().toUpperCase().replace('-', '_'));
+		}
+	}
+
+	public static final int DEFAULT_CAPACITY = 1024;
+	public static final long DEFAULT_BLOCK_MS = 100;
+
+	private final BufferPool.PooledBuffer[] ring;
+	private final OverflowPolicy policy;
+	private final long blockTimeoutNanos;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	private int head = 0;
+	private int count = 0;
+	private boolean closed = false;
+
+	private final LongAdder enqueued = new LongAdder();
+	private final LongAdder drops = new LongAdder();
+	private volatile int maxDepth = 0;
+
+	public EgressQueue(int capacity, OverflowPolicy policy, long blockTimeoutMs) {
+		if(capacity < 1) {
+			throw new IllegalArgumentException("egress queue capacity must be at least 1");
+		}
+		this.ring = new BufferPool.PooledBuffer[capacity];
+		this.policy = policy;
+		this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMs);
+	}
+
+	// Queues a frame, the queue owns pb afterwards and releases it if it gets dropped
+	// mayBlock is false for callers that must not wait, like an event loop feeding its own queue
+	public boolean offer(BufferPool.PooledBuffer pb, boolean mayBlock) {
+		lock.lock();
+		try {
+			if(!closed && count == ring.length) {
+				if(policy == OverflowPolicy.DROP_HEAD) {
+					dropOldest();
+				} else if(policy == OverflowPolicy.BLOCK && mayBlock) {
+					long wait = blockTimeoutNanos;
+					while(!closed && count == ring.length && wait > 0) {
+						try {
+							wait = notFull.awaitNanos(wait);
+						} catch(InterruptedException e) {
+							Thread.currentThread().interrupt();
+							break;
+						}
+					}
+				}
+			}
+			if(closed || count == ring.length) {
+				drops.increment();
+				pb.release();
+				return false;
+			}
+
+			ring[(head + count) % ring.length] = pb;
+			count++;
+			if(count > maxDepth) {
+				maxDepth = count;
+			}
+			enqueued.increment();
+			notEmpty.signal();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void dropOldest() {
+		BufferPool.PooledBuffer old = ring[head];
+		ring[head] = null;
+		head = (head + 1) % ring.length;
+		count--;
+		drops.increment();
+		old.release();
+	}
+
+	// Next frame or null if the queue is empty
+	public BufferPool.PooledBuffer poll() {
+		lock.lock();
+		try {
+			return count == 0 ? null : removeFirst();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Waits up to timeoutNanos for a frame, a negative timeout waits until one arrives or the queue closes
+	public BufferPool.PooledBuffer take(long timeoutNanos) throws InterruptedException {
+		lock.lock();
+		try {
+			long wait = timeoutNanos;
+			while(count == 0 && !closed) {
+				if(timeoutNanos < 0) {
+					notEmpty.await();
+				} else if(wait <= 0) {
+					return null;
+				} else {
+					wait = notEmpty.awaitNanos(wait);
+				}
+			}
+			return count == 0 ? null : removeFirst();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private BufferPool.PooledBuffer removeFirst() {
+		BufferPool.PooledBuffer pb = ring[head];
+		ring[head] = null;
+		head = (head + 1) % ring.length;
+		count--;
+		notFull.signal();
+		return pb;
+	}
+
+	// Rejects new frames and releases the queued ones
+	public void close() {
+		lock.lock();
+		try {
+			closed = true;
+			while(count > 0) {
+				removeFirst().release();
+			}
+			notEmpty.signalAll();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public boolean isClosed() {
+		lock.lock();
+		try {
+			return closed;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Counters
+	public int depth() {
+		lock.lock();
+		try {
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int capacity() {
+		return ring.length;
+	}
+
+	public int maxDepth() {
+		return maxDepth;
+	}
+
+	public long enqueued() {
+		return enqueued.sum();
+	}
+
+	public long drops() {
+		return drops.sum();
+	}
+
+	public String stats() {
+		return "depth=" + depth() + " maxDepth=" + maxDepth + " enqueued=" + enqueued() + " drops=" + drops();
+	}
+}
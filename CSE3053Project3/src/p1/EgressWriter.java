@@ -0,0 +1,166 @@
+package p1;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+// Drains one port's EgressQueue onto its socket, a slow socket only backs up its own queue
+// Frames already queued are coalesced into one write of up to maxBatchBytes, and a batch can be held open
+// for lingerMicros to collect more (trunk batching)
+public class EgressWriter implements Runnable {
+	// Longest frame with its length prefix, every optional header field and a full payload
+	private static final int MAX_FRAME = 2 + Frame.HEADER_LEN + Frame.extLength(Frame.FLAG_SEQ | Frame.FLAG_CRC32C | Frame.FLAG_EXT_ADDR | Frame.FLAG_FRAG) + Frame.MAX_DATA;
+	public static final int DEFAULT_BATCH_BYTES = 16 * 1024;
+
+	private final String name;
+	private final EgressQueue queue;
+	private final OutputStream out;
+	private final int maxBatchBytes;
+	private final long lingerNanos;
+
+	private volatile long batchesWritten = 0;
+	private volatile long framesWritten = 0;
+
+	public EgressWriter(String name, EgressQueue queue, OutputStream out, int maxBatchBytes, long lingerMicros) {
+		if(maxBatchBytes < 1 || lingerMicros < 0) {
+			throw new IllegalArgumentException("batch size must be positive and linger not negative");
+		}
+		this.name = name;
+		this.queue = queue;
+		this.out = out;
+		this.maxBatchBytes = maxBatchBytes;
+		this.lingerNanos = TimeUnit.MICROSECONDS.toNanos(lingerMicros);
+	}
+
+	public void start() {
+		Thread t = new Thread(this, name);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	@Override
+	public void run() {
+		byte[] batch = new byte[Math.max(maxBatchBytes, MAX_FRAME)]; // a lone frame always fits
+		BufferPool.PooledBuffer carry = null; // frame that did not fit in the previous batch
+
+		try {
+			while(true) {
+				BufferPool.PooledBuffer pb = carry != null ? carry : queue.take(-1);
+				carry = null;
+				if(pb == null) {
+					return; // closed and drained
+				}
+
+				int len = append(batch, 0, pb);
+				int frames = 1;
+				long deadline = System.nanoTime() + lingerNanos;
+
+				while(len < maxBatchBytes) {
+					pb = queue.poll();
+					if(pb == null && lingerNanos > 0) {
+						long wait = deadline - System.nanoTime();
+						if(wait > 0) {
+							pb = queue.take(wait);
+						}
+					}
+					if(pb == null) {
+						break;
+					}
+					if(len + pb.buffer().limit() > batch.length) {
+						carry = pb;
+						break;
+					}
+					len = append(batch, len, pb);
+					frames++;
+				}
+
+				out.write(batch, 0, len);
+				out.flush();
+				batchesWritten++;
+				framesWritten += frames;
+			}
+		} catch(IOException e) {
+			// Closing the stream closes the socket, so the port's reader sees it and cleans up
+			try {
+				out.close();
+			} catch(IOException ignored) {
+
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			if(carry != null) {
+				carry.release();
+			}
+			queue.close();
+		}
+	}
+
+	// Copies one queued frame into the batch and releases it
+	private static int append(byte[] batch, int off, BufferPool.PooledBuffer pb) {
+		int n = pb.buffer().limit();
+		pb.buffer().get(0, batch, off, n);
+		pb.release();
+		return off + n;
+	}
+
+	// Queues a frame with its length prefix, false if the overflow policy dropped it
+	public static boolean enqueue(EgressQueue queue, FrameView frame) {
+		return queue.offer(prefixed(frame, BufferPool.HEAP), !NioEventLoop.onLoopThread());
+	}
+
+	// Copies a frame with its length prefix into a buffer from pool, the caller owns the one reference
+	public static BufferPool.PooledBuffer prefixed(FrameView frame, BufferPool pool) {
+		int len = frame.length();
+		BufferPool.PooledBuffer pb = pool.acquire(2 + len);
+		pb.buffer().putShort(0, (short) len);
+		pb.buffer().put(2, frame.buffer(), frame.offset(), len);
+		pb.buffer().limit(2 + len);
+		return pb;
+	}
+
+	// Queues another reference to a prefixed frame, the writers only read queued buffers so any number of ports can
+	// share one copy (fan-out). The caller keeps its own reference
+	public static boolean enqueueShared(EgressQueue queue, BufferPool.PooledBuffer prefixed) {
+		return queue.offer(prefixed.retain(), !NioEventLoop.onLoopThread());
+	}
+	
+	// The same three for a peer that answered CONTROL_HELLO with features, a v2 frame goes as v1 to one that left
+	// out HELLO_CRC32C
+	public static boolean enqueue(EgressQueue queue, FrameView frame, int features) {
+		return queue.offer(prefixed(frame, BufferPool.HEAP, features), !NioEventLoop.onLoopThread());
+	}
+	
+	public static BufferPool.PooledBuffer prefixed(FrameView frame, BufferPool pool, int features) {
+		if(!needsSum8(frame, features)) {
+			return prefixed(frame, pool);
+		}
+		int len = frame.length() - Frame.CRC32C_LEN;
+		BufferPool.PooledBuffer pb = pool.acquire(2 + len);
+		pb.buffer().putShort(0, (short) len);
+		Frame.toSum8(frame.buffer(), frame.offset(), frame.length(), pb.buffer(), 2);
+		pb.buffer().limit(2 + len);
+		return pb;
+	}
+	
+	// A peer that needs v1 gets its own copy instead of a share
+	public static boolean enqueueShared(EgressQueue queue, BufferPool.PooledBuffer prefixed, int features) {
+		FrameView frame = unprefixed(prefixed);
+		return needsSum8(frame, features) ? queue.offer(prefixed(frame, BufferPool.HEAP, features), !NioEventLoop.onLoopThread()) : enqueueShared(queue, prefixed);
+	}
+	
+	// True for a v2 frame going to a peer that never answered HELLO_CRC32C
+	public static boolean needsSum8(FrameView frame, int features) {
+		return (frame.getFlags() & Frame.FLAG_CRC32C) != 0 && (features & Frame.HELLO_CRC32C) == 0;
+	}
+	
+	// The frame inside a prefixed buffer
+	public static FrameView unprefixed(BufferPool.PooledBuffer prefixed) {
+		return FrameView.wrap(prefixed.buffer(), 2, prefixed.buffer().limit() - 2);
+	}
+
+	// Average frames per write so far, 1.0 means no coalescing happened
+	public double framesPerBatch() {
+		return batchesWritten == 0 ? 0 : (double) framesWritten / batchesWritten;
+	}
+}
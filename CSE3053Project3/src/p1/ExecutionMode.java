@@ -0,0 +1,66 @@
+package p1;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+
+// How a switch runs its per-connection handlers
+public enum ExecutionMode {
+	PLATFORM, // one platform thread per connection
+	VIRTUAL; // one virtual thread per connection, multiplexed on the carrier pool
+
+	// Parses the exec= option, anything unknown means platform
+	public static ExecutionMode parse(String value) {
+		if(value != null && value.trim().equalsIgnoreCase("virtual")) {
+			return VIRTUAL;
+		}
+		return PLATFORM;
+	}
+
+	// Caps the virtual thread carrier pool, only has an effect before the first virtual thread starts
+	public static void setCarrierThreads(int carriers) {
+		if(carriers < 1) {
+			throw new IllegalArgumentException("carrier threads must be at least 1");
+		}
+		System.setProperty("jdk.virtualThreadScheduler.parallelism", Integer.toString(carriers));
+		System.setProperty("jdk.virtualThreadScheduler.maxPoolSize", Integer.toString(carriers));
+	}
+
+	// True when this JVM can start virtual threads
+	public static boolean virtualThreadsSupported() {
+		return virtualFactory("probe-") != null;
+	}
+
+	// The mode this JVM will really use, virtual falls back to platform before Java 21
+	public ExecutionMode effective() {
+		if(this == VIRTUAL && !virtualThreadsSupported()) {
+			return PLATFORM;
+		}
+		return this;
+	}
+
+	// Executor that starts each handler on its own thread of this kind
+	public Executor newExecutor(String namePrefix) {
+		if(this == VIRTUAL) {
+			ThreadFactory factory = virtualFactory(namePrefix);
+			if(factory != null) {
+				return task -> factory.newThread(task).start();
+			}
+			Log.get("[" + namePrefix + "] ").warn("Virtual threads need Java 21+, using platform threads");
+		}
+		return task -> new Thread(task).start();
+	}
+
+	// Thread.ofVirtual().name(prefix, 0).factory(), looked up reflectively so the project still builds on older JDKs
+	private static ThreadFactory virtualFactory(String namePrefix) {
+		try {
+			Method ofVirtual = Thread.class.getMethod("ofVirtual");
+			Object builder = ofVirtual.invoke(null);
+			Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+			builder = builderType.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+			return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+		} catch(ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+}
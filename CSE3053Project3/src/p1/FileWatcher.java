@@ -0,0 +1,81 @@
+package p1;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+// Calls onChange when a file is written, created or renamed into place
+// Editors often save in several steps, so it waits until the file has been quiet for settleMs before calling
+public class FileWatcher implements Runnable {
+	public static final long DEFAULT_SETTLE_MS = 100;
+
+	private static final Log log = Log.get("[Watch] ");
+
+	private final Path file;
+	private final long settleMs;
+	private final Runnable onChange;
+	private WatchService watcher;
+
+	public FileWatcher(Path file, long settleMs, Runnable onChange) {
+		this.file = file.toAbsolutePath();
+		this.settleMs = settleMs;
+		this.onChange = onChange;
+	}
+
+	// Watches on a daemon thread named name
+	public void start(String name) throws IOException {
+		// The directory is watched, not the file, so replacing the file by a rename is seen too
+		watcher = file.getFileSystem().newWatchService();
+		file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+		Thread t = new Thread(this, name);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	public void stop() {
+		try {
+			if(watcher != null) watcher.close();
+		} catch(IOException ignored) {
+
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			while(true) {
+				if(!touchesFile(watcher.take())) {
+					continue;
+				}
+				WatchKey more;
+				while((more = watcher.poll(settleMs, TimeUnit.MILLISECONDS)) != null) {
+					touchesFile(more);
+				}
+				try {
+					onChange.run();
+				} catch(RuntimeException e) {
+					log.error("Reloading " + file + " failed: " + e);
+				}
+			}
+		} catch(InterruptedException | ClosedWatchServiceException e) {
+			// stopped
+		}
+	}
+
+	// Consumes the key's events, true if one of them was our file
+	private boolean touchesFile(WatchKey key) {
+		boolean hit = false;
+		for(WatchEvent<?> event : key.pollEvents()) {
+			if(event.kind() == StandardWatchEventKinds.OVERFLOW || file.getFileName().equals(event.context())) {
+				hit = true;
+			}
+		}
+		key.reset();
+		return hit;
+	}
+}
@@ -0,0 +1,390 @@
+package p1;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+// Compiled firewall. Addresses are cut into classes at every rule edge, rules are painted onto a src class x dst
+// class table in priority order, and each cell points at a verdict per payload length. Legacy one byte ids find
+// their class in a 256 entry array, so checking their frames is a few array reads however many rules there are,
+// wider addresses add a binary search over the class edges
+// A policy never changes once built, a reload compiles a new one and the switch swaps its reference
+//
+// One rule per line: <src> <dst> <action> [prio=<n>] [len=<min>-<max>]
+//   src, dst  *              any address
+//             <net>          every node of a network, e.g. 2 (the original format)
+//             <a>-<b>        networks a to b
+//             <net>_<id>     one node, e.g. 2_3
+//             <net>_<a>-<b>  nodes a to b of a network, <net>_* is the whole network
+//   action    block, deny or 0 / allow, permit or 1
+//   prio      higher wins, ties go to the later line (default 0)
+//   len       only frames whose payload length is in range, len=<n> for one length (default any)
+// Networks and node ids go up to 65535. Frames no rule matches are allowed
+public final class FirewallPolicy {
+	private static final int LEGACY_IDS = 256;
+	private static final int LENGTHS = 256;
+	private static final int MAX_PROFILES = 1 << 16;
+	private static final long MAX_CELLS = 1 << 24;
+	private static final long ALL = 0xFFFFFFFFL; // highest address, addresses are unsigned
+	private static final char ALLOW_ALL = 0; // profile ids, the first two profiles
+	private static final char BLOCK_ALL = 1;
+
+	public static final FirewallPolicy ALLOW_EVERYTHING = compile("", 0, new ArrayList<>());
+
+	private final long version;
+	private final String source; // rule text as loaded, sent to shadows and CAS switches
+	private final int ruleCount;
+	private final int[] srcEdges; // first address of each class, sign bit flipped so they sort as unsigned
+	private final int[] dstEdges;
+	private final char[] legacySrc; // class of each one byte id
+	private final char[] legacyDst;
+	private final char[] cells; // profile id per (src class * dst classes + dst class)
+	private final byte[] verdicts; // 1 blocks, per (profile << 8 | payload length)
+
+	private FirewallPolicy(long version, String source, int ruleCount, int[] srcEdges, int[] dstEdges, char[] cells, byte[] verdicts) {
+		this.version = version;
+		this.source = source;
+		this.ruleCount = ruleCount;
+		this.srcEdges = srcEdges;
+		this.dstEdges = dstEdges;
+		this.legacySrc = legacyClasses(srcEdges);
+		this.legacyDst = legacyClasses(dstEdges);
+		this.cells = cells;
+		this.verdicts = verdicts;
+	}
+
+	// src and dst are Address ints
+	public boolean isBlocked(int src, int dst, int payloadLen) {
+		int s = Address.isLegacy(src) ? legacySrc[Address.toLegacy(src)] : classOf(srcEdges, src);
+		int d = Address.isLegacy(dst) ? legacyDst[Address.toLegacy(dst)] : classOf(dstEdges, dst);
+		int profile = cells[s * dstEdges.length + d];
+		return verdicts[(profile << 8) | (payloadLen & 0xFF)] != 0;
+	}
+
+	private static int classOf(int[] edges, int addr) {
+		int i = Arrays.binarySearch(edges, addr ^ Integer.MIN_VALUE);
+		return i >= 0 ? i : -i - 2;
+	}
+
+	private static char[] legacyClasses(int[] edges) {
+		char[] classes = new char[LEGACY_IDS];
+		for(int id = 0; id < LEGACY_IDS; id++) {
+			classes[id] = (char) classOf(edges, Address.fromLegacy(id));
+		}
+		return classes;
+	}
+
+	public long version() {
+		return version;
+	}
+
+	public String source() {
+		return source;
+	}
+
+	public int ruleCount() {
+		return ruleCount;
+	}
+
+	// Parses and compiles rule text, bad lines are skipped and described in errors
+	// Throws IllegalArgumentException when the rules cut the address space into too many classes to tabulate
+	public static FirewallPolicy compile(String source, long version, List<String> errors) {
+		List<Rule> rules = new ArrayList<>();
+		String[] lines = source.split("\r?\n");
+		for(int i = 0; i < lines.length; i++) {
+			String line = lines[i].trim();
+			if(line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			try {
+				rules.add(Rule.parse(line));
+			} catch(IllegalArgumentException e) {
+				errors.add("line " + (i + 1) + " (" + e.getMessage() + "): " + line);
+			}
+		}
+		// Lowest priority painted first so higher ones cover it, the sort is stable so ties keep file order
+		rules.sort(Comparator.comparingInt(r -> r.priority));
+
+		int[] srcEdges = edges(rules, true);
+		int[] dstEdges = edges(rules, false);
+		if((long) srcEdges.length * dstEdges.length > MAX_CELLS) {
+			throw new IllegalArgumentException("rules split the addresses into " + srcEdges.length + " x " + dstEdges.length + " classes, more than " + MAX_CELLS + " cells");
+		}
+		int dstClasses = dstEdges.length;
+		char[] cells = new char[srcEdges.length * dstClasses];
+		List<byte[]> profiles = new ArrayList<>();
+		Map<String, Character> profileIds = new HashMap<>(); // by contents, so equal profiles are shared
+		addProfile(profiles, profileIds, new byte[LENGTHS]);
+		byte[] all = new byte[LENGTHS];
+		Arrays.fill(all, (byte) 1);
+		addProfile(profiles, profileIds, all);
+
+		Map<Long, Character> derived = new HashMap<>(); // (old profile, rule) -> new profile
+		for(int r = 0; r < rules.size(); r++) {
+			Rule rule = rules.get(r);
+			int srcTo = classOf(srcEdges, (int) rule.srcHi);
+			int dstFrom = classOf(dstEdges, (int) rule.dstLo);
+			int dstTo = classOf(dstEdges, (int) rule.dstHi);
+			for(int src = classOf(srcEdges, (int) rule.srcLo); src <= srcTo; src++) {
+				for(int dst = dstFrom; dst <= dstTo; dst++) {
+					int cell = src * dstClasses + dst;
+					if(rule.lenLo == 0 && rule.lenHi == LENGTHS - 1) {
+						cells[cell] = rule.block ? BLOCK_ALL : ALLOW_ALL;
+						continue;
+					}
+					char old = cells[cell];
+					Character next = derived.get(((long) old << 32) | r);
+					if(next == null) {
+						byte[] p = profiles.get(old).clone();
+						Arrays.fill(p, rule.lenLo, rule.lenHi + 1, (byte) (rule.block ? 1 : 0));
+						next = addProfile(profiles, profileIds, p);
+						if(next == null) {
+							errors.add("too many distinct length conditions, rule ignored for some addresses: " + rule.text);
+							next = old;
+						}
+						derived.put(((long) old << 32) | r, next);
+					}
+					cells[cell] = next;
+				}
+			}
+		}
+
+		byte[] verdicts = new byte[profiles.size() * LENGTHS];
+		for(int p = 0; p < profiles.size(); p++) {
+			System.arraycopy(profiles.get(p), 0, verdicts, p * LENGTHS, LENGTHS);
+		}
+		return new FirewallPolicy(version, source, rules.size(), srcEdges, dstEdges, cells, verdicts);
+	}
+
+	// Class edges on one side: address 0 and wherever a rule's range starts or ends
+	private static int[] edges(List<Rule> rules, boolean src) {
+		TreeSet<Long> edges = new TreeSet<>();
+		edges.add(0L);
+		for(Rule rule : rules) {
+			edges.add(src ? rule.srcLo : rule.dstLo);
+			long after = (src ? rule.srcHi : rule.dstHi) + 1;
+			if(after <= ALL) {
+				edges.add(after);
+			}
+		}
+		int[] out = new int[edges.size()];
+		int i = 0;
+		for(long e : edges) {
+			out[i++] = (int) e ^ Integer.MIN_VALUE;
+		}
+		return out;
+	}
+
+	// Id of a profile with these contents, null when there is no room for another
+	private static Character addProfile(List<byte[]> profiles, Map<String, Character> ids, byte[] p) {
+		String key = new String(p, StandardCharsets.ISO_8859_1);
+		Character id = ids.get(key);
+		if(id == null) {
+			if(profiles.size() == MAX_PROFILES) {
+				return null;
+			}
+			id = (char) profiles.size();
+			profiles.add(p);
+			ids.put(key, id);
+		}
+		return id;
+	}
+
+	@Override
+	public String toString() {
+		return "version=" + version + " rules=" + ruleCount + " classes=" + srcEdges.length + "x" + dstEdges.length + " profiles=" + verdicts.length / LENGTHS;
+	}
+
+	// One parsed line, see the class comment for the syntax
+	private static final class Rule {
+		final String text;
+		final long srcLo, srcHi, dstLo, dstHi; // unsigned Address ranges
+		final int lenLo, lenHi;
+		final int priority;
+		final boolean block;
+
+		private Rule(String text, long[] src, long[] dst, int[] len, int priority, boolean block) {
+			this.text = text;
+			this.srcLo = src[0];
+			this.srcHi = src[1];
+			this.dstLo = dst[0];
+			this.dstHi = dst[1];
+			this.lenLo = len[0];
+			this.lenHi = len[1];
+			this.priority = priority;
+			this.block = block;
+		}
+
+		static Rule parse(String line) {
+			String[] parts = line.split("\\s+");
+			if(parts.length < 3) {
+				throw new IllegalArgumentException("need <src> <dst> <action>");
+			}
+			long[] src = selector(parts[0]);
+			long[] dst = selector(parts[1]);
+
+			String action = parts[2].toLowerCase();
+			boolean block;
+			if(action.startsWith("block") || action.startsWith("deny") || action.equals("0")) {
+				block = true;
+			} else if(action.startsWith("allow") || action.startsWith("permit") || action.equals("1")) {
+				block = false;
+			} else {
+				throw new IllegalArgumentException("unknown action " + parts[2]);
+			}
+
+			int priority = 0;
+			int[] len = {0, LENGTHS - 1};
+			for(int i = 3; i < parts.length; i++) {
+				String opt = parts[i].toLowerCase();
+				if(opt.startsWith("prio=")) {
+					priority = ConfigText.number(opt.substring(5), Integer.MIN_VALUE, Integer.MAX_VALUE);
+				} else if(opt.startsWith("len=")) {
+					len = ConfigText.range(opt.substring(4), 0, LENGTHS - 1);
+				} else {
+					throw new IllegalArgumentException("unknown option " + parts[i]);
+				}
+			}
+			return new Rule(line, src, dst, len, priority, block);
+		}
+
+		// Address range of a selector
+		private static long[] selector(String s) {
+			if(s.equals("*")) {
+				return new long[] {0, ALL};
+			}
+			int us = s.indexOf('_');
+			if(us < 0) {
+				int[] nets = ConfigText.range(s, 0, Address.MAX_NET);
+				return span(nets[0], 0, nets[1], Address.MAX_LOCAL);
+			}
+			int net = ConfigText.number(s.substring(0, us), 0, Address.MAX_NET);
+			String ids = s.substring(us + 1);
+			if(ids.equals("*")) {
+				return span(net, 0, net, Address.MAX_LOCAL);
+			}
+			int[] local = ConfigText.range(ids, 0, Address.MAX_LOCAL);
+			return span(net, local[0], net, local[1]);
+		}
+
+		private static long[] span(int fromNet, int fromLocal, int toNet, int toLocal) {
+			return new long[] {Address.of(fromNet, fromLocal) & ALL, Address.of(toNet, toLocal) & ALL};
+		}
+	}
+
+	// Chunk header: version 8, base version 8 (0 for the full text), kept prefix chars 4, kept suffix chars 4,
+	// chunk index 2, chunk count 2. The text bytes follow, up to CHUNK_BYTES per frame
+	private static final int CHUNK_HEADER = 28;
+	private static final int CHUNK_BYTES = 255 - 1 - CHUNK_HEADER;
+
+	// The whole policy as control frames of type op
+	public List<Frame> toControlFrames(byte op) {
+		return chunks(op, 0, 0, 0, source);
+	}
+
+	// Only what changed since previous: how much of its text to keep at each end and the new text in between
+	// A receiver still on previous rebuilds this policy's text from that, anyone else ignores it
+	public List<Frame> toControlFrames(byte op, FirewallPolicy previous) {
+		String old = previous.source;
+		int max = Math.min(old.length(), source.length());
+		int head = 0;
+		while(head < max && old.charAt(head) == source.charAt(head)) {
+			head++;
+		}
+		int tail = 0;
+		while(tail < max - head && old.charAt(old.length() - 1 - tail) == source.charAt(source.length() - 1 - tail)) {
+			tail++;
+		}
+		// Never split a surrogate pair, the middle is sent as UTF-8
+		if(head > 0 && Character.isHighSurrogate(source.charAt(head - 1))) {
+			head--;
+		}
+		if(tail > 0 && Character.isLowSurrogate(source.charAt(source.length() - tail))) {
+			tail--;
+		}
+		if(head + tail == 0) {
+			return toControlFrames(op);
+		}
+		return chunks(op, previous.version, head, tail, source.substring(head, source.length() - tail));
+	}
+
+	private List<Frame> chunks(byte op, long base, int head, int tail, String text) {
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		int count = Math.max(1, (bytes.length + CHUNK_BYTES - 1) / CHUNK_BYTES);
+		List<Frame> frames = new ArrayList<>(count);
+		for(int i = 0; i < count; i++) {
+			int from = i * CHUNK_BYTES;
+			int n = Math.min(CHUNK_BYTES, bytes.length - from);
+			ByteBuffer body = ByteBuffer.allocate(CHUNK_HEADER + n);
+			body.putLong(version).putLong(base).putInt(head).putInt(tail).putShort((short) i).putShort((short) count).put(bytes, from, n);
+			frames.add(Frame.controlFrame(op, body.array()));
+		}
+		return frames;
+	}
+
+	// Puts the rule text of toControlFrames back together, chunks of an older version are dropped
+	public static final class Assembler {
+		private long version = -1;
+		private long base;
+		private int head;
+		private int tail;
+		private byte[][] chunks;
+		private int received;
+
+		// Adds one control frame body (after the opcode). Returns the rule text once a version is complete,
+		// or null, also for a delta that doesn't start from current
+		public String add(ByteBuffer buf, int off, int len, FirewallPolicy current) {
+			if(len < CHUNK_HEADER) {
+				return null;
+			}
+			long v = buf.getLong(off);
+			int index = buf.getShort(off + 24) & 0xFFFF;
+			int count = buf.getShort(off + 26) & 0xFFFF;
+			if(v != version || chunks == null || chunks.length != count) {
+				version = v;
+				base = buf.getLong(off + 8);
+				head = buf.getInt(off + 16);
+				tail = buf.getInt(off + 20);
+				chunks = new byte[count][];
+				received = 0;
+			}
+			if(index >= count || chunks[index] != null) {
+				return null;
+			}
+			chunks[index] = new byte[len - CHUNK_HEADER];
+			buf.get(off + CHUNK_HEADER, chunks[index]);
+			if(++received < count) {
+				return null;
+			}
+			int total = 0;
+			for(byte[] c : chunks) {
+				total += c.length;
+			}
+			ByteBuffer all = ByteBuffer.allocate(total);
+			for(byte[] c : chunks) {
+				all.put(c);
+			}
+			chunks = null;
+			String text = new String(all.array(), StandardCharsets.UTF_8);
+			if(base == 0) {
+				return text;
+			}
+			String old = current.source;
+			if(current.version != base || head < 0 || tail < 0 || head + tail > old.length()) {
+				return null;
+			}
+			return old.substring(0, head) + text + old.substring(old.length() - tail);
+		}
+
+		// Version of the text add last returned
+		public long version() {
+			return version;
+		}
+	}
+}
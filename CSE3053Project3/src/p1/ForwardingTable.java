@@ -0,0 +1,170 @@
+package p1;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Switching table keyed by an Address or network id, safe to learn and look up from any handler thread without locks
+// A three level radix table (12/10/10 bits of the key), so it covers all 32 bit keys but only holds pages for the
+// ranges in use, one leaf for a legacy network. Lookups are three array reads and never allocate
+// Entries that are not refreshed within the aging time are removed by a background sweep, like a MAC table
+public class ForwardingTable<T> {
+	private static final int ROOT_BITS = 12;
+	private static final int MID_BITS = 10;
+	private static final int LEAF_BITS = 10;
+	private static final int MID_MASK = (1 << MID_BITS) - 1;
+	private static final int LEAF_MASK = (1 << LEAF_BITS) - 1;
+
+	private final String name;
+	// Pages are created on first learn and never dropped, only entries come and go
+	private final AtomicReferenceArray<AtomicReferenceArray<AtomicReferenceArray<Entry<T>>>> root = new AtomicReferenceArray<>(1 << ROOT_BITS);
+	private final AtomicInteger size = new AtomicInteger();
+	private volatile long agingMs = 0; // 0 never ages out
+	private Thread sweeper;
+
+	public ForwardingTable(String name) {
+		this.name = name;
+	}
+
+	// Port learned for id, null if unknown
+	public T lookup(int id) {
+		Entry<T> e = entry(id);
+		return e == null ? null : e.port;
+	}
+
+	// Learns id on port, refreshing the timestamp in place when nothing changed
+	public void learn(int id, T port) {
+		AtomicReferenceArray<Entry<T>> leaf = leaf(id, true);
+		int slot = id & LEAF_MASK;
+		long now = System.currentTimeMillis();
+		while(true) {
+			Entry<T> e = leaf.get(slot);
+			if(e != null && e.port == port) {
+				if(e.lastSeen != now) {
+					e.lastSeen = now; // skip the shared write when nothing changed
+				}
+				return;
+			}
+			if(leaf.compareAndSet(slot, e, new Entry<>(port, now))) {
+				if(e == null) {
+					size.incrementAndGet();
+				}
+				return;
+			}
+		}
+	}
+
+	// Removes id only if it still points at port, so a newer learn on another port wins
+	public boolean remove(int id, T port) {
+		AtomicReferenceArray<Entry<T>> leaf = leaf(id, false);
+		if(leaf == null) {
+			return false;
+		}
+		int slot = id & LEAF_MASK;
+		Entry<T> e = leaf.get(slot);
+		if(e != null && e.port == port && leaf.compareAndSet(slot, e, null)) {
+			size.decrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	// Milliseconds since id was last seen, -1 if unknown
+	public long age(int id) {
+		Entry<T> e = entry(id);
+		return e == null ? -1 : System.currentTimeMillis() - e.lastSeen;
+	}
+
+	public int size() {
+		return size.get();
+	}
+
+	private Entry<T> entry(int id) {
+		AtomicReferenceArray<Entry<T>> leaf = leaf(id, false);
+		return leaf == null ? null : leaf.get(id & LEAF_MASK);
+	}
+
+	// Leaf page holding id, created on the way down if create is set, otherwise null when there is none
+	private AtomicReferenceArray<Entry<T>> leaf(int id, boolean create) {
+		int r = id >>> (MID_BITS + LEAF_BITS);
+		AtomicReferenceArray<AtomicReferenceArray<Entry<T>>> mid = root.get(r);
+		if(mid == null) {
+			if(!create) {
+				return null;
+			}
+			root.compareAndSet(r, null, new AtomicReferenceArray<>(1 << MID_BITS));
+			mid = root.get(r);
+		}
+		int m = (id >>> LEAF_BITS) & MID_MASK;
+		AtomicReferenceArray<Entry<T>> leaf = mid.get(m);
+		if(leaf == null && create) {
+			mid.compareAndSet(m, null, new AtomicReferenceArray<>(1 << LEAF_BITS));
+			leaf = mid.get(m);
+		}
+		return leaf;
+	}
+
+	// Starts the aging sweep, runs every half aging period
+	public synchronized void startAging(long agingMs) {
+		if(agingMs <= 0 || sweeper != null) {
+			return;
+		}
+		this.agingMs = agingMs;
+		sweeper = new Thread(this::sweepLoop, name + "-aging");
+		sweeper.setDaemon(true);
+		sweeper.start();
+	}
+
+	public synchronized void stopAging() {
+		if(sweeper != null) {
+			sweeper.interrupt();
+			sweeper = null;
+		}
+	}
+
+	private void sweepLoop() {
+		while(!Thread.currentThread().isInterrupted()) {
+			try {
+				Thread.sleep(Math.max(1, agingMs / 2));
+			} catch(InterruptedException e) {
+				return;
+			}
+			sweep();
+		}
+	}
+
+	// Drops every entry older than the aging time, returns how many expired
+	public int sweep() {
+		long cutoff = System.currentTimeMillis() - agingMs;
+		int expired = 0;
+		for(int r = 0; r < root.length(); r++) {
+			AtomicReferenceArray<AtomicReferenceArray<Entry<T>>> mid = root.get(r);
+			if(mid == null) {
+				continue;
+			}
+			for(int m = 0; m < mid.length(); m++) {
+				AtomicReferenceArray<Entry<T>> leaf = mid.get(m);
+				if(leaf == null) {
+					continue;
+				}
+				for(int i = 0; i < leaf.length(); i++) {
+					Entry<T> e = leaf.get(i);
+					if(e != null && e.lastSeen < cutoff && leaf.compareAndSet(i, e, null)) {
+						size.decrementAndGet();
+						expired++;
+					}
+				}
+			}
+		}
+		return expired;
+	}
+
+	private static final class Entry<T> {
+		private final T port;
+		private volatile long lastSeen;
+
+		private Entry(T port, long lastSeen) {
+			this.port = port;
+			this.lastSeen = lastSeen;
+		}
+	}
+}
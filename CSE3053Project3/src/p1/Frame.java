@@ -1,59 +1,201 @@
 package p1;
 
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
 public class Frame {
 	public static final byte ACK_TIMEOUT = 0x00;
 	public static final byte ACK_CRC_ERR = 0x01;
 	public static final byte ACK_FIREWALL = 0x10;
 	public static final byte ACK_ok = 0x11;
 	
-	private final byte src;
-	private final byte dst;
+	public static final int HEADER_LEN = 5;
+	
+	// Byte 4 holds the ACK type in bits 0x11, the other bits are flags for optional header fields
+	public static final int TYPE_MASK = 0x11;
+	public static final int FLAG_SEQ = 0x80; // 2 byte sequence number follows the header
+	public static final int FLAG_CRC32C = 0x40; // format v2, 4 byte CRC-32C after the sequence number, byte 2 is unused
+	public static final int CRC32C_LEN = 4;
+	// Extended addressing, 4 byte source and destination Address after the CRC, bytes 0 and 1 are unused
+	// Only set when an address doesn't fit one byte, and only sent to peers that answered CONTROL_HELLO
+	public static final int FLAG_EXT_ADDR = 0x20;
+	public static final int EXT_ADDR_LEN = 8;
+	// Fragment of a message longer than MAX_DATA, 2 byte message id, 3 byte offset and 3 byte message length after
+	// the extended addresses. Every fragment but the last carries MAX_DATA bytes, fragments always have a seq
+	public static final int FLAG_FRAG = 0x08;
+	public static final int FRAG_LEN = 8;
+	
+	public static final int MAX_DATA = 255; // payload of one frame
+	public static final int MAX_MESSAGE = 0xFFFFFF; // longest message the fragment header can describe
+	
+	public static final int NO_SEQ = -1;
+	
+	// Switch to switch control frames are data frames from and to address 0, which no node has since networks
+	// start at 1. The first payload byte is the opcode, switches handle them and never forward them
+	public static final int CONTROL_ADDR = 0;
+	public static final byte CONTROL_HEARTBEAT = 1; // CAS to CCS, body is the network id, send time and firewall version
+	public static final byte CONTROL_HEARTBEAT_ACK = 2; // CCS echo of a heartbeat body
+	public static final byte CONTROL_SYNC_REQUEST = 3; // shadow CCS to primary, asks for its firewall
+	public static final byte CONTROL_FIREWALL = 4; // CCS to shadow and CAS, one chunk of the rule text, see FirewallPolicy
+	public static final byte CONTROL_HELLO = 5; // sent first by the accepting side and answered by the connecting one, body is HELLO_* bits
+	public static final byte CONTROL_PEER = 6; // CCS to the CCS of another shard, body is the sender's 2 byte shard id, see ShardMap
+	// Multicast membership. From a node the body is the 2 byte group, a CAS adds its network and an 8 byte version when
+	// it passes the first join or last leave of its ports up, see CCSSwitch.applyGroup
+	public static final byte CONTROL_JOIN = 7;
+	public static final byte CONTROL_LEAVE = 8;
+	public static final byte HELLO_EXT_ADDR = 0x01; // understands FLAG_EXT_ADDR
+	public static final byte HELLO_FRAG = 0x02; // understands FLAG_FRAG
+	public static final byte HELLO_CRC32C = 0x04; // understands FLAG_CRC32C, peers without it get format v1
+	public static final byte HELLO_ALL = HELLO_EXT_ADDR | HELLO_FRAG | HELLO_CRC32C; // what this version offers
+	
+	// Checksum written into new frames, frames of either format are always readable
+	public enum Checksum {
+		SUM8, // format v1, 8 bit sum in byte 2
+		CRC32C; // format v2
+		
+		// Parses the crc= option, e.g. sum8
+		public static Checksum parse(String value) {
+			return valueOf(value.trim().toUpperCase());
+		}
+	}
+	
+	private static volatile int checksumFlag = FLAG_CRC32C;
+	private static final ThreadLocal<CRC32C> CRC = ThreadLocal.withInitial(CRC32C::new);
+	
+	private final int src; // Address
+	private final int dst;
 	private final byte sizeOrAck;
 	private final byte ackType;
 	private final byte[] data;
-	private final byte crc;
+	private final int crc; // 8 bit sum or CRC-32C depending on FLAG_CRC32C
+	private final int seq;
+	private final int messageId; // fragment fields, only meaningful with FLAG_FRAG
+	private final int fragOffset;
+	private final int messageLength;
 	
 	// Creates a data frame with a message
 	public static Frame dataFrame(int src, int dst, byte[] payload) {
 		if(payload == null) {
 			throw new IllegalArgumentException("message cannot be null");
 		}
-		if(payload.length == 0 || payload.length > 255) {
-			throw new IllegalArgumentException("message length must be 1 to 255");
+		if(payload.length == 0 || payload.length > MAX_DATA) {
+			throw new IllegalArgumentException("message length must be 1 to " + MAX_DATA);
 		}
 		
-		byte s = (byte) (src & 0xFF);
-		byte d = (byte) (dst & 0xFF);
 		byte size = (byte) (payload.length & 0xFF);
 		
-		return new Frame(s, d, size, (byte) 0x00, payload, (byte) 0x00);
+		return new Frame(src, dst, size, (byte) (checksumFlag | addrFlag(src, dst)), payload, 0, NO_SEQ);
+	}
+	
+	// Creates a data frame carrying a sequence number for windowed delivery
+	public static Frame dataFrame(int src, int dst, byte[] payload, int seq) {
+		Frame f = dataFrame(src, dst, payload);
+		return new Frame(f.src, f.dst, f.sizeOrAck, (byte) (f.ackType | FLAG_SEQ), f.data, 0, seq & 0xFFFF);
+	}
+	
+	// Creates the fragment of message messageId that starts at offset, payload is at most MAX_DATA bytes of it
+	public static Frame fragmentFrame(int src, int dst, byte[] payload, int seq, int messageId, int offset, int messageLength) {
+		if(messageLength > MAX_MESSAGE || offset < 0 || offset + payload.length > messageLength) {
+			throw new IllegalArgumentException("fragment " + offset + "+" + payload.length + " is outside a message of " + messageLength);
+		}
+		Frame f = dataFrame(src, dst, payload);
+		return new Frame(f.src, f.dst, f.sizeOrAck, (byte) (f.ackType | FLAG_SEQ | FLAG_FRAG), f.data, 0, seq & 0xFFFF, messageId & 0xFFFF, offset, messageLength);
+	}
+	
+	// Creates a control frame, body may be empty
+	public static Frame controlFrame(byte op, byte[] body) {
+		byte[] payload = new byte[1 + body.length];
+		payload[0] = op;
+		System.arraycopy(body, 0, payload, 1, body.length);
+		return dataFrame(CONTROL_ADDR, CONTROL_ADDR, payload);
+	}
+	
+	// CONTROL_HELLO offering bits, always format v1 so a peer that predates format v2 can read it
+	public static Frame helloFrame(int bits) {
+		return controlFrame(CONTROL_HELLO, new byte[] {(byte) bits}).toSum8();
 	}
 	
 	// Creates acknowledgement frame
 	public static Frame ackFrame(int src, int dst, byte ackType) {
-		byte s = (byte) (src & 0xFF);
-		byte d = (byte) (dst & 0xFF);
 		byte size = 0;
+		byte type = (byte) ((ackType & TYPE_MASK) | checksumFlag | addrFlag(src, dst));
 		
-		return new Frame(s, d, size, ackType, new byte[0], (byte) 0x00);
+		return new Frame(src, dst, size, type, new byte[0], 0, NO_SEQ);
+	}
+	
+	// Creates acknowledgement for one sequence number, NO_SEQ gives a plain ACK
+	public static Frame ackFrame(int src, int dst, byte ackType, int seq) {
+		if(seq == NO_SEQ) {
+			return ackFrame(src, dst, ackType);
+		}
+		byte type = (byte) ((ackType & TYPE_MASK) | FLAG_SEQ | checksumFlag | addrFlag(src, dst));
+		return new Frame(src, dst, (byte) 0, type, new byte[0], 0, seq & 0xFFFF);
+	}
+	
+	// FLAG_EXT_ADDR if either address needs it
+	private static int addrFlag(int src, int dst) {
+		return Address.isLegacy(src) && Address.isLegacy(dst) ? 0 : FLAG_EXT_ADDR;
+	}
+	
+	// HELLO_* bits a peer must have answered with to be sent a frame with these flags, a v2 frame can always go as
+	// v1 instead (toSum8)
+	static int helloBits(int flags) {
+		return ((flags & FLAG_EXT_ADDR) != 0 ? HELLO_EXT_ADDR : 0) | ((flags & FLAG_FRAG) != 0 ? HELLO_FRAG : 0);
+	}
+	
+	private Frame(int src, int dst, byte sizeOrAck, byte ackType, byte[] data, int crc, int seq) {
+		this(src, dst, sizeOrAck, ackType, data, crc, seq, 0, 0, 0);
 	}
 	
-	private Frame(byte src, byte dst, byte sizeOrAck, byte ackType, byte[] data, byte crc) {		
+	private Frame(int src, int dst, byte sizeOrAck, byte ackType, byte[] data, int crc, int seq, int messageId, int fragOffset, int messageLength) {
 		this.src = src;
 		this.dst = dst;
 		this.sizeOrAck = sizeOrAck;
 		this.ackType = ackType;
 		this.data = (data == null) ? new byte[0] : data;
 		this.crc = crc;
+		this.seq = seq;
+		this.messageId = messageId;
+		this.fragOffset = fragOffset;
+		this.messageLength = messageLength;
+	}
+	
+	// Picks the format of frames created from now on
+	public static void setChecksum(Checksum checksum) {
+		checksumFlag = checksum == Checksum.CRC32C ? FLAG_CRC32C : 0;
+	}
+	
+	public static Checksum checksum() {
+		return checksumFlag == FLAG_CRC32C ? Checksum.CRC32C : Checksum.SUM8;
+	}
+	
+	// Bytes of optional fields between the fixed header and the payload
+	public static int extLength(int flags) {
+		return ((flags & FLAG_SEQ) != 0 ? 2 : 0) + ((flags & FLAG_CRC32C) != 0 ? CRC32C_LEN : 0) + ((flags & FLAG_EXT_ADDR) != 0 ? EXT_ADDR_LEN : 0) + ((flags & FLAG_FRAG) != 0 ? FRAG_LEN : 0);
 	}
 	
-	// Getters
+	// Where the CRC-32C field starts in a v2 frame
+	static int crc32cOffset(int flags) {
+		return HEADER_LEN + ((flags & FLAG_SEQ) != 0 ? 2 : 0);
+	}
+	
+	// Where the extended addresses start in a FLAG_EXT_ADDR frame
+	static int extAddrOffset(int flags) {
+		return crc32cOffset(flags) + ((flags & FLAG_CRC32C) != 0 ? CRC32C_LEN : 0);
+	}
+	
+	// Where the fragment header starts in a FLAG_FRAG frame
+	static int fragOffset(int flags) {
+		return extAddrOffset(flags) + ((flags & FLAG_EXT_ADDR) != 0 ? EXT_ADDR_LEN : 0);
+	}
+	
+	// Getters, addresses are Address ints whichever way they were sent
 	public int getSrc() {
-		return src & 0xFF;
+		return src;
 	}
 	
 	public int getDst() {
-		return dst & 0xFF;
+		return dst;
 	}
 	
 	public int getSizeOrAck() {
@@ -61,16 +203,55 @@ public class Frame {
 	}
 	
 	public byte getAckType() {
-		return ackType;
+		return (byte) (ackType & TYPE_MASK);
+	}
+	
+	public int getFlags() {
+		return ackType & 0xFF & ~TYPE_MASK;
+	}
+	
+	// Sequence number, NO_SEQ when the frame has none
+	public int getSeq() {
+		return seq;
+	}
+	
+	public boolean hasSeq() {
+		return seq != NO_SEQ;
 	}
 	
 	public byte[] getData() {
 		return data.clone();
 	}
-	public byte getCrc() {
+	// Checksum as sent, the 8 bit sum for v1 frames and the CRC-32C for v2
+	public int getCrc() {
 		return crc;
 	}
 	
+	public boolean hasCrc32c() {
+		return (ackType & FLAG_CRC32C) != 0;
+	}
+	
+	public boolean hasExtAddr() {
+		return (ackType & FLAG_EXT_ADDR) != 0;
+	}
+	
+	public boolean isFragment() {
+		return (ackType & FLAG_FRAG) != 0;
+	}
+	
+	// Fragment fields, 0 for a frame that isn't a fragment
+	public int getMessageId() {
+		return messageId;
+	}
+	
+	public int getFragmentOffset() {
+		return fragOffset;
+	}
+	
+	public int getMessageLength() {
+		return messageLength;
+	}
+	
 	public boolean isAck() {
 		return (sizeOrAck & 0xFF) == 0;
 	}
@@ -79,80 +260,255 @@ public class Frame {
 		return sizeOrAck & 0xFF;
 	}
 	
+	// Size of the encoded frame
+	public int encodedLength() {
+		return HEADER_LEN + extLength(ackType) + data.length;
+	}
+	
+	// The same frame in format v1, for a peer that never answered HELLO_CRC32C
+	public Frame toSum8() {
+		if(!hasCrc32c()) {
+			return this;
+		}
+		return new Frame(src, dst, sizeOrAck, (byte) (ackType & ~FLAG_CRC32C), data, 0, seq, messageId, fragOffset, messageLength);
+	}
+	
 	// Converts frame into byte array to send over a socket
 	public byte[] toBytes() {
-		int len = 5 + data.length;
-		byte[] buf = new byte[len];
-		
-		buf[0] = src;
-		buf[1] = dst;
-		buf[2] = 0x00;
-		buf[3] = sizeOrAck;
-		buf[4] = ackType;
-		System.arraycopy(data, 0, buf, 5, data.length);
+		byte[] buf = new byte[encodedLength()];
+		encodeTo(ByteBuffer.wrap(buf));
+		return buf;
+	}
+	
+	// Encodes straight into the caller's buffer at its position, the CRC is filled in afterwards without another copy
+	public int encodeTo(ByteBuffer dst) {
+		int start = dst.position();
+		int len = encodedLength();
 		
-		byte crcValue = computeCrc(buf);
-		buf[2] = crcValue;
+		dst.put(hasExtAddr() ? 0 : (byte) Address.toLegacy(src));
+		dst.put(hasExtAddr() ? 0 : (byte) Address.toLegacy(this.dst));
+		dst.put((byte) 0x00);
+		dst.put(sizeOrAck);
+		dst.put(ackType);
+		if(hasSeq()) {
+			dst.putShort((short) seq);
+		}
+		if(hasCrc32c()) {
+			dst.putInt(0);
+		}
+		if(hasExtAddr()) {
+			dst.putInt(src);
+			dst.putInt(this.dst);
+		}
+		if(isFragment()) {
+			dst.putShort((short) messageId);
+			putMedium(dst, fragOffset);
+			putMedium(dst, messageLength);
+		}
+		dst.put(data);
 		
-		return buf;
+		if(hasCrc32c()) {
+			dst.putInt(start + crc32cOffset(ackType), computeCrc32c(dst, start, len));
+		} else {
+			dst.put(start + 2, computeCrc(dst, start, len));
+		}
+		return len;
+	}
+	
+	private static void putMedium(ByteBuffer dst, int v) {
+		dst.put((byte) (v >>> 16));
+		dst.putShort((short) v);
+	}
+	
+	private static int getMedium(byte[] buf, int off) {
+		return ((buf[off] & 0xFF) << 16) | ((buf[off + 1] & 0xFF) << 8) | (buf[off + 2] & 0xFF);
 	}
 	
-	// Computes the CRC
-	private static byte computeCrc(byte[] buf) {
+	// Computes the CRC over an encoded frame, the CRC byte itself counts as zero
+	static byte computeCrc(ByteBuffer buf, int off, int len) {
 		int sum = 0;
-		for(byte b : buf) {
-			sum += (b & 0xFF);
+		if(buf.hasArray()) {
+			byte[] a = buf.array();
+			int base = buf.arrayOffset() + off;
+			for(int i = 0; i < len; i++) {
+				sum += a[base + i] & 0xFF;
+			}
+			return (byte) ((sum - (a[base + 2] & 0xFF)) & 0xFF);
+		}
+		for(int i = 0; i < len; i++) {
+			if(i != 2) {
+				sum += (buf.get(off + i) & 0xFF);
+			}
 		}
 		return (byte) (sum & 0xFF);
 	}
 	
+	// CRC-32C over an encoded v2 frame, skipping byte 2 and the CRC field, fed straight from the buffer
+	static int computeCrc32c(ByteBuffer buf, int off, int len) {
+		int crcOff = crc32cOffset(buf.get(off + 4));
+		CRC32C c = CRC.get();
+		c.reset();
+		update(c, buf, off, 2);
+		update(c, buf, off + 3, crcOff - 3);
+		update(c, buf, off + crcOff + CRC32C_LEN, len - crcOff - CRC32C_LEN);
+		return (int) c.getValue();
+	}
+	
+	private static void update(CRC32C c, ByteBuffer buf, int off, int n) {
+		if(n <= 0) {
+			return;
+		}
+		if(buf.hasArray()) {
+			c.update(buf.array(), buf.arrayOffset() + off, n);
+		} else {
+			c.update(buf.slice(off, n));
+		}
+	}
+	
+	// Rewrites the encoded v2 frame at off as format v1 at dst's dstOff and returns its length. A frame whose CRC-32C
+	// is wrong gets a wrong sum too, so the receiver still NACKs the corruption instead of taking the frame
+	static int toSum8(ByteBuffer buf, int off, int len, ByteBuffer dst, int dstOff) {
+		int flags = buf.get(off + 4);
+		int crcOff = crc32cOffset(flags);
+		int v1Len = len - CRC32C_LEN;
+		dst.put(dstOff, buf, off, crcOff);
+		dst.put(dstOff + crcOff, buf, off + crcOff + CRC32C_LEN, len - crcOff - CRC32C_LEN);
+		dst.put(dstOff + 4, (byte) (flags & ~FLAG_CRC32C));
+		byte sum = computeCrc(dst, dstOff, v1Len);
+		dst.put(dstOff + 2, isCrcValid(buf, off, len) ? sum : (byte) (sum + 1));
+		return v1Len;
+	}
+	
+	// Checks an encoded frame of either format in place
+	static boolean isCrcValid(ByteBuffer buf, int off, int len) {
+		int flags = buf.get(off + 4);
+		if((flags & FLAG_CRC32C) != 0) {
+			return buf.getInt(off + crc32cOffset(flags)) == computeCrc32c(buf, off, len);
+		}
+		return computeCrc(buf, off, len) == buf.get(off + 2);
+	}
+	
 	// Checks if CRC is valid
 	public boolean isCrcValid() {
-		int len = 5 + data.length;
-		byte[] buf = new byte[len];
-		
-		buf[0] = src;
-		buf[1] = dst;
-		buf[2] = 0x00;
-		buf[3] = sizeOrAck;
-		buf[4] = ackType;
-		System.arraycopy(data, 0, buf, 5, data.length);
-		
-		byte recomputed = computeCrc(buf);
-		return recomputed == crc;
+		int s = hasExtAddr() ? 0 : Address.toLegacy(src);
+		int d = hasExtAddr() ? 0 : Address.toLegacy(dst);
+		if(hasCrc32c()) {
+			CRC32C c = CRC.get();
+			c.reset();
+			c.update(s);
+			c.update(d);
+			c.update(sizeOrAck);
+			c.update(ackType);
+			if(hasSeq()) {
+				c.update(seq >>> 8);
+				c.update(seq);
+			}
+			if(hasExtAddr()) {
+				for(int shift = 24; shift >= 0; shift -= 8) {
+					c.update(src >>> shift);
+				}
+				for(int shift = 24; shift >= 0; shift -= 8) {
+					c.update(dst >>> shift);
+				}
+			}
+			if(isFragment()) {
+				for(int b : fragHeader()) {
+					c.update(b);
+				}
+			}
+			c.update(data);
+			return (int) c.getValue() == crc;
+		}
+		int sum = s + d + (sizeOrAck & 0xFF) + (ackType & 0xFF);
+		if(hasSeq()) {
+			sum += (seq >>> 8) + (seq & 0xFF);
+		}
+		if(hasExtAddr()) {
+			for(int shift = 24; shift >= 0; shift -= 8) {
+				sum += ((src >>> shift) & 0xFF) + ((dst >>> shift) & 0xFF);
+			}
+		}
+		if(isFragment()) {
+			for(int b : fragHeader()) {
+				sum += b;
+			}
+		}
+		for(byte b : data) {
+			sum += (b & 0xFF);
+		}
+		return (sum & 0xFF) == crc;
+	}
+	
+	// Fragment header bytes as they go on the wire
+	private int[] fragHeader() {
+		return new int[] {
+			(messageId >>> 8) & 0xFF, messageId & 0xFF,
+			(fragOffset >>> 16) & 0xFF, (fragOffset >>> 8) & 0xFF, fragOffset & 0xFF,
+			(messageLength >>> 16) & 0xFF, (messageLength >>> 8) & 0xFF, messageLength & 0xFF
+		};
 	}
 	
 	// First 3 bytes represent source id, destination id, and data length
 	public static Frame fromBytes(byte[] buf) {
-		if(buf == null || buf.length < 5) {
+		if(buf == null || buf.length < HEADER_LEN) {
 			throw new IllegalArgumentException("Frame too short");
 		}
 		
-		byte src = buf[0];
-		byte dst = buf[1];
-		byte crc = buf[2];
+		int src = Address.fromLegacy(buf[0] & 0xFF);
+		int dst = Address.fromLegacy(buf[1] & 0xFF);
+		int crc = buf[2] & 0xFF;
 		byte sizeOrAck = buf[3];
 		byte ackType = buf[4];
 		
 		int size = sizeOrAck & 0xFF;
-		int expectedLen = 5 + (size > 0 ? size : 0);
+		int ext = extLength(ackType);
+		int expectedLen = HEADER_LEN + ext + (size > 0 ? size : 0);
 		if(buf.length != expectedLen) {
 			throw new IllegalArgumentException("Frame length mismatch: expected " + expectedLen + " but got " + buf.length);
 		}
 		
+		int seq = NO_SEQ;
+		if((ackType & FLAG_SEQ) != 0) {
+			seq = ((buf[HEADER_LEN] & 0xFF) << 8) | (buf[HEADER_LEN + 1] & 0xFF);
+		}
+		
+		if((ackType & FLAG_CRC32C) != 0) {
+			crc = ByteBuffer.wrap(buf).getInt(crc32cOffset(ackType));
+		}
+		
+		if((ackType & FLAG_EXT_ADDR) != 0) {
+			src = ByteBuffer.wrap(buf).getInt(extAddrOffset(ackType));
+			dst = ByteBuffer.wrap(buf).getInt(extAddrOffset(ackType) + 4);
+		}
+		
+		int messageId = 0, fragOffset = 0, messageLength = 0;
+		if((ackType & FLAG_FRAG) != 0) {
+			int f = fragOffset(ackType);
+			messageId = ((buf[f] & 0xFF) << 8) | (buf[f + 1] & 0xFF);
+			fragOffset = getMedium(buf, f + 2);
+			messageLength = getMedium(buf, f + 5);
+		}
+		
 		byte[] data = new byte[size > 0 ? size : 0];
 		if(size > 0) {
-			System.arraycopy(buf, 5, data, 0, data.length);
+			System.arraycopy(buf, HEADER_LEN + ext, data, 0, data.length);
 		}
 		
-		return new Frame(src, dst, sizeOrAck, ackType, data, crc);
+		return new Frame(src, dst, sizeOrAck, ackType, data, crc, seq, messageId, fragOffset, messageLength);
 	}
 	
 	// For output log
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
-		sb.append("Frame[dst=").append(getDst()).append(", src=").append(getSrc()).append(", sizeOrAck=").append(getSizeOrAck()).append(", ackType=0x").append(Integer.toHexString(ackType & 0xFF)).append(", crc=0x").append(Integer.toHexString(crc & 0xFF)).append(", dataLen=").append(data.length).append("]");
+		sb.append("Frame[dst=").append(Address.toString(dst)).append(", src=").append(Address.toString(src)).append(", sizeOrAck=").append(getSizeOrAck()).append(", ackType=0x").append(Integer.toHexString(getAckType() & 0xFF)).append(", crc=0x").append(Integer.toHexString(crc)).append(", dataLen=").append(data.length);
+		if(hasSeq()) {
+			sb.append(", seq=").append(seq);
+		}
+		if(isFragment()) {
+			sb.append(", msg=").append(messageId).append(" @").append(fragOffset).append("/").append(messageLength);
+		}
+		sb.append("]");
 		return sb.toString();
 	}
 }
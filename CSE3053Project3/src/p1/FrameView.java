@@ -0,0 +1,230 @@
+package p1;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+// Read-only view of an encoded frame sitting in a buffer, nothing is copied to read the header or check the CRC
+public final class FrameView {
+	// Staging array for writing direct buffers to streams
+	private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[512]);
+	
+	private ByteBuffer buf;
+	private int off;
+	private int len;
+
+	public FrameView() {
+	}
+
+	// Wraps a whole encoded frame
+	public static FrameView wrap(byte[] bytes) {
+		return wrap(bytes, 0, bytes.length);
+	}
+
+	public static FrameView wrap(byte[] bytes, int off, int len) {
+		return new FrameView().reset(ByteBuffer.wrap(bytes), off, len);
+	}
+
+	public static FrameView wrap(ByteBuffer buf, int off, int len) {
+		return new FrameView().reset(buf, off, len);
+	}
+
+	// Points this view at another frame so one view can be reused, checks the length like Frame.fromBytes
+	public FrameView reset(ByteBuffer buf, int off, int len) {
+		if(buf == null || len < Frame.HEADER_LEN) {
+			throw new IllegalArgumentException("Frame too short");
+		}
+		int size = buf.get(off + 3) & 0xFF;
+		int expectedLen = Frame.HEADER_LEN + Frame.extLength(buf.get(off + 4)) + size;
+		if(len != expectedLen) {
+			throw new IllegalArgumentException("Frame length mismatch: expected " + expectedLen + " but got " + len);
+		}
+		this.buf = buf;
+		this.off = off;
+		this.len = len;
+		return this;
+	}
+
+	// Getters, same meaning as in Frame
+	public int getSrc() {
+		int flags = buf.get(off + 4);
+		if((flags & Frame.FLAG_EXT_ADDR) != 0) {
+			return buf.getInt(off + Frame.extAddrOffset(flags));
+		}
+		return Address.fromLegacy(buf.get(off) & 0xFF);
+	}
+
+	public int getDst() {
+		int flags = buf.get(off + 4);
+		if((flags & Frame.FLAG_EXT_ADDR) != 0) {
+			return buf.getInt(off + Frame.extAddrOffset(flags) + 4);
+		}
+		return Address.fromLegacy(buf.get(off + 1) & 0xFF);
+	}
+
+	public boolean hasExtAddr() {
+		return (getFlags() & Frame.FLAG_EXT_ADDR) != 0;
+	}
+
+	public boolean isFragment() {
+		return (getFlags() & Frame.FLAG_FRAG) != 0;
+	}
+
+	// HELLO_* bits a peer must have answered with to be sent this frame
+	public int helloBits() {
+		return Frame.helloBits(getFlags());
+	}
+
+	// Mixes (src, dst) into a hash, trunk bundles pick a link by it so every frame of a flow takes the same one
+	public int flowHash() {
+		int h = getSrc() * 0x9E3779B1 ^ getDst();
+		h *= 0x85EBCA6B;
+		return h ^ (h >>> 16);
+	}
+
+	// Checksum as sent, the 8 bit sum for v1 frames and the CRC-32C for v2
+	public int getCrc() {
+		int flags = getFlags();
+		if((flags & Frame.FLAG_CRC32C) != 0) {
+			return buf.getInt(off + Frame.crc32cOffset(flags));
+		}
+		return buf.get(off + 2) & 0xFF;
+	}
+
+	public int getSizeOrAck() {
+		return buf.get(off + 3) & 0xFF;
+	}
+
+	public byte getAckType() {
+		return (byte) (buf.get(off + 4) & Frame.TYPE_MASK);
+	}
+
+	public int getFlags() {
+		return buf.get(off + 4) & 0xFF & ~Frame.TYPE_MASK;
+	}
+
+	// Sequence number, Frame.NO_SEQ when the frame has none
+	public int getSeq() {
+		if((getFlags() & Frame.FLAG_SEQ) == 0) {
+			return Frame.NO_SEQ;
+		}
+		return buf.getShort(off + Frame.HEADER_LEN) & 0xFFFF;
+	}
+
+	// Fragment fields, 0 for a frame that isn't a fragment
+	public int getMessageId() {
+		if(!isFragment()) {
+			return 0;
+		}
+		return buf.getShort(off + Frame.fragOffset(getFlags())) & 0xFFFF;
+	}
+
+	public int getFragmentOffset() {
+		return isFragment() ? getMedium(Frame.fragOffset(getFlags()) + 2) : 0;
+	}
+
+	public int getMessageLength() {
+		return isFragment() ? getMedium(Frame.fragOffset(getFlags()) + 5) : 0;
+	}
+
+	private int getMedium(int at) {
+		return ((buf.get(off + at) & 0xFF) << 16) | (buf.getShort(off + at + 1) & 0xFFFF);
+	}
+
+	// Where the payload starts inside buffer()
+	public int dataOffset() {
+		return off + Frame.HEADER_LEN + Frame.extLength(getFlags());
+	}
+
+	public boolean isAck() {
+		return getSizeOrAck() == 0;
+	}
+
+	public int getDataLength() {
+		return getSizeOrAck();
+	}
+
+	// Switch to switch control frame, see Frame.CONTROL_ADDR
+	public boolean isControl() {
+		return getSrc() == Frame.CONTROL_ADDR && getDst() == Frame.CONTROL_ADDR && !isAck();
+	}
+
+	// Opcode of a control frame, the body follows it
+	public byte controlOp() {
+		return buf.get(dataOffset());
+	}
+
+	// Where the encoded frame lives
+	public ByteBuffer buffer() {
+		return buf;
+	}
+
+	public int offset() {
+		return off;
+	}
+
+	public int length() {
+		return len;
+	}
+
+	// Checks the checksum over the bytes in place, either format
+	public boolean isCrcValid() {
+		return Frame.isCrcValid(buf, off, len);
+	}
+
+	// Copies the payload into dst and returns the number of bytes copied
+	public int copyData(byte[] dst, int dstOff) {
+		int n = getDataLength();
+		buf.get(dataOffset(), dst, dstOff, n);
+		return n;
+	}
+
+	// Writes the encoded frame as is, heap buffers go straight from their backing array
+	public void writeTo(OutputStream out) throws IOException {
+		if(buf.hasArray()) {
+			out.write(buf.array(), buf.arrayOffset() + off, len);
+			return;
+		}
+		byte[] tmp = SCRATCH.get();
+		if(tmp.length < len) {
+			tmp = new byte[len];
+			SCRATCH.set(tmp);
+		}
+		buf.get(off, tmp, 0, len);
+		out.write(tmp, 0, len);
+	}
+
+	// Copies the encoded frame into dst at its position
+	public void copyTo(ByteBuffer dst) {
+		dst.put(buf.slice(off, len));
+	}
+
+	// A view over a private heap copy, for holding on to a frame after its buffer is reused
+	public FrameView copy() {
+		byte[] bytes = new byte[len];
+		buf.get(off, bytes, 0, len);
+		return wrap(bytes);
+	}
+
+	// Decodes into a standalone Frame, this copies
+	public Frame toFrame() {
+		byte[] bytes = new byte[len];
+		buf.get(off, bytes, 0, len);
+		return Frame.fromBytes(bytes);
+	}
+
+	// For output log, same format as Frame
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("Frame[dst=").append(Address.toString(getDst())).append(", src=").append(Address.toString(getSrc())).append(", sizeOrAck=").append(getSizeOrAck()).append(", ackType=0x").append(Integer.toHexString(getAckType() & 0xFF)).append(", crc=0x").append(Integer.toHexString(getCrc())).append(", dataLen=").append(getDataLength());
+		if(getSeq() != Frame.NO_SEQ) {
+			sb.append(", seq=").append(getSeq());
+		}
+		if(isFragment()) {
+			sb.append(", msg=").append(getMessageId()).append(" @").append(getFragmentOffset()).append("/").append(getMessageLength());
+		}
+		sb.append("]");
+		return sb.toString();
+	}
+}
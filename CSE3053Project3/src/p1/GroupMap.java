@@ -0,0 +1,96 @@
+package p1;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+// Which nodes join which multicast groups when they start, loaded once from the groups file
+// One group per line: <group> <nodes>, nodes is a comma separated list of <net>_<id>, <net>_<a>-<b> or <net>_*,
+// # starts a comment. A group's frames are sent to 0_<group>, see Address.group
+public final class GroupMap {
+	private final List<Member> members;
+
+	private GroupMap(List<Member> members) {
+		this.members = Collections.unmodifiableList(members);
+	}
+
+	public static GroupMap load(Path file) throws IOException {
+		return parse(Files.readString(file));
+	}
+
+	public static GroupMap parse(String source) {
+		List<Member> members = new ArrayList<>();
+		String[] lines = source.split("\r?\n");
+		for(int i = 0; i < lines.length; i++) {
+			String line = lines[i].trim();
+			if(line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			try {
+				String[] parts = line.split("\\s+");
+				if(parts.length != 2) {
+					throw new IllegalArgumentException("need <group> <nodes>");
+				}
+				int group = Address.group(ConfigText.number(parts[0], 1, Address.MAX_GROUP));
+				for(String nodes : parts[1].split(",")) {
+					int us = nodes.indexOf('_');
+					if(us < 0) {
+						throw new IllegalArgumentException("need <net>_<id>: " + nodes);
+					}
+					int net = ConfigText.number(nodes.substring(0, us), 1, Address.MAX_NET);
+					String ids = nodes.substring(us + 1);
+					int[] local = ids.equals("*") ? new int[] {1, Address.MAX_LOCAL} : ConfigText.range(ids, 1, Address.MAX_LOCAL);
+					members.add(new Member(group, net, local[0], local[1]));
+				}
+			} catch(IllegalArgumentException e) {
+				throw new IllegalArgumentException("line " + (i + 1) + " (" + e.getMessage() + "): " + line);
+			}
+		}
+		return new GroupMap(members);
+	}
+
+	// Group addresses node joins, each once
+	public int[] groupsOf(int node) {
+		Set<Integer> groups = new LinkedHashSet<>();
+		for(Member m : members) {
+			if(Address.net(node) == m.net && Address.local(node) >= m.lo && Address.local(node) <= m.hi) {
+				groups.add(m.group);
+			}
+		}
+		int[] out = new int[groups.size()];
+		int i = 0;
+		for(int group : groups) {
+			out[i++] = group;
+		}
+		return out;
+	}
+
+	public int groupCount() {
+		Set<Integer> groups = new HashSet<>();
+		for(Member m : members) {
+			groups.add(m.group);
+		}
+		return groups.size();
+	}
+
+	// Nodes lo..hi of net in group
+	private static final class Member {
+		final int group;
+		final int net;
+		final int lo;
+		final int hi;
+
+		Member(int group, int net, int lo, int hi) {
+			this.group = group;
+			this.net = net;
+			this.lo = lo;
+			this.hi = hi;
+		}
+	}
+}
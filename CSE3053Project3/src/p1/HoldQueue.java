@@ -0,0 +1,159 @@
+package p1;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+// Frames for the CCS held while no trunk can take them (store and forward)
+// A bounded in-memory queue takes them first, then an optional memory-mapped spill file, and they come back
+// out in the order they went in. Only used while the trunk is down or catching up, so one lock is enough
+public class HoldQueue {
+	public static final int DEFAULT_CAPACITY = 8192;
+	public static final int DEFAULT_SPILL_MB = 64;
+	private static final int WRAP = 0xFFFF; // in place of a length, the next spilled frame is at the start of the file
+
+	private final EgressQueue memory;
+	private Path spillPath; // null without a spill file
+	private FileChannel spillChannel;
+	private MappedByteBuffer spill;
+	// The spill file is a ring of length-prefixed frames from spillRead to spillWrite. wrapped while the writer has
+	// gone back to the start and the reader hasn't, the free space is then between spillWrite and spillRead
+	private int spillRead = 0;
+	private int spillWrite = 0;
+	private boolean wrapped = false;
+	private int spillFrames = 0;
+	private BufferPool.PooledBuffer returned; // handed back by giveBack, comes out before anything else
+	private long spilled = 0;
+	private long drops = 0;
+
+	public HoldQueue(int capacity) {
+		this.memory = new EgressQueue(capacity, EgressQueue.OverflowPolicy.DROP_TAIL, 0);
+	}
+
+	// Overflows into spillBytes of spillFile, mapped up front, before anything is held
+	public synchronized void spillTo(String spillFile, int spillBytes) throws IOException {
+		Path path = Paths.get(spillFile);
+		FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			this.spill = ch.map(FileChannel.MapMode.READ_WRITE, 0, spillBytes);
+		} catch(IOException e) {
+			ch.close();
+			throw e;
+		}
+		this.spillChannel = ch;
+		this.spillPath = path;
+	}
+
+	// Holds a copy of frame, false if memory and spill file are both full
+	public synchronized boolean offer(FrameView frame) {
+		if(spillFrames == 0 && memory.depth() < memory.capacity()) {
+			return EgressWriter.enqueue(memory, frame); // nothing spilled yet, so memory is still the tail
+		}
+		int at = spill == null ? -1 : spillSlot(2 + frame.length());
+		if(at < 0) {
+			drops++;
+			return false;
+		}
+		spill.putShort(at, (short) frame.length());
+		spill.put(at + 2, frame.buffer(), frame.offset(), frame.length());
+		spillWrite = at + 2 + frame.length();
+		spillFrames++;
+		spilled++;
+		return true;
+	}
+
+	// Where n bytes fit in the spill ring, -1 when they don't. Past the end it wraps to the front once the reader
+	// has freed enough there, leaving a WRAP marker if the tail has room for one
+	private int spillSlot(int n) {
+		if(spillFrames == 0) {
+			spillRead = 0;
+			spillWrite = 0;
+			wrapped = false;
+		}
+		if(wrapped) {
+			return spillWrite + n <= spillRead ? spillWrite : -1;
+		}
+		if(spillWrite + n <= spill.capacity()) {
+			return spillWrite;
+		}
+		if(n > spillRead) {
+			return -1;
+		}
+		if(spillWrite + 2 <= spill.capacity()) {
+			spill.putShort(spillWrite, (short) WRAP);
+		}
+		wrapped = true;
+		return 0;
+	}
+
+	// Oldest held frame with its length prefix, ready for an EgressQueue, or null when empty
+	public synchronized BufferPool.PooledBuffer poll() {
+		BufferPool.PooledBuffer pb = returned;
+		if(pb != null) {
+			returned = null;
+			return pb;
+		}
+		pb = memory.poll();
+		if(pb != null || spillFrames == 0) {
+			return pb;
+		}
+		if(wrapped && (spillRead + 2 > spill.capacity() || (spill.getShort(spillRead) & 0xFFFF) == WRAP)) {
+			spillRead = 0;
+			wrapped = false;
+		}
+		int n = 2 + (spill.getShort(spillRead) & 0xFFFF);
+		pb = BufferPool.HEAP.acquire(n);
+		pb.buffer().put(0, spill, spillRead, n);
+		pb.buffer().limit(n);
+		spillRead += n;
+		spillFrames--;
+		return pb;
+	}
+
+	// Puts back the frame poll just returned, for a drainer that found nowhere to send it
+	public synchronized void giveBack(BufferPool.PooledBuffer pb) {
+		returned = pb;
+	}
+
+	public synchronized boolean isEmpty() {
+		return returned == null && memory.depth() == 0 && spillFrames == 0;
+	}
+
+	public synchronized int size() {
+		return (returned != null ? 1 : 0) + memory.depth() + spillFrames;
+	}
+
+	// Frames that went to the spill file so far
+	public synchronized long spilled() {
+		return spilled;
+	}
+
+	// Frames turned away because everything was full
+	public synchronized long drops() {
+		return drops;
+	}
+
+	// Releases what is still held and removes the spill file
+	public synchronized void close() {
+		memory.close();
+		if(returned != null) {
+			returned.release();
+			returned = null;
+		}
+		spillFrames = 0;
+		if(spillChannel != null) {
+			try {
+				spillChannel.close();
+				Files.deleteIfExists(spillPath);
+			} catch(IOException ignored) {
+
+			}
+			spill = null;
+			spillChannel = null;
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package p1;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Log-linear histogram of nanosecond latencies in the style of HdrHistogram
+// Values below 128 get their own bucket, above that each power of two is split into 64 linear buckets,
+// so any recorded value is reported within 1/64 (about 1.6%) of itself. Recording is one atomic increment
+public class LatencyHistogram {
+	private static final int SUB_BITS = 7;
+	private static final int SUB_COUNT = 1 << SUB_BITS; // 128
+	private static final int HALF = SUB_COUNT / 2; // 64 buckets per power of two
+	private static final int BUCKETS = (63 - SUB_BITS + 2) * HALF;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long nanos) {
+		long v = Math.max(0, nanos);
+		counts.incrementAndGet(indexOf(v));
+		total.incrementAndGet();
+		sum.addAndGet(v);
+		long m;
+		while(v > (m = max.get()) && !max.compareAndSet(m, v)) {
+		}
+	}
+
+	static int indexOf(long v) {
+		if(v < SUB_COUNT) {
+			return (int) v;
+		}
+		int mag = 63 - Long.numberOfLeadingZeros(v);
+		int shift = mag - (SUB_BITS - 1);
+		return (shift + 1) * HALF + (int) (v >>> shift) - HALF;
+	}
+
+	// Highest value that lands in bucket index
+	static long highestValueAt(int index) {
+		if(index < SUB_COUNT) {
+			return index;
+		}
+		int shift = index / HALF - 1;
+		long sub = index % HALF + HALF;
+		return ((sub + 1) << shift) - 1;
+	}
+
+	// Adds every count of other into this one
+	public void add(LatencyHistogram other) {
+		for(int i = 0; i < BUCKETS; i++) {
+			long c = other.counts.get(i);
+			if(c != 0) {
+				counts.addAndGet(i, c);
+			}
+		}
+		total.addAndGet(other.total.get());
+		sum.addAndGet(other.sum.get());
+		long m;
+		long om = other.max.get();
+		while(om > (m = max.get()) && !max.compareAndSet(m, om)) {
+		}
+	}
+
+	public long count() {
+		return total.get();
+	}
+
+	public long max() {
+		return max.get();
+	}
+
+	public double mean() {
+		long n = total.get();
+		return n == 0 ? 0 : (double) sum.get() / n;
+	}
+
+	// Value at or below which the given fraction of recordings fall, e.g. 0.99
+	public long percentile(double fraction) {
+		long n = total.get();
+		if(n == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(fraction * n));
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if(seen >= rank) {
+				return Math.min(highestValueAt(i), max.get());
+			}
+		}
+		return max.get();
+	}
+}
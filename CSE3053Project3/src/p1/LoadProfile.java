@@ -0,0 +1,202 @@
+package p1;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+// Synthetic traffic for load mode: how long to run, how fast each node sends, payload sizes and who talks to whom
+// Shared by all nodes, each node draws from its own Generator so nothing here is contended
+public class LoadProfile {
+	public enum Matrix {
+		UNIFORM, // any other node
+		HOTSPOT, // hotspotShare of frames to node 1_1, the rest uniform
+		INTRA, // only nodes on the sender's network
+		INTER; // only nodes on other networks
+
+		public static Matrix parse(String value) {
+			return valueOf(value.trim().toUpperCase());
+		}
+	}
+
+	private static final int HOTSPOT_NODE = Address.of(1, 1);
+
+	// IMIX style mix scaled to our 255 byte limit, 7:4:1 small, medium, large
+	private static final int[] IMIX_SIZES = {16, 128, 255};
+	private static final int[] IMIX_WEIGHTS = {7, 4, 1};
+
+	private final long durationNanos;
+	private final double ratePerNode; // frames per second, 0 sends as fast as the window allows
+	private final Matrix matrix;
+	private final double hotspotShare;
+	private final int minPayload;
+	private final int maxPayload;
+	private final boolean imix;
+	private final int networks;
+	private final int nodesPerNet;
+
+	private LoadProfile(long durationNanos, double ratePerNode, Matrix matrix, double hotspotShare, int minPayload, int maxPayload, boolean imix, int networks, int nodesPerNet) {
+		this.durationNanos = durationNanos;
+		this.ratePerNode = ratePerNode;
+		this.matrix = matrix;
+		this.hotspotShare = hotspotShare;
+		this.minPayload = minPayload;
+		this.maxPayload = maxPayload;
+		this.imix = imix;
+		this.networks = networks;
+		this.nodesPerNet = nodesPerNet;
+	}
+
+	// payload is <n>, <min>-<max> (uniform) or imix
+	public static LoadProfile parse(double seconds, double ratePerNode, String payload, String matrix, double hotspotShare, int networks, int nodesPerNet) {
+		if(seconds <= 0 || ratePerNode < 0) {
+			throw new IllegalArgumentException("load seconds must be positive and rate not negative");
+		}
+		if(hotspotShare < 0 || hotspotShare > 1) {
+			throw new IllegalArgumentException("hotspot share must be 0 to 1");
+		}
+		Matrix m = Matrix.parse(matrix);
+		if(m == Matrix.INTRA && nodesPerNet < 2) {
+			throw new IllegalArgumentException("intra traffic needs at least 2 nodes per network");
+		}
+		if(m == Matrix.INTER && networks < 2) {
+			throw new IllegalArgumentException("inter traffic needs at least 2 networks");
+		}
+		if(networks * nodesPerNet < 2) {
+			throw new IllegalArgumentException(m.name().toLowerCase() + " traffic needs at least 2 nodes");
+		}
+
+		int min, max;
+		boolean imix = false;
+		String p = payload.trim().toLowerCase();
+		if(p.equals("imix")) {
+			imix = true;
+			min = IMIX_SIZES[0];
+			max = IMIX_SIZES[IMIX_SIZES.length - 1];
+		} else if(p.contains("-")) {
+			String[] parts = p.split("-", 2);
+			min = Integer.parseInt(parts[0].trim());
+			max = Integer.parseInt(parts[1].trim());
+		} else {
+			min = max = Integer.parseInt(p);
+		}
+		if(min < 1 || max > Node.MAX_MESSAGE || min > max) {
+			throw new IllegalArgumentException("payload sizes must be 1 to " + Node.MAX_MESSAGE);
+		}
+
+		long nanos = (long) (seconds * TimeUnit.SECONDS.toNanos(1));
+		return new LoadProfile(nanos, ratePerNode, m, hotspotShare, min, max, imix, networks, nodesPerNet);
+	}
+
+	public long durationNanos() {
+		return durationNanos;
+	}
+
+	public double ratePerNode() {
+		return ratePerNode;
+	}
+
+	@Override
+	public String toString() {
+		String sizes = imix ? "imix" : minPayload == maxPayload ? String.valueOf(minPayload) : minPayload + "-" + maxPayload;
+		String rate = ratePerNode > 0 ? ratePerNode + "/s per node" : "unlimited";
+		String m = matrix == Matrix.HOTSPOT ? "hotspot(" + hotspotShare + ")" : matrix.name().toLowerCase();
+		return "duration=" + TimeUnit.NANOSECONDS.toMillis(durationNanos) + "ms rate=" + rate + " payload=" + sizes + " matrix=" + m;
+	}
+
+	public Generator generatorFor(int nodeId) {
+		return new Generator(nodeId);
+	}
+
+	// Per node source of destinations, payloads and send times
+	public class Generator {
+		private final int self;
+		private final int[] others; // destinations allowed by the matrix
+		private final SplittableRandom rnd;
+		private final byte[][] payloads; // one shared buffer per size up to one frame, contents don't matter
+		private final byte[] longest; // longer payloads are cut from this one, they go out as fragments
+		private final long intervalNanos;
+		private long nextSendNanos;
+
+		private Generator(int nodeId) {
+			this.self = nodeId;
+			this.rnd = new SplittableRandom(nodeId * 0x9E3779B97F4A7C15L);
+			this.intervalNanos = ratePerNode > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / ratePerNode) : 0;
+
+			List<Integer> ids = new ArrayList<>();
+			int selfNet = Address.net(nodeId);
+			for(int net = 1; net <= networks; net++) {
+				if(matrix == Matrix.INTRA && net != selfNet) continue;
+				if(matrix == Matrix.INTER && net == selfNet) continue;
+				for(int local = 1; local <= nodesPerNet; local++) {
+					int id = Address.of(net, local);
+					if(id != nodeId) {
+						ids.add(id);
+					}
+				}
+			}
+			this.others = ids.stream().mapToInt(Integer::intValue).toArray();
+
+			this.payloads = new byte[Frame.MAX_DATA + 1][];
+			for(int size = minPayload; size <= Math.min(maxPayload, Frame.MAX_DATA); size++) {
+				payloads[size] = fill(size);
+			}
+			this.longest = maxPayload > Frame.MAX_DATA ? fill(maxPayload) : null;
+		}
+
+		private byte[] fill(int size) {
+			byte[] b = new byte[size];
+			for(int i = 0; i < size; i++) {
+				b[i] = (byte) ('a' + i % 26);
+			}
+			return b;
+		}
+
+		private byte[] payload(int size) {
+			if(size <= Frame.MAX_DATA) {
+				return payloads[size];
+			}
+			return size == longest.length ? longest : Arrays.copyOf(longest, size);
+		}
+
+		public int maxPayload() {
+			return maxPayload;
+		}
+
+		public void start(long nowNanos) {
+			nextSendNanos = nowNanos;
+		}
+
+		public long durationNanos() {
+			return durationNanos;
+		}
+
+		// When the next frame is due on the open-loop schedule, latency is measured from here
+		// so a stalled sender still counts the time its frames spent waiting to go out
+		public long nextSendTime(long nowNanos) {
+			if(intervalNanos == 0) {
+				return nowNanos;
+			}
+			long t = nextSendNanos;
+			nextSendNanos += intervalNanos;
+			return t;
+		}
+
+		public int nextDestination() {
+			if(matrix == Matrix.HOTSPOT && self != HOTSPOT_NODE && rnd.nextDouble() < hotspotShare) {
+				return HOTSPOT_NODE;
+			}
+			return others[rnd.nextInt(others.length)];
+		}
+
+		public byte[] nextPayload() {
+			if(imix) {
+				int pick = rnd.nextInt(IMIX_WEIGHTS[0] + IMIX_WEIGHTS[1] + IMIX_WEIGHTS[2]);
+				int i = pick < IMIX_WEIGHTS[0] ? 0 : pick < IMIX_WEIGHTS[0] + IMIX_WEIGHTS[1] ? 1 : 2;
+				return payloads[IMIX_SIZES[i]];
+			}
+			return payload(minPayload == maxPayload ? minPayload : rnd.nextInt(minPayload, maxPayload + 1));
+		}
+	}
+}
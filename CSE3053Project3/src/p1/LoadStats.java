@@ -0,0 +1,77 @@
+package p1;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Delivery counters and send-to-ACK latency of a node, in load mode one instance is shared by every node
+public class LoadStats {
+	private final LatencyHistogram latency = new LatencyHistogram(); // intended send time to positive ACK
+	private final LongAdder offered = new LongAdder(); // frames the generator asked for
+	private final LongAdder delivered = new LongAdder(); // positive ACKs
+	private final LongAdder retries = new LongAdder(); // resends after a timeout or NACK
+	private final LongAdder timeouts = new LongAdder();
+	private final LongAdder crcNacks = new LongAdder();
+	private final LongAdder firewalled = new LongAdder();
+	private final LongAdder failed = new LongAdder(); // gave up after MAX_RETRIES
+	private final LongAccumulator firstSend = new LongAccumulator(Math::min, Long.MAX_VALUE);
+	private final LongAccumulator lastDone = new LongAccumulator(Math::max, Long.MIN_VALUE);
+
+	// The run spans from the first node starting to send to the last one finishing
+	public void sendingStarted(long nowNanos) {
+		firstSend.accumulate(nowNanos);
+	}
+
+	public void sendingFinished(long nowNanos) {
+		lastDone.accumulate(nowNanos);
+	}
+
+	public void offered() {
+		offered.increment();
+	}
+
+	public void delivered(long latencyNanos, int attempts) {
+		latency.record(latencyNanos);
+		delivered.increment();
+		retries.add(attempts - 1);
+	}
+
+	public void firewalled(int attempts) {
+		firewalled.increment();
+		retries.add(attempts - 1);
+	}
+
+	public void failed(int attempts) {
+		failed.increment();
+		retries.add(attempts - 1);
+	}
+
+	public void timeout() {
+		timeouts.increment();
+	}
+
+	public void crcNack() {
+		crcNacks.increment();
+	}
+
+	public LatencyHistogram latency() {
+		return latency;
+	}
+
+	// One line per figure for the end of run log
+	public String report() {
+		double seconds = Math.max(1, lastDone.get() - firstSend.get()) / 1e9;
+		long n = delivered.sum();
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("offered=%d delivered=%d firewalled=%d failed=%d in %.2fs%n", offered.sum(), n, firewalled.sum(), failed.sum(), seconds));
+		sb.append(String.format("throughput=%.1f frames/s%n", n / seconds));
+		sb.append(String.format("latency us: p50=%s p99=%s p999=%s max=%s mean=%.1f%n",
+				micros(latency.percentile(0.50)), micros(latency.percentile(0.99)), micros(latency.percentile(0.999)), micros(latency.max()), latency.mean() / 1000));
+		sb.append(String.format("retries=%d timeouts=%d crcNacks=%d", retries.sum(), timeouts.sum(), crcNacks.sum()));
+		return sb.toString();
+	}
+
+	private static String micros(long nanos) {
+		return String.valueOf(TimeUnit.NANOSECONDS.toMicros(nanos));
+	}
+}
@@ -0,0 +1,127 @@
+package p1;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.function.Supplier;
+
+// Level gated logger for switches and nodes, lines are handed to the shared AsyncLogAppender
+// Per frame tracing goes through the Supplier overloads so nothing is built unless the level is on
+public final class Log {
+	public enum Level {
+		TRACE, DEBUG, INFO, WARN, ERROR, OFF;
+
+		// Parses the loglevel= option, e.g. debug
+		public static Level parse(String value) {
+			return valueOf(value.trim().toUpperCase());
+		}
+	}
+
+	private static volatile Level threshold = Level.INFO;
+	private static volatile AsyncLogAppender appender;
+
+	private final String tag;
+
+	private Log(String tag) {
+		this.tag = tag;
+	}
+
+	// Logger whose lines all start with tag, e.g. "[CCS] "
+	public static Log get(String tag) {
+		return new Log(tag);
+	}
+
+	// Sets the level and where lines go, null fileName writes to stdout
+	// Call once at startup, lines logged before that go to stdout
+	public static synchronized void configure(Level level, String fileName) throws IOException {
+		threshold = level;
+		AsyncLogAppender old = appender;
+		appender = fileName == null ? AsyncLogAppender.toStdout() : AsyncLogAppender.toFile(fileName);
+		if(old != null) {
+			old.close();
+		}
+	}
+
+	public static Level level() {
+		return threshold;
+	}
+
+	// Writes out everything queued and stops the appender thread
+	public static synchronized void shutdown() {
+		if(appender != null) {
+			appender.close();
+			appender = null;
+		}
+	}
+
+	public static boolean isEnabled(Level level) {
+		return level.compareTo(threshold) >= 0 && level != Level.OFF;
+	}
+
+	public boolean isTraceEnabled() {
+		return isEnabled(Level.TRACE);
+	}
+
+	public boolean isDebugEnabled() {
+		return isEnabled(Level.DEBUG);
+	}
+
+	public void trace(Supplier<String> msg) {
+		if(isEnabled(Level.TRACE)) {
+			append(Level.TRACE, msg.get());
+		}
+	}
+
+	public void debug(Supplier<String> msg) {
+		if(isEnabled(Level.DEBUG)) {
+			append(Level.DEBUG, msg.get());
+		}
+	}
+
+	public void debug(String msg) {
+		if(isEnabled(Level.DEBUG)) {
+			append(Level.DEBUG, msg);
+		}
+	}
+
+	public void info(String msg) {
+		if(isEnabled(Level.INFO)) {
+			append(Level.INFO, msg);
+		}
+	}
+
+	public void warn(String msg) {
+		if(isEnabled(Level.WARN)) {
+			append(Level.WARN, msg);
+		}
+	}
+
+	public void error(String msg) {
+		if(isEnabled(Level.ERROR)) {
+			append(Level.ERROR, msg);
+		}
+	}
+
+	public void error(String msg, Throwable t) {
+		if(isEnabled(Level.ERROR)) {
+			StringWriter sw = new StringWriter();
+			t.printStackTrace(new PrintWriter(sw));
+			append(Level.ERROR, msg + System.lineSeparator() + sw.toString().stripTrailing());
+		}
+	}
+
+	private void append(Level level, String msg) {
+		AsyncLogAppender a = appender;
+		if(a == null) {
+			a = defaultAppender();
+		}
+		a.append(level, tag, msg);
+	}
+
+	private static synchronized AsyncLogAppender defaultAppender() {
+		if(appender == null) {
+			appender = AsyncLogAppender.toStdout();
+		}
+		return appender;
+	}
+}
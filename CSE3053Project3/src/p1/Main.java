@@ -1,18 +1,35 @@
 package p1;
 
+import java.io.IOException;
 import java.net.Socket;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+
+import javax.management.JMException;
 
 public class Main {
 
 	public static void main(String[] args) {
 		if(args.length < 3) {
-			System.out.println("Usage: java p1.Main <nodesPerNet> <casPort> <ccsPort> [host=127.0.0.1]");
+			System.out.println("Usage: java p1.Main <nodesPerNet> <casPort> <ccsPort> [host=127.0.0.1] [nio=<loops>] [exec=platform|virtual] [carriers=<n>] [window=<n>] [output=none|file|mmap] [durability=enqueue|fsync] [outbatch=<bytes>] [outlinger=<micros>] [batch=<bytes>] [linger=<micros>] [pcap=<prefix>] [aging=<seconds>] [egress=<frames>] [overflow=drop-tail|drop-head|block] [blockms=<ms>] [loglevel=trace|debug|info|warn|error|off] [logfile=<file>] [crc=crc32c|sum8] [networks=<n>] [load=<seconds> [rate=<frames/s>] [payload=<n>|<min>-<max>|imix] [matrix=uniform|hotspot|intra|inter] [hotspot=<share>]] [metrics=<port>] [heartbeat=<ms>] [ccsfail=<seconds>] [hold=<frames>] [spill=<prefix>] [spillmb=<mb>] [trunks=<links>] [groups=<file>] [shards=<file> [shard=<id>]] [role=all|ccs|edge] [nets=<a>-<b>]");
 			System.out.println("Example: java p1.Main 3 5000 6000");
 			return;
 		}
 		
+		// Optional key=value settings after the ports
+		Map<String, String> opts = new HashMap<>();
+		for(int i = 3; i < args.length; i++) {
+			String[] kv = args[i].split("=", 2);
+			if(kv.length < 2) {
+				System.err.println("Ignoring option without '=': " + args[i]);
+				continue;
+			}
+			opts.put(kv[0].trim().toLowerCase(), kv[1].trim());
+		}
+		
 		int nodesPerNet, casPort, ccsPort;
 		int shadowCcsPort;
 		try {
@@ -25,28 +42,299 @@ public class Main {
 			return;
 		}
 		
-		if(nodesPerNet < 1 || nodesPerNet > 15) {
-			System.err.println("nodesPerNet must be between 1 and 15.");
+		// Nodes and networks past 15 get extended addresses, see Address
+		if(nodesPerNet < 1 || nodesPerNet > Address.MAX_LOCAL) {
+			System.err.println("nodesPerNet must be between 1 and " + Address.MAX_LOCAL + ".");
+			return;
+		}
+		
+		// Per frame lines are TRACE/DEBUG, so the INFO default keeps them off the hot path
+		try {
+			Log.Level level = opts.containsKey("loglevel") ? Log.Level.parse(opts.get("loglevel")) : Log.Level.INFO;
+			Log.configure(level, opts.get("logfile"));
+		} catch(IOException | IllegalArgumentException e) {
+			System.err.println("Bad loglevel/logfile option: " + e.getMessage());
 			return;
 		}
+		Log log = Log.get("[Main] ");
 		
-		String host = "localhost";
+		// New frames carry a CRC-32C unless crc=sum8 asks for the old 8 bit sum, both are always accepted
+		if(opts.containsKey("crc")) {
+			try {
+				Frame.setChecksum(Frame.Checksum.parse(opts.get("crc")));
+			} catch(IllegalArgumentException e) {
+				System.err.println("Bad crc option: " + e.getMessage());
+				return;
+			}
+		}
+		
+		String host = opts.getOrDefault("host", "localhost");
 		int numNetworks = 3;
+		try {
+			if(opts.containsKey("networks")) {
+				numNetworks = Integer.parseInt(opts.get("networks"));
+			}
+		} catch(NumberFormatException e) {
+			System.err.println("Bad networks option: " + e.getMessage());
+			return;
+		}
+		if(numNetworks < 1 || numNetworks > Address.MAX_NET || casPort + numNetworks > 65535) {
+			System.err.println("networks must be at least 1 and leave casPort + networks a valid port.");
+			return;
+		}
+		
+		// shards=<file> splits the core into CCS shards that each own some networks, see ShardMap. role= runs only
+		// the core (ccs) or only CAS switches and nodes (edge) in this JVM, so a cluster can span several JVMs,
+		// with shard= and nets= picking which shard and which networks
+		ShardMap shardMap = null;
+		if(opts.containsKey("shards")) {
+			try {
+				shardMap = ShardMap.load(Paths.get(opts.get("shards")));
+			} catch(IOException | IllegalArgumentException e) {
+				System.err.println("Bad shards option: " + e.getMessage());
+				return;
+			}
+		}
+		String role = opts.getOrDefault("role", "all").toLowerCase();
+		if(!role.equals("all") && !role.equals("ccs") && !role.equals("edge")) {
+			System.err.println("role must be all, ccs or edge.");
+			return;
+		}
+		int onlyShard = 0;
+		int firstNet = 1, lastNet = numNetworks;
+		try {
+			if(opts.containsKey("shard")) {
+				onlyShard = Integer.parseInt(opts.get("shard"));
+			}
+			if(opts.containsKey("nets")) {
+				String[] range = opts.get("nets").split("-", 2);
+				firstNet = Integer.parseInt(range[0].trim());
+				lastNet = range.length > 1 ? Integer.parseInt(range[1].trim()) : firstNet;
+			}
+		} catch(NumberFormatException e) {
+			System.err.println("Bad shard/nets option: " + e.getMessage());
+			return;
+		}
+		if(onlyShard != 0 && (shardMap == null || shardMap.shard(onlyShard) == null)) {
+			System.err.println("shard must be one of the shards in the shards file.");
+			return;
+		}
+		if(firstNet < 1 || firstNet > lastNet || lastNet > numNetworks) {
+			System.err.println("nets must be a range within 1 to networks.");
+			return;
+		}
+		if(role.equals("ccs")) {
+			firstNet = 1;
+			lastNet = 0; // no CAS switches or nodes here
+		}
+		if(shardMap != null) {
+			for(int net = firstNet; net <= lastNet; net++) {
+				if(shardMap.shardOf(net) == null) {
+					System.err.println("Network " + net + " is not in any shard.");
+					return;
+				}
+			}
+		}
+		
+		// All CAS node ports share one small set of selector threads in NIO mode
+		NioEventLoopGroup eventLoops = null;
+		if(opts.containsKey("nio")) {
+			try {
+				eventLoops = new NioEventLoopGroup("CAS-nio", Integer.parseInt(opts.get("nio")));
+			} catch(IOException | IllegalArgumentException e) {
+				System.err.println("Bad nio option: " + e.getMessage());
+				return;
+			}
+		}
+		
+		// CCS trunk handlers run on platform threads unless exec=virtual
+		ExecutionMode ccsMode = ExecutionMode.parse(opts.get("exec"));
+		if(opts.containsKey("carriers")) {
+			try {
+				ExecutionMode.setCarrierThreads(Integer.parseInt(opts.get("carriers")));
+			} catch(IllegalArgumentException e) {
+				System.err.println("Bad carriers option: " + e.getMessage());
+				return;
+			}
+		}
 		
 		// Start the switch thread so it can accept connections
-		CCSSwitch ccs = new CCSSwitch(ccsPort);
-		CCSShadowSwitch shadowCcs= new CCSShadowSwitch(shadowCcsPort);
-		Thread ccsThread = new Thread(ccs, "CCS");
-		Thread shadowCCSThread = new Thread(shadowCcs, "CCS-Shadow");
-		ccsThread.start();
-		shadowCCSThread.start();
+		// One CCS and its shadow, or a pair per shard of a sharded core, and none in an edge JVM
+		List<CCSSwitch> primaries = new ArrayList<>();
+		List<CCSShadowSwitch> shadows = new ArrayList<>();
+		if(!role.equals("edge")) {
+			if(shardMap == null) {
+				primaries.add(new CCSSwitch(ccsPort));
+				shadows.add(new CCSShadowSwitch(shadowCcsPort));
+				shadows.get(0).mirror(host, ccsPort);
+			} else {
+				for(ShardMap.Shard shard : shardMap.shards()) {
+					if(onlyShard != 0 && shard.id() != onlyShard) continue;
+					CCSSwitch ccs = new CCSSwitch(shard.port());
+					CCSShadowSwitch shadowCcs = new CCSShadowSwitch(shard.port() + 1);
+					ccs.setShards(shardMap, shard.id());
+					shadowCcs.setShards(shardMap, shard.id());
+					shadowCcs.mirror(shard.host(), shard.port());
+					primaries.add(ccs);
+					shadows.add(shadowCcs);
+				}
+			}
+		}
+		List<CCSSwitch> cores = new ArrayList<>(primaries);
+		cores.addAll(shadows);
+		for(CCSSwitch core : cores) {
+			core.setExecutionMode(ccsMode);
+		}
+		
+		// Trunk writers only coalesce frames already queued unless batch=<bytes> is given, then they linger for more
+		int batchBytes = 0;
+		long lingerMicros = 0;
+		try {
+			if(opts.containsKey("batch")) {
+				batchBytes = Integer.parseInt(opts.get("batch"));
+				lingerMicros = 50;
+			}
+			if(opts.containsKey("linger")) {
+				lingerMicros = Long.parseLong(opts.get("linger"));
+			}
+		} catch(NumberFormatException e) {
+			System.err.println("Bad batch/linger option: " + e.getMessage());
+			return;
+		}
+		if(batchBytes < 0 || lingerMicros < 0) {
+			System.err.println("batch and linger must not be negative.");
+			return;
+		}
+		for(CCSSwitch core : cores) {
+			core.setTrunkBatching(batchBytes, lingerMicros);
+		}
+		
+		// Every switch port gets a bounded egress queue, a full one drops or briefly blocks per overflow=
+		int egressFrames = EgressQueue.DEFAULT_CAPACITY;
+		EgressQueue.OverflowPolicy overflow = EgressQueue.OverflowPolicy.DROP_TAIL;
+		long blockMs = EgressQueue.DEFAULT_BLOCK_MS;
+		try {
+			if(opts.containsKey("egress")) {
+				egressFrames = Integer.parseInt(opts.get("egress"));
+			}
+			if(opts.containsKey("overflow")) {
+				overflow = EgressQueue.OverflowPolicy.parse(opts.get("overflow"));
+			}
+			if(opts.containsKey("blockms")) {
+				blockMs = Long.parseLong(opts.get("blockms"));
+			}
+		} catch(IllegalArgumentException e) {
+			System.err.println("Bad egress/overflow/blockms option: " + e.getMessage());
+			return;
+		}
+		if(egressFrames < 1 || blockMs < 0) {
+			System.err.println("egress must be at least 1 and blockms not negative.");
+			return;
+		}
+		for(CCSSwitch core : cores) {
+			core.setEgressPolicy(egressFrames, overflow, blockMs);
+		}
+		
+		// Forwarding table entries expire after this long without traffic, like MAC tables
+		long agingMs = 300_000;
+		if(opts.containsKey("aging")) {
+			try {
+				agingMs = Long.parseLong(opts.get("aging")) * 1000;
+			} catch(NumberFormatException e) {
+				System.err.println("Bad aging option: " + e.getMessage());
+				return;
+			}
+		}
+		for(CCSSwitch core : cores) {
+			core.setTableAging(agingMs);
+		}
+		
+		// CAS switches heartbeat both CCSs and move their trunk to the shadow once the primary goes quiet,
+		// ccsfail=<seconds> crashes the primary that far into the run to show it
+		long heartbeatMs = CASSwitch.DEFAULT_HEARTBEAT_MS;
+		long ccsFailMs = -1;
+		try {
+			if(opts.containsKey("heartbeat")) {
+				heartbeatMs = Long.parseLong(opts.get("heartbeat"));
+			}
+			if(opts.containsKey("ccsfail")) {
+				ccsFailMs = (long) (Double.parseDouble(opts.get("ccsfail")) * 1000);
+			}
+		} catch(NumberFormatException e) {
+			System.err.println("Bad heartbeat/ccsfail option: " + e.getMessage());
+			return;
+		}
+		if(heartbeatMs < 1) {
+			System.err.println("heartbeat must be at least 1 ms.");
+			return;
+		}
+		// Only the primary watches firewall.txt, the shadow gets each reload from it like any other change
+		// Every shard loads the file itself
+		for(CCSSwitch ccs : primaries) {
+			ccs.watchFirewall();
+		}
+		
+		// Frames for other networks are held while a CAS has no trunk up, past hold=<frames> they spill to
+		// a memory-mapped <prefix>-cas<n>.spill file of spillmb=<mb> when spill= is given
+		int holdFrames = HoldQueue.DEFAULT_CAPACITY;
+		int spillMb = HoldQueue.DEFAULT_SPILL_MB;
+		String spill = opts.get("spill");
+		try {
+			if(opts.containsKey("hold")) {
+				holdFrames = Integer.parseInt(opts.get("hold"));
+			}
+			if(opts.containsKey("spillmb")) {
+				spillMb = Integer.parseInt(opts.get("spillmb"));
+			}
+		} catch(NumberFormatException e) {
+			System.err.println("Bad hold/spillmb option: " + e.getMessage());
+			return;
+		}
+		if(holdFrames < 1 || spillMb < 1 || spillMb > 2047) {
+			System.err.println("hold must be at least 1 and spillmb 1 to 2047.");
+			return;
+		}
+		// Each CAS bundles trunks=<links> parallel connections to its CCS and shadow, flows are hashed over them
+		int trunkLinks = 1;
+		if(opts.containsKey("trunks")) {
+			try {
+				trunkLinks = Integer.parseInt(opts.get("trunks"));
+			} catch(NumberFormatException e) {
+				System.err.println("Bad trunks option: " + e.getMessage());
+				return;
+			}
+		}
+		if(trunkLinks < 1 || trunkLinks > CASSwitch.MAX_TRUNK_LINKS) {
+			System.err.println("trunks must be 1 to " + CASSwitch.MAX_TRUNK_LINKS + ".");
+			return;
+		}
+		List<Thread> coreThreads = new ArrayList<>();
+		for(CCSSwitch core : cores) {
+			String name = (core instanceof CCSShadowSwitch ? "CCS-Shadow" : "CCS") + (core.shardId() != 0 ? "-" + core.shardId() : "");
+			Thread t = new Thread(core, name);
+			t.start();
+			coreThreads.add(t);
+		}
 		
 		CASSwitch[] casArray = new CASSwitch[numNetworks + 1];
 		Thread[] casThreads = new Thread[numNetworks + 1];
 		
-		for(int net = 1; net <= numNetworks; net++) {
+		for(int net = firstNet; net <= lastNet; net++) {
 			int casBasePort = casPort + net;
-			CASSwitch cas = new CASSwitch(casBasePort, net, host, ccsPort);
+			// A sharded core's CAS switches use the shard that owns their network
+			String ccsHost = shardMap == null ? host : shardMap.shardOf(net).host();
+			int netCcsPort = shardMap == null ? ccsPort : shardMap.shardOf(net).port();
+			CASSwitch cas = new CASSwitch(casBasePort, net, ccsHost, netCcsPort);
+			if(eventLoops != null) {
+				cas.useEventLoops(eventLoops);
+			}
+			cas.setTrunkBatching(batchBytes, lingerMicros);
+			cas.setTrunkLinks(trunkLinks);
+			cas.setEgressPolicy(egressFrames, overflow, blockMs);
+			cas.setTableAging(agingMs);
+			cas.setStandby(ccsHost, netCcsPort + 1);
+			cas.setHeartbeat(heartbeatMs);
+			cas.setTrunkHold(holdFrames, spill == null ? null : spill + "-cas" + net + ".spill", spillMb);
 			casArray[net] = cas;
 			Thread t = new Thread(cas, "CAS-" + net);
 			casThreads[net] = t;
@@ -59,12 +347,127 @@ public class Main {
 			Thread.currentThread().interrupt();
 		}
 		
+        // Frames each node keeps in flight, 1 is stop-and-wait
+        int window = 1;
+        if(opts.containsKey("window")) {
+        	try {
+        		window = Integer.parseInt(opts.get("window"));
+        	} catch(NumberFormatException e) {
+        		window = -1;
+        	}
+        	if(window < 1 || window > Node.MAX_WINDOW) {
+        		System.err.println("window must be between 1 and " + Node.MAX_WINDOW + ".");
+        		return;
+        	}
+        }
+        
+        // Nodes hand received messages to a writer thread that writes them to node#_#output.txt in batches,
+        // output=none|file|mmap picks how (default file, none in load mode) and durability= when the ACK goes out
+        OutputLog.Durability durability;
+        OutputLog.Backend outputBackend;
+        int outputBatch;
+        long outputLinger;
+        String outputMode = opts.getOrDefault("output", opts.containsKey("load") ? "none" : "file");
+        try {
+        	durability = OutputLog.Durability.parse(opts.getOrDefault("durability", "enqueue"));
+        	outputBackend = outputMode.equalsIgnoreCase("none") ? null : OutputLog.Backend.parse(outputMode);
+        	outputBatch = Integer.parseInt(opts.getOrDefault("outbatch", String.valueOf(OutputLog.DEFAULT_BATCH_BYTES)));
+        	outputLinger = Long.parseLong(opts.getOrDefault("outlinger", "0"));
+        } catch(IllegalArgumentException e) {
+        	System.err.println("Bad output/durability/outbatch/outlinger option: " + e.getMessage());
+        	return;
+        }
+        if(outputBatch < 1 || outputLinger < 0) {
+        	System.err.println("outbatch must be positive and outlinger not negative.");
+        	return;
+        }
+        
+        // groups=<file> has nodes join multicast groups when they start, see GroupMap
+        GroupMap groupMap = null;
+        if(opts.containsKey("groups")) {
+        	try {
+        		groupMap = GroupMap.load(Paths.get(opts.get("groups")));
+        	} catch(IOException | IllegalArgumentException e) {
+        		System.err.println("Bad groups option: " + e.getMessage());
+        		return;
+        	}
+        	log.info("Multicast: " + groupMap.groupCount() + " groups from " + opts.get("groups"));
+        }
+        
+        // Load mode replaces the input files with generated traffic, see LoadProfile
+        LoadProfile loadProfile = null;
+        LoadStats loadStats = new LoadStats();
+        if(opts.containsKey("load")) {
+        	try {
+        		loadProfile = LoadProfile.parse(
+        				Double.parseDouble(opts.get("load")),
+        				Double.parseDouble(opts.getOrDefault("rate", "0")),
+        				opts.getOrDefault("payload", "64"),
+        				opts.getOrDefault("matrix", "uniform"),
+        				Double.parseDouble(opts.getOrDefault("hotspot", "0.5")),
+        				numNetworks, nodesPerNet);
+        	} catch(IllegalArgumentException e) {
+        		System.err.println("Bad load option: " + e.getMessage());
+        		return;
+        	}
+        	log.info("Load mode: " + ((lastNet - firstNet + 1) * nodesPerNet) + " nodes, " + loadProfile);
+        }
+        
+        // Counters go out as MBeans under p1 and as Prometheus text on http://host:<port>/metrics
+        MetricsHttpServer metricsServer = null;
+        if(opts.containsKey("metrics")) {
+        	try {
+        		metricsServer = new MetricsHttpServer(Metrics.REGISTRY, host, Integer.parseInt(opts.get("metrics")));
+        		metricsServer.start();
+        		Metrics.REGISTRY.publishJmx();
+        		log.info("Metrics on http://" + host + ":" + metricsServer.port() + "/metrics and JMX domain " + Metrics.JMX_DOMAIN);
+        	} catch(IOException | JMException | IllegalArgumentException e) {
+        		log.error("Could not start metrics: " + e.getMessage());
+        	}
+        }
+        
+        if(ccsFailMs >= 0 && !primaries.isEmpty()) {
+        	CCSSwitch ccs = primaries.get(0);
+        	final long failAfterMs = ccsFailMs;
+        	Thread failer = new Thread(() -> {
+        		try {
+        			Thread.sleep(failAfterMs);
+        			ccs.simulateFailure();
+        		} catch(InterruptedException ignored) {
+        			
+        		}
+        	}, "CCS-fail");
+        	failer.setDaemon(true);
+        	failer.start();
+        }
+        
+        // A core-only JVM serves the edge JVMs until it is stopped
+        if(role.equals("ccs")) {
+        	log.info("Running " + primaries.size() + " CCS" + (shardMap != null ? " shard(s)" : "") + " with no CAS switches or nodes, stop with Ctrl-C");
+        	for(Thread t : coreThreads) {
+        		try {
+        			t.join();
+        		} catch(InterruptedException e) {
+        			Thread.currentThread().interrupt();
+        			break;
+        		}
+        	}
+        }
+        
         List<Thread> nodeThreads = new ArrayList<>();
 
-        for (int net = 1; net <= numNetworks; net++) {
+        for (int net = firstNet; net <= lastNet; net++) {
             int casBasePort = casPort + net;
             for (int localId = 1; localId <= nodesPerNet; localId++) {
                 Node node = new Node(net, localId, host, casBasePort);
+                node.setWindowSize(window);
+                if(loadProfile != null) {
+                	node.setLoad(loadProfile, loadStats);
+                }
+                node.setOutput(durability, outputBackend, outputBatch, outputLinger);
+                if(groupMap != null) {
+                	node.setGroups(groupMap.groupsOf(Address.of(net, localId)));
+                }
                 Thread t = new Thread(node,
                         "Node" + net + "_" + localId);
                 t.start();
@@ -78,12 +481,29 @@ public class Main {
                 t.join();
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
-                System.err.println("Interrupted while waiting for " + t.getName());
+                log.warn("Interrupted while waiting for " + t.getName());
             }
         }
 
+        if(loadProfile != null) {
+        	for(String line : loadStats.report().split("\n")) {
+        		log.info("Load " + line.trim());
+        	}
+        }
+        
+        // Dump the capture rings before shutting down
+        String pcap = opts.get("pcap");
+        if(pcap != null) {
+        	for(int net = firstNet; net <= lastNet; net++) {
+        		casArray[net].exportCapture(pcap + "-cas" + net + ".pcap");
+        	}
+        	for(CCSSwitch ccs : primaries) {
+        		ccs.exportCapture(pcap + "-ccs" + (ccs.shardId() != 0 ? ccs.shardId() : "") + ".pcap");
+        	}
+        }
+        
         // Shut down CAS's
-        for (int net = 1; net <= numNetworks; net++) {
+        for (int net = firstNet; net <= lastNet; net++) {
             casArray[net].shutdown();
             int casBasePort = casPort + net;
             // dummy connect to break accept()
@@ -93,28 +513,39 @@ public class Main {
         }
 
         // Shut down CSS
-        ccs.shutdown();
-        shadowCcs.shutdown();
-        try {
-            new Socket(host, ccsPort).close();
-        } catch (Exception ignored) {}
-
-        try {
-        	new Socket(host, shadowCcsPort).close();
-        } catch(Exception ignored) {}
+        for(CCSSwitch core : cores) {
+        	core.shutdown();
+        	try {
+        		new Socket(host, core.port()).close();
+        	} catch(Exception ignored) {}
+        }
         
         try {
-            for (int net = 1; net <= numNetworks; net++) {
+            for (int net = firstNet; net <= lastNet; net++) {
                 casThreads[net].join();
             }
-            ccsThread.join();
-            shadowCCSThread.join();
+            for(Thread t : coreThreads) {
+            	t.join();
+            }
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
-            System.err.println("Interrupted while waiting for switches to stop.");
+            log.warn("Interrupted while waiting for switches to stop.");
+        }
+        
+        if(eventLoops != null) {
+        	eventLoops.shutdown();
+        }
+        
+        if(metricsServer != null) {
+        	metricsServer.stop();
+        	Metrics.REGISTRY.unpublishJmx();
         }
 
-        System.out.println("[Main] All nodes and switches finished.");
+        // Anything still held this long after shutdown was never released
+        log.info(BufferPool.HEAP.stats() + " suspectedLeaks=" + BufferPool.HEAP.suspectedLeaks(1000));
+        log.info(BufferPool.DIRECT.stats() + " suspectedLeaks=" + BufferPool.DIRECT.suspectedLeaks(1000));
+        log.info("All nodes and switches finished.");
+        Log.shutdown();
     }
 
 }
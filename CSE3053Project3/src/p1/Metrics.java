@@ -0,0 +1,196 @@
+package p1;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// Process wide registry of counters and gauges for the switches and nodes
+// Counters are striped LongAdders that callers keep a reference to, so the hot path never looks anything up
+// Every metric is owned by its first label (e.g. switch=cas1), which becomes one MBean when JMX is published
+public class Metrics {
+	public static final Metrics REGISTRY = new Metrics();
+	public static final String JMX_DOMAIN = "p1";
+
+	private final Map<String, Metric> metrics = new ConcurrentHashMap<>(); // by name plus labels
+	private final Map<String, String> help = new ConcurrentHashMap<>(); // by name
+	private final Map<String, MetricsMBean> owners = new ConcurrentHashMap<>();
+	private volatile MBeanServer jmx;
+
+	// Counter for name with label pairs, e.g. counter("cas_frames_in_total", "...", "switch", "cas1", "port", "3")
+	// Asking again for the same name and labels returns the same counter
+	public Counter counter(String name, String helpText, String... labels) {
+		return (Counter) register(name, helpText, labels, () -> new Counter(name, labels));
+	}
+
+	public void gauge(String name, String helpText, LongSupplier value, String... labels) {
+		register(name, helpText, labels, () -> new Gauge(name, labels, value));
+	}
+
+	private Metric register(String name, String helpText, String[] labels, Supplier<Metric> create) {
+		if(labels.length % 2 != 0) {
+			throw new IllegalArgumentException("labels must be key/value pairs");
+		}
+		help.putIfAbsent(name, helpText);
+		Metric m = metrics.computeIfAbsent(key(name, labels), k -> create.get());
+		if(labels.length > 0) {
+			MetricsMBean bean = owners.computeIfAbsent(labels[0] + "=" + labels[1], k -> new MetricsMBean(this, labels[0], labels[1]));
+			if(jmx != null) {
+				bean.registerWith(jmx);
+			}
+		}
+		return m;
+	}
+
+	// Drops a metric, e.g. the per port counters of a closed connection
+	public void remove(String name, String... labels) {
+		metrics.remove(key(name, labels));
+	}
+
+	private static String key(String name, String[] labels) {
+		return name + labelText(labels, 0);
+	}
+
+	// {k="v",...} from labels[from] on, empty without labels
+	static String labelText(String[] labels, int from) {
+		if(labels.length <= from) {
+			return "";
+		}
+		StringBuilder sb = new StringBuilder("{");
+		for(int i = from; i < labels.length; i += 2) {
+			if(i > from) {
+				sb.append(',');
+			}
+			sb.append(labels[i]).append("=\"").append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+		}
+		return sb.append('}').toString();
+	}
+
+	// Metrics owned by label key=value, used by its MBean
+	List<Metric> ownedBy(String key, String value) {
+		List<Metric> out = new ArrayList<>();
+		for(Metric m : metrics.values()) {
+			if(m.labels.length >= 2 && m.labels[0].equals(key) && m.labels[1].equals(value)) {
+				out.add(m);
+			}
+		}
+		return out;
+	}
+
+	// Registers one MBean per owner with the platform MBean server, owners added later register themselves
+	public synchronized void publishJmx() throws JMException {
+		if(jmx != null) {
+			return;
+		}
+		jmx = ManagementFactory.getPlatformMBeanServer();
+		for(MetricsMBean bean : owners.values()) {
+			bean.registerWith(jmx);
+		}
+	}
+
+	public synchronized void unpublishJmx() {
+		if(jmx == null) {
+			return;
+		}
+		for(MetricsMBean bean : owners.values()) {
+			bean.unregisterFrom(jmx);
+		}
+		jmx = null;
+	}
+
+	// Prometheus text exposition format 0.0.4, families sorted by name
+	public String scrape() {
+		Map<String, List<Metric>> families = new TreeMap<>();
+		for(Metric m : metrics.values()) {
+			families.computeIfAbsent(m.name, k -> new ArrayList<>()).add(m);
+		}
+		StringBuilder sb = new StringBuilder(4096);
+		for(Map.Entry<String, List<Metric>> family : families.entrySet()) {
+			List<Metric> list = family.getValue();
+			list.sort((a, b) -> labelText(a.labels, 0).compareTo(labelText(b.labels, 0)));
+			sb.append("# HELP ").append(family.getKey()).append(' ').append(help.getOrDefault(family.getKey(), "")).append('\n');
+			sb.append("# TYPE ").append(family.getKey()).append(' ').append(list.get(0).type()).append('\n');
+			for(Metric m : list) {
+				sb.append(m.name).append(labelText(m.labels, 0)).append(' ').append(m.value()).append('\n');
+			}
+		}
+		return sb.toString();
+	}
+
+	static ObjectName objectName(String key, String value) throws JMException {
+		return new ObjectName(JMX_DOMAIN, key, ObjectName.quote(value));
+	}
+
+	public abstract static class Metric {
+		final String name;
+		final String[] labels;
+
+		Metric(String name, String[] labels) {
+			this.name = name;
+			this.labels = labels.clone();
+		}
+
+		public abstract long value();
+
+		abstract String type();
+
+		// Attribute name inside the owner's MBean, e.g. cas_frames_in_total{port="3"}
+		String attributeName() {
+			return name + labelText(labels, 2);
+		}
+	}
+
+	public static final class Counter extends Metric {
+		private final LongAdder adder = new LongAdder();
+
+		private Counter(String name, String[] labels) {
+			super(name, labels);
+		}
+
+		public void inc() {
+			adder.increment();
+		}
+
+		public void add(long n) {
+			adder.add(n);
+		}
+
+		@Override
+		public long value() {
+			return adder.sum();
+		}
+
+		@Override
+		String type() {
+			return "counter";
+		}
+	}
+
+	public static final class Gauge extends Metric {
+		private final LongSupplier supplier;
+
+		private Gauge(String name, String[] labels, LongSupplier supplier) {
+			super(name, labels);
+			this.supplier = supplier;
+		}
+
+		@Override
+		public long value() {
+			return supplier.getAsLong();
+		}
+
+		@Override
+		String type() {
+			return "gauge";
+		}
+	}
+}
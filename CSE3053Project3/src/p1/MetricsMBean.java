@@ -0,0 +1,105 @@
+package p1;
+
+import java.util.List;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+// Read-only MBean with one long attribute per metric of an owner, e.g. p1:switch="cas1"
+// Attributes are looked up on every call so metrics added after registration show up too
+public class MetricsMBean implements DynamicMBean {
+	private final Metrics registry;
+	private final String key;
+	private final String value;
+	private ObjectName name; // set while registered
+
+	MetricsMBean(Metrics registry, String key, String value) {
+		this.registry = registry;
+		this.key = key;
+		this.value = value;
+	}
+
+	synchronized void registerWith(MBeanServer server) {
+		if(name != null) {
+			return;
+		}
+		try {
+			ObjectName n = Metrics.objectName(key, value);
+			if(!server.isRegistered(n)) {
+				server.registerMBean(this, n);
+			}
+			name = n;
+		} catch(JMException e) {
+			Log.get("[Metrics] ").warn("Could not register MBean for " + key + "=" + value + ": " + e.getMessage());
+		}
+	}
+
+	synchronized void unregisterFrom(MBeanServer server) {
+		if(name == null) {
+			return;
+		}
+		try {
+			server.unregisterMBean(name);
+		} catch(JMException ignored) {
+
+		}
+		name = null;
+	}
+
+	@Override
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		for(Metrics.Metric m : registry.ownedBy(key, value)) {
+			if(m.attributeName().equals(attribute)) {
+				return m.value();
+			}
+		}
+		throw new AttributeNotFoundException(attribute);
+	}
+
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+		AttributeList list = new AttributeList();
+		for(String a : attributes) {
+			try {
+				list.add(new Attribute(a, getAttribute(a)));
+			} catch(AttributeNotFoundException ignored) {
+
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("metrics are read-only");
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+		throw new ReflectionException(new NoSuchMethodException(actionName), "metrics have no operations");
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		List<Metrics.Metric> owned = registry.ownedBy(key, value);
+		MBeanAttributeInfo[] attrs = new MBeanAttributeInfo[owned.size()];
+		for(int i = 0; i < attrs.length; i++) {
+			Metrics.Metric m = owned.get(i);
+			attrs[i] = new MBeanAttributeInfo(m.attributeName(), "long", m.type(), true, false, false);
+		}
+		return new MBeanInfo(getClass().getName(), "Metrics for " + key + "=" + value, attrs, null, null, null);
+	}
+}
@@ -0,0 +1,347 @@
+package p1;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Single threaded selector loop. Owns any number of connections and reads/writes length-prefixed frames on them
+public class NioEventLoop implements Runnable {
+	private static final int INITIAL_READ_BUFFER = 512;
+	// Set on every loop thread, a loop parked on some other connection's full queue would stall all of its own
+	private static final ThreadLocal<Boolean> LOOP_THREAD = ThreadLocal.withInitial(() -> false);
+
+	private final String name;
+	private final Log log;
+	private final Selector selector;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+	private volatile boolean running = true;
+	private Thread thread;
+
+	// Called on the loop thread for each complete frame and when a connection closes
+	// The frame bytes live in the connection's read buffer and are only valid during the call
+	public interface FrameListener {
+		void onFrame(Connection conn, ByteBuffer buf, int off, int len);
+		void onClose(Connection conn);
+	}
+
+	// Called on the loop thread for each accepted channel
+	public interface AcceptListener {
+		void onAccept(SocketChannel channel);
+	}
+
+	public NioEventLoop(String name) throws IOException {
+		this.name = name;
+		this.log = Log.get("[" + name + "] ");
+		this.selector = Selector.open();
+	}
+
+	public void start() {
+		thread = new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void shutdown() {
+		running = false;
+		selector.wakeup();
+	}
+
+	public boolean inLoop() {
+		return Thread.currentThread() == thread;
+	}
+	
+	// True on any loop's thread, which must never wait for room in a queue
+	public static boolean onLoopThread() {
+		return LOOP_THREAD.get();
+	}
+
+	// Runs a task on the loop thread
+	public void execute(Runnable task) {
+		tasks.add(task);
+		if(!inLoop() && wakeupPending.compareAndSet(false, true)) {
+			selector.wakeup();
+		}
+	}
+
+	// Starts accepting on a bound server channel
+	public void listen(ServerSocketChannel server, AcceptListener listener) {
+		execute(() -> {
+			try {
+				server.configureBlocking(false);
+				server.register(selector, SelectionKey.OP_ACCEPT, listener);
+			} catch(IOException e) {
+				log.error("Could not listen: " + e.getMessage());
+			}
+		});
+	}
+
+	// Hands a connected channel to this loop, the connection is usable right away
+	// Outgoing frames wait in writeQueue, so a slow peer only fills its own queue
+	public Connection register(SocketChannel channel, FrameListener listener, EgressQueue writeQueue) {
+		Connection conn = new Connection(channel, listener, writeQueue);
+		execute(() -> {
+			try {
+				channel.configureBlocking(false);
+				conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+				conn.flushPending();
+			} catch(IOException e) {
+				conn.close();
+			}
+		});
+		return conn;
+	}
+
+	@Override
+	public void run() {
+		LOOP_THREAD.set(true);
+		while(running) {
+			try {
+				selector.select();
+			} catch(IOException e) {
+				log.error("Selector failed: " + e.getMessage());
+				break;
+			}
+			wakeupPending.set(false);
+
+			Runnable task;
+			while((task = tasks.poll()) != null) {
+				task.run();
+			}
+
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while(it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+
+				if(!key.isValid()) {
+					continue;
+				}
+
+				if(key.isAcceptable()) {
+					accept(key);
+					continue;
+				}
+
+				Connection conn = (Connection) key.attachment();
+				if(key.isReadable()) {
+					conn.read();
+				}
+				if(key.isValid() && key.isWritable()) {
+					conn.flushPending();
+				}
+			}
+		}
+
+		for(SelectionKey key : selector.keys()) {
+			if(key.attachment() instanceof Connection) {
+				((Connection) key.attachment()).close();
+			}
+		}
+		try {
+			selector.close();
+		} catch(IOException ignored) {
+
+		}
+	}
+
+	private void accept(SelectionKey key) {
+		ServerSocketChannel server = (ServerSocketChannel) key.channel();
+		AcceptListener listener = (AcceptListener) key.attachment();
+		try {
+			SocketChannel ch;
+			while((ch = server.accept()) != null) {
+				listener.onAccept(ch);
+			}
+		} catch(IOException e) {
+			if(running) {
+				log.warn("Accept failed: " + e.getMessage());
+			}
+		}
+	}
+
+	// The bytes of a queued frame to write from. A frame fanned out to several ports is one shared buffer, so each
+	// connection writes it through its own duplicate, a frame nobody else holds is written in place
+	private static ByteBuffer view(BufferPool.PooledBuffer pb) {
+		if(pb == null) {
+			return null;
+		}
+		return pb.refCount() == 1 ? pb.buffer() : pb.buffer().duplicate();
+	}
+
+	// One channel on this loop. Reads are only touched by the loop thread, writes can be queued from any thread
+	public class Connection {
+		private final SocketChannel channel;
+		private final FrameListener listener;
+		private SelectionKey key;
+		private BufferPool.PooledBuffer readBuf = BufferPool.DIRECT.acquire(INITIAL_READ_BUFFER);
+		private final EgressQueue writeQueue;
+		private BufferPool.PooledBuffer writing; // partly written frame, loop thread only
+		private ByteBuffer writingBuf; // what is left of it, see view
+		private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+		private final AtomicBoolean closed = new AtomicBoolean(false);
+
+		private Connection(SocketChannel channel, FrameListener listener, EgressQueue writeQueue) {
+			this.channel = channel;
+			this.listener = listener;
+			this.writeQueue = writeQueue;
+		}
+
+		public SocketChannel channel() {
+			return channel;
+		}
+
+		public boolean isOpen() {
+			return !closed.get();
+		}
+
+		// Queues one frame with its 2 byte length prefix, false if the connection is closed or the overflow policy dropped it
+		// No loop thread ever blocks on a queue, for them a full BLOCK queue drops the frame
+		public boolean send(ByteBuffer frame, int off, int len) {
+			if(closed.get()) {
+				return false;
+			}
+			BufferPool.PooledBuffer pb = BufferPool.DIRECT.acquire(2 + len);
+			ByteBuffer buf = pb.buffer();
+			buf.putShort(0, (short) len);
+			buf.put(2, frame, off, len);
+			buf.limit(2 + len);
+			return queue(pb);
+		}
+
+		// Queues another reference to a frame already copied with its length prefix, see EgressWriter.prefixed
+		public boolean sendShared(BufferPool.PooledBuffer prefixed) {
+			if(closed.get()) {
+				return false;
+			}
+			return queue(prefixed.retain());
+		}
+
+		private boolean queue(BufferPool.PooledBuffer pb) {
+			boolean queued = writeQueue.offer(pb, !onLoopThread());
+			if(queued && flushScheduled.compareAndSet(false, true)) {
+				execute(this::flushPending);
+			}
+			return queued;
+		}
+
+		// Reads what is available and delivers every complete frame
+		private void read() {
+			ByteBuffer rb = readBuf.buffer();
+			int n;
+			try {
+				n = channel.read(rb);
+			} catch(IOException e) {
+				n = -1;
+			}
+			if(n < 0) {
+				close();
+				return;
+			}
+
+			rb.flip();
+			while(rb.remaining() >= 2) {
+				int pos = rb.position();
+				int frameLen = rb.getShort(pos) & 0xFFFF;
+				if(rb.remaining() < 2 + frameLen) {
+					if(rb.capacity() < 2 + frameLen) {
+						// Move the partial frame to a big enough pooled buffer
+						BufferPool.PooledBuffer bigger = BufferPool.DIRECT.acquire(2 + frameLen);
+						bigger.buffer().put(rb);
+						bigger.buffer().flip();
+						readBuf.release();
+						readBuf = bigger;
+						rb = bigger.buffer();
+					}
+					break;
+				}
+				rb.position(pos + 2 + frameLen);
+				try {
+					listener.onFrame(this, rb, pos + 2, frameLen);
+				} catch(RuntimeException e) {
+					log.warn("Dropping bad frame: " + e.getMessage());
+				}
+				if(closed.get()) {
+					return;
+				}
+			}
+			rb.compact();
+		}
+
+		// Writes as much queued data as the socket takes, waits for OP_WRITE if it fills up
+		private void flushPending() {
+			if(key == null || closed.get()) {
+				return;
+			}
+			try {
+				while(true) {
+					if(writing == null) {
+						writing = writeQueue.poll();
+						writingBuf = view(writing);
+					}
+					while(writing != null) {
+						channel.write(writingBuf);
+						if(writingBuf.hasRemaining()) {
+							key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+							return;
+						}
+						writing.release();
+						writing = writeQueue.poll();
+						writingBuf = view(writing);
+					}
+					key.interestOps(SelectionKey.OP_READ);
+					flushScheduled.set(false);
+
+					// A sender may have queued after the drain but before the flag cleared
+					if(writeQueue.depth() == 0 || !flushScheduled.compareAndSet(false, true)) {
+						return;
+					}
+				}
+			} catch(IOException e) {
+				close();
+			}
+		}
+
+		public void close() {
+			if(!closed.compareAndSet(false, true)) {
+				return;
+			}
+			if(key != null) {
+				key.cancel();
+			}
+			try {
+				channel.close();
+			} catch(IOException ignored) {
+
+			}
+			writeQueue.close();
+			listener.onClose(this);
+			if(inLoop()) {
+				releaseBuffers();
+			} else {
+				execute(this::releaseBuffers);
+			}
+		}
+
+		// Buffers only the loop thread touches
+		private void releaseBuffers() {
+			readBuf.release();
+			if(writing != null) {
+				writing.release();
+				writing = null;
+				writingBuf = null;
+			}
+		}
+
+		public EgressQueue writeQueue() {
+			return writeQueue;
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package p1;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Fixed set of event loops shared by every NIO port, connections are handed out round robin
+public class NioEventLoopGroup {
+	private final NioEventLoop[] loops;
+	private final AtomicInteger nextLoop = new AtomicInteger();
+
+	public NioEventLoopGroup(String name, int threads) throws IOException {
+		if(threads < 1) {
+			throw new IllegalArgumentException("event loop group needs at least 1 thread");
+		}
+		loops = new NioEventLoop[threads];
+		for(int i = 0; i < threads; i++) {
+			loops[i] = new NioEventLoop(name + "-" + i);
+			loops[i].start();
+		}
+	}
+
+	public NioEventLoop next() {
+		return loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+	}
+
+	public int size() {
+		return loops.length;
+	}
+
+	public void shutdown() {
+		for(NioEventLoop loop : loops) {
+			loop.shutdown();
+		}
+	}
+}
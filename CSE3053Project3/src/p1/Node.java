@@ -3,7 +3,18 @@ package p1;
 import java.io.*;
 import java.net.*;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
 
 public class Node implements Runnable{
 	private int networkId;
@@ -11,15 +22,28 @@ public class Node implements Runnable{
 	private int nodeId;
 	private String host;
 	private int port;
+	private final Log log;
 	
 	private Socket socket;
 	private DataInputStream in;
 	private DataOutputStream out;
 	
+	// Extended addressing, fragments and format v2 are on once the switch offers them, see negotiate
+	private boolean extended = false;
+	private boolean fragments = false;
+	private boolean crc32c = false;
+	private byte[] firstFrame; // a frame that arrived instead of the switch's hello, handled before the rest
+	private static final int HELLO_WAIT_MS = 500;
+	
 	private boolean running = true;
 	private final Random rand = new Random();
 	
-	private BufferedWriter outputWriter;
+	// Received messages go to node#_#output.txt through a batching writer thread, see setOutput
+	private OutputLog output;
+	private OutputLog.Durability durability = OutputLog.Durability.ENQUEUE;
+	private OutputLog.Backend outputBackend = OutputLog.Backend.FILE; // null writes no output file
+	private int outputBatchBytes = OutputLog.DEFAULT_BATCH_BYTES;
+	private long outputLingerMicros = 0;
 	
 	private final Object ackLock = new Object();
 	private boolean waitingForAck = false;
@@ -30,12 +54,114 @@ public class Node implements Runnable{
 	private static final int MAX_RETRIES = 3;
 	private static final long ACK_TIMEOUT_MS = 500;
 	
+	// Sliding window (selective repeat), a window of 1 keeps the plain stop-and-wait path
+	public static final int MAX_WINDOW = 1024;
+	private static final int DEDUP_HISTORY = 2 * MAX_WINDOW;
+	private int windowSize = 1;
+	private int nextSeq = 0;
+	private final Map<Integer, PendingFrame> inFlight = new HashMap<>(); // by seq, guarded by ackLock
+	private final Map<Integer, Set<Integer>> delivered = new HashMap<>(); // recent seqs per source, listener thread only
+	
+	// Messages longer than one frame go out as fragments, pipelined through the window even when it is 1
+	public static final int MAX_MESSAGE = 1 << 20;
+	private static final int FRAGMENT_WINDOW = 64;
+	private int nextMessageId = 0; // sender thread only
+	// Reassembly, listener thread only. Partial messages hold at most REASSEMBLY_BUDGET bytes between them and are
+	// dropped after REASSEMBLY_TIMEOUT_MS without a new fragment, longer than a sender keeps retrying one
+	private static final int REASSEMBLY_BUDGET = 8 * MAX_MESSAGE;
+	private static final long REASSEMBLY_TIMEOUT_MS = 2 * MAX_RETRIES * ACK_TIMEOUT_MS;
+	private final Map<Long, Reassembly> partial = new HashMap<>(); // by source and message id
+	private int partialBytes = 0;
+	
+	private final Object sendLock = new Object(); // sender and listener both write to the socket
+	
+	// Multicast groups, frames to a joined group are written to the output like messages to this node but not ACKed
+	private int[] startGroups = new int[0];
+	private final Set<Integer> groups = ConcurrentHashMap.newKeySet(); // joined, read by the listener
+	
+	// Load mode sends generated frames instead of node#_#.txt
+	private LoadProfile.Generator load;
+	private LoadStats stats = new LoadStats();
+	
+	// Runtime metrics, all labelled node=<net>_<local>
+	private final Metrics.Counter retries;
+	private final Metrics.Counter timeouts;
+	private final Metrics.Counter failures;
+	private final Metrics.Counter[] acksByType = new Metrics.Counter[4]; // ok, crc, firewall, timeout, see ackCounter
+	private final Metrics.Counter reassemblyTimeouts;
+	private final Metrics.Counter reassemblyRefused;
+	
 	public Node(int networkId, int localId, String host, int port) {
 		this.networkId = networkId;
 		this.localId = localId;
-		this.nodeId = (networkId * 16) + localId;
+		this.nodeId = Address.of(networkId, localId);
 		this.host = host;
 		this.port = port;
+		this.log = Log.get(tag());
+		
+		String label = networkId + "_" + localId;
+		Metrics m = Metrics.REGISTRY;
+		this.retries = m.counter("node_retries_total", "Data frames sent again after a timeout or NACK", "node", label);
+		this.timeouts = m.counter("node_ack_timeouts_total", "Data frames whose ACK did not arrive in time", "node", label);
+		this.failures = m.counter("node_failed_total", "Data frames given up on after the last retry", "node", label);
+		this.reassemblyTimeouts = m.counter("node_reassembly_timeouts_total", "Partly received messages dropped after their fragments stopped coming", "node", label);
+		this.reassemblyRefused = m.counter("node_reassembly_refused_total", "Fragments left unACKed because reassembly was out of room", "node", label);
+		String[] types = {"ok", "crc", "firewall", "timeout"};
+		for(int i = 0; i < types.length; i++) {
+			acksByType[i] = m.counter("node_acks_total", "ACKs received by type", "node", label, "type", types[i]);
+		}
+	}
+	
+	// Counter for an ACK type byte, null for unknown types
+	private Metrics.Counter ackCounter(byte type) {
+		switch(type) {
+			case Frame.ACK_ok: return acksByType[0];
+			case Frame.ACK_CRC_ERR: return acksByType[1];
+			case Frame.ACK_FIREWALL: return acksByType[2];
+			case Frame.ACK_TIMEOUT: return acksByType[3];
+			default: return null;
+		}
+	}
+	
+	// Frames allowed in flight before waiting for ACKs, must be set before run
+	public void setWindowSize(int windowSize) {
+		if(windowSize < 1 || windowSize > MAX_WINDOW) {
+			throw new IllegalArgumentException("window must be 1 to " + MAX_WINDOW);
+		}
+		this.windowSize = windowSize;
+	}
+	
+	// How node#_#output.txt is written: when a message is ACKed (queued or on disk), through write calls or a
+	// mapped file (null for no file), and how big a batch gets and how long it waits for more. Must be set before run
+	public void setOutput(OutputLog.Durability durability, OutputLog.Backend backend, int batchBytes, long lingerMicros) {
+		if(batchBytes < 1 || lingerMicros < 0) {
+			throw new IllegalArgumentException("output batch must be positive and linger not negative");
+		}
+		this.durability = durability;
+		this.outputBackend = backend;
+		this.outputBatchBytes = batchBytes;
+		this.outputLingerMicros = lingerMicros;
+	}
+	
+	// Groups to join once connected, before anything is sent. Must be set before run
+	public void setGroups(int[] groups) {
+		for(int group : groups) {
+			if(!Address.isGroup(group)) {
+				throw new IllegalArgumentException(Address.toString(group) + " is not a group address");
+			}
+		}
+		this.startGroups = groups.clone();
+	}
+	
+	// Switches this node to load mode, results go into the shared stats, must be set before run
+	public void setLoad(LoadProfile profile, LoadStats stats) {
+		this.load = profile.generatorFor(nodeId);
+		this.stats = stats;
+		this.outputBackend = null; // generated traffic isn't worth keeping unless setOutput asks for it
+	}
+	
+	public LoadStats stats() {
+		return stats;
 	}
 	
 	@Override
@@ -43,14 +169,31 @@ public class Node implements Runnable{
 	    Thread listener = null;
 	    try {
 	        connectToSwitch();
-	        setupOutputFile();
+	        negotiate();
+	        if(!extended && !Address.isLegacy(nodeId)) {
+	            throw new IOException("switch only takes one byte ids, node " + Address.toString(nodeId) + " needs extended addressing");
+	        }
+	        if(!fragments && load != null && load.maxPayload() > Frame.MAX_DATA) {
+	            throw new IOException("switch can't carry fragments, load payloads go up to " + load.maxPayload() + " bytes");
+	        }
+	        if(outputBackend != null) {
+	            setupOutputFile();
+	        }
 
 	        // Start listener thread to receive frames
 	        listener = new Thread(this::listenForFrames, "Node-" + nodeId + "-listener");
 	        listener.start();
+	        
+	        for(int group : startGroups) {
+	            joinGroup(group);
+	        }
 
-	        // Send everything in nodeX.txt
-	        sendFromInputFile();
+	        // Send everything in nodeX.txt, or generated traffic in load mode
+	        if(load != null) {
+	            sendGenerated();
+	        } else {
+	            sendFromInputFile();
+	        }
 
 	        // Give some time for ACKs / remaining frames
 	        try {
@@ -59,6 +202,9 @@ public class Node implements Runnable{
 	            Thread.currentThread().interrupt();
 	        }
 
+	        for(int group : groups.toArray(new Integer[0])) {
+	            leaveGroup(group);
+	        }
 	        running = false;
 
 	        try {
@@ -74,15 +220,14 @@ public class Node implements Runnable{
 	                listener.join();
 	            } catch (InterruptedException e) {
 	                Thread.currentThread().interrupt();
-	                System.err.println(tag() + "Interrupted while waiting for listener to stop.");
+	                log.warn("Interrupted while waiting for listener to stop.");
 	            }
 	        }
 
 	    } catch (Exception e) {
-	        System.err.println(tag() + "Error: " + e.getMessage());
-	        e.printStackTrace();
+	        log.error("Error: " + e.getMessage(), e);
 	    } finally {
-	        cleanup();  // close outputWriter, etc.
+	        cleanup();  // close output, etc.
 	    }
 	}
 	
@@ -92,12 +237,13 @@ public class Node implements Runnable{
 		while(true) {
 			try {
 				socket = new Socket(host, port);
+				socket.setTcpNoDelay(true); // small frames waiting on an ACK must not sit in Nagle's buffer
 				in = new DataInputStream(socket.getInputStream());
-				out = new DataOutputStream(socket.getOutputStream());
-				System.out.println(tag() + "Connected to switch " + host + ":" + port);
+				out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+				log.info("Connected to switch " + host + ":" + port);
 				break;
 			} catch(IOException e) {
-				System.out.println(tag() + "Switch not ready. Will retry.");
+				log.info("Switch not ready. Will retry.");
 				try {
 					Thread.sleep(500);
 				} catch(InterruptedException ie) {
@@ -109,10 +255,36 @@ public class Node implements Runnable{
 		
 	}
 	
+	// Every current switch sends CONTROL_HELLO first. Answering it turns on extended addressing both ways, while
+	// an older switch sends nothing, so after a short wait this node keeps to one byte ids and format v1
+	private void negotiate() throws IOException {
+		socket.setSoTimeout(HELLO_WAIT_MS);
+		try {
+			byte[] buf = new byte[in.readUnsignedShort()];
+			in.readFully(buf);
+			FrameView hello = FrameView.wrap(buf);
+			if(hello.isControl() && hello.controlOp() == Frame.CONTROL_HELLO && hello.getDataLength() >= 2) {
+				int offered = buf[hello.dataOffset() + 1] & Frame.HELLO_ALL;
+				extended = (offered & Frame.HELLO_EXT_ADDR) != 0;
+				fragments = (offered & Frame.HELLO_FRAG) != 0;
+				crc32c = (offered & Frame.HELLO_CRC32C) != 0;
+				if(offered != 0) {
+					sendFrame(Frame.helloFrame(offered));
+				}
+			} else {
+				firstFrame = buf;
+			}
+		} catch(SocketTimeoutException | IllegalArgumentException e) {
+			log.debug(() -> "No hello from the switch, using one byte ids");
+		} finally {
+			socket.setSoTimeout(0);
+		}
+	}
+	
 	// Sets up output file
 	private void setupOutputFile() throws IOException {
 		String outFileName = "node" + networkId + "_" + localId + "output.txt";
-		outputWriter = new BufferedWriter(new FileWriter(outFileName));
+		output = new OutputLog(outFileName, durability, outputBackend, outputBatchBytes, outputLingerMicros, log);
 	}
 	
 	// Listens for new frames
@@ -120,17 +292,27 @@ public class Node implements Runnable{
     private void listenForFrames() {
         try {
             while(running) {
-                int len;
-                try {
-                    len = in.readUnsignedShort();
-                } catch (EOFException e) {
-                    break;
-                }
+                byte[] buf = firstFrame;
+                firstFrame = null;
+                if (buf == null) {
+                    int len;
+                    try {
+                        len = in.readUnsignedShort();
+                    } catch (EOFException e) {
+                        break;
+                    }
 
-                byte[] buf = new byte[len];
-                in.readFully(buf);
+                    buf = new byte[len];
+                    in.readFully(buf);
+                }
 
-                Frame frame = Frame.fromBytes(buf);
+                Frame frame;
+                try {
+                    frame = Frame.fromBytes(buf);
+                } catch (IllegalArgumentException e) {
+                    log.warn("Dropping malformed frame: " + e.getMessage());
+                    continue;
+                }
 
                 if (frame.isAck()) {
                     handleAck(frame);
@@ -140,8 +322,7 @@ public class Node implements Runnable{
             }
         } catch (IOException e) {
             if (running) {
-                System.err.println("Node " + nodeId + " receive error");
-                e.printStackTrace();
+                log.error("receive error", e);
             }
         }
     }
@@ -150,94 +331,164 @@ public class Node implements Runnable{
     private void sendFromInputFile() {
         String inFileName = "node" + networkId + "_" + localId + ".txt";
 
-        try (BufferedReader r = new BufferedReader(new FileReader(inFileName))) {
-            String line;
-            while ((line = r.readLine()) != null && running) {
-                line = line.trim();
-                if (line.isEmpty()) {
-                    // skip blank lines
+        // Mapped and scanned in place, see TrafficFile, the payload is copied once for the frame
+        try (TrafficFile input = new TrafficFile(inFileName)) {
+            while (running && input.next()) {
+                if (input.error() != null) {
+                    log.warn(input.error());
                     continue;
                 }
 
-                String[] parts = line.split(":", 2);
-                if (parts.length < 2) {
-                    System.err.println(tag() + "Skipping bad line (no ':'): " + line);
-                    continue;
-                }
-
-                String dstPart = parts[0].trim();
-                String message = parts[1].trim();
-
-                if (message.isEmpty()) {
-                    System.err.println(tag() + "Skipping empty message to " + dstPart);
+                int dstId = input.destination();
+                if (!extended && !Address.isLegacy(dstId)) {
+                    log.warn("Skipping line, the switch only takes one byte ids: " + input.line());
                     continue;
                 }
                 
-                String[] dstPieces = dstPart.split("_", 2);
-                if(dstPieces.length < 2) {
-                	System.err.println(tag() + "Bad format (no '_'): " + dstPart);
-                	continue;
-                }
-
-                int dstNet, dstLocal;
-                try {
-                    dstNet = Integer.parseInt(dstPieces[0]);
-                    dstLocal = Integer.parseInt(dstPieces[1]);
-                } catch (NumberFormatException e) {
-                    System.err.println(tag() + "Bad destination numbers in: " + dstPart);
+                if (Address.isGroup(dstId)) {
+                    if (input.payloadLength() > Frame.MAX_DATA) {
+                        log.warn("Skipping line, a group message goes in one frame of up to " + Frame.MAX_DATA + " bytes: " + input.line());
+                        continue;
+                    }
+                    byte[] payload = new byte[input.payloadLength()];
+                    input.payload().get(payload);
+                    sendToGroup(dstId, payload);
                     continue;
                 }
-                
-                int dstId = dstNet * 16 + dstLocal;
 
-                byte[] payload = message.getBytes(StandardCharsets.UTF_8);
-                if (payload.length == 0 || payload.length > 255) {
-                    System.err.println(tag() + "Skipping line, payload length " +
-                            payload.length + " is out of range 1..255: " + line);
+                int maxLength = fragments ? MAX_MESSAGE : Frame.MAX_DATA;
+                if (input.payloadLength() > maxLength) {
+                    log.warn("Skipping line, payload length " +
+                            input.payloadLength() + " is out of range 1.." + maxLength + ": " + input.line());
                     continue;
                 }
+                byte[] payload = new byte[input.payloadLength()];
+                input.payload().get(payload);
 
-               sendWithRetries(dstId, payload);
+                if (payload.length > Frame.MAX_DATA) {
+                    sendMessage(dstId, payload, System.nanoTime());
+                } else if (windowSize > 1) {
+                    sendWindowed(dstId, payload, System.nanoTime());
+                } else {
+                    sendWithRetries(dstId, payload, System.nanoTime());
+                }
+            }
+            
+            // Wait for the rest of the window to be ACKed or given up on
+            if (windowSize > 1) {
+                waitForWindow(0);
             }
         } catch (IOException e) {
-            System.err.println(tag() + "Send error: " + e.getMessage());
+            log.error("Send error: " + e.getMessage());
         }
     }
 	
+	// Load mode, sends generated frames on the profile's schedule until its duration is up
+	private void sendGenerated() {
+		long now = System.nanoTime();
+		long end = now + load.durationNanos();
+		load.start(now);
+		stats.sendingStarted(now);
+		
+		try {
+			while(running) {
+				now = System.nanoTime();
+				long due = load.nextSendTime(now);
+				if(due >= end) {
+					break;
+				}
+				if(due > now) {
+					LockSupport.parkNanos(due - now);
+				}
+				
+				int dst = load.nextDestination();
+				byte[] payload = load.nextPayload();
+				stats.offered();
+				if(payload.length > Frame.MAX_DATA) {
+					sendMessage(dst, payload, due);
+				} else if(windowSize > 1) {
+					sendWindowed(dst, payload, due);
+				} else {
+					sendWithRetries(dst, payload, due);
+				}
+			}
+			if(windowSize > 1) {
+				waitForWindow(0);
+			}
+		} catch(IOException e) {
+			log.error("Send error: " + e.getMessage());
+		}
+		stats.sendingFinished(System.nanoTime());
+	}
+	
 	// Sends frame over the socket and converts frame to bytes
+	// ACKs and data frames go through the simulated lossy link, control frames to the switch don't
 	private void sendFrame(Frame frame) throws IOException {
-		byte[] receivedBytes = frame.toBytes();
+		byte[] receivedBytes = (crc32c ? frame : frame.toSum8()).toBytes();
 		
 		if(frame.isAck()) {
 			if(rand.nextDouble() < 0.05) {
-				System.out.println(tag() + "Dropping ACK to " + frame.getDst());
+				log.debug(() -> "Dropping ACK to " + Address.toString(frame.getDst()));
 				return;
 			}
-		} else {
+		} else if(frame.getDst() != Frame.CONTROL_ADDR) {
 			if(rand.nextDouble() < 0.05) {
 				int idx = rand.nextInt(receivedBytes.length);
 				receivedBytes[idx] ^= 0x01;
-				System.out.println(tag() + "Corrupted DATA frame to " + frame.getDst() + " at byte index " + idx);
+				log.debug(() -> "Corrupted DATA frame to " + Address.toString(frame.getDst()) + " at byte index " + idx);
 			}
 		}
 		
-		out.writeShort(receivedBytes.length);
-		out.write(receivedBytes);
-		out.flush();
+		synchronized(sendLock) {
+			out.writeShort(receivedBytes.length);
+			out.write(receivedBytes);
+			out.flush();
+		}
 		
 		if(frame.isAck()) {
-			System.out.println(tag() + "SENT ACK to " + frame.getDst() + " type=0x" + Integer.toHexString(frame.getAckType() & 0xFF));
+			log.trace(() -> "SENT ACK to " + Address.toString(frame.getDst()) + " type=0x" + Integer.toHexString(frame.getAckType() & 0xFF));
 		} else {
-			System.out.println(tag() + "SENT DATA to " + frame.getDst() + " dataLen=" + frame.getDataLength());
+			log.trace(() -> "SENT DATA to " + Address.toString(frame.getDst()) + " dataLen=" + frame.getDataLength());
+		}
+	}
+	
+	// Sends one frame to a group. The switches copy it to every member and nobody ACKs it, so it is sent once
+	private void sendToGroup(int group, byte[] payload) throws IOException {
+		sendFrame(Frame.dataFrame(nodeId, group, payload));
+	}
+	
+	// Tells the switch to send this node the group's frames
+	public void joinGroup(int group) throws IOException {
+		if(!Address.isGroup(group)) {
+			throw new IllegalArgumentException(Address.toString(group) + " is not a group address");
+		}
+		groups.add(group);
+		sendFrame(Frame.controlFrame(Frame.CONTROL_JOIN, groupBody(group)));
+		log.info("Joined group " + Address.toString(group));
+	}
+	
+	public void leaveGroup(int group) throws IOException {
+		if(groups.remove(group)) {
+			sendFrame(Frame.controlFrame(Frame.CONTROL_LEAVE, groupBody(group)));
+			log.debug(() -> "Left group " + Address.toString(group));
 		}
 	}
 	
-	// Sends with a certain amount of retries if fails
-	private void sendWithRetries(int dst, byte[] payload) throws IOException {
+	private static byte[] groupBody(int group) {
+		int g = Address.local(group);
+		return new byte[] {(byte) (g >>> 8), (byte) g};
+	}
+	
+	// Sends with a certain amount of retries if fails, latency counts from startNanos
+	private void sendWithRetries(int dst, byte[] payload, long startNanos) throws IOException {
 		int attempt = 0;
 		
 		while(attempt < MAX_RETRIES) {
 			attempt++;
+			final int tries = attempt; // for the log lambdas
+			if(attempt > 1) {
+				retries.inc();
+			}
 			
 			Frame frame = Frame.dataFrame(nodeId, dst, payload);
 			
@@ -267,26 +518,175 @@ public class Node implements Runnable{
 				waitingForAck = false;
 				
 				if(!ackReceived) {
-					System.out.println(tag() + "Timeout waiting for ACK from " + dst + " attempt " + attempt);
+					log.debug(() -> "Timeout waiting for ACK from " + Address.toString(dst) + " attempt " + tries);
+					stats.timeout();
+					timeouts.inc();
 				} else {
 					if(lastAckType == Frame.ACK_ok) {
-						System.out.println(tag() + "Got positive ACK from " + lastAckFrom + " after " + attempt + " attempts");
+						log.trace(() -> "Got positive ACK from " + Address.toString(lastAckFrom) + " after " + tries + " attempts");
+						stats.delivered(System.nanoTime() - startNanos, tries);
 						return;
 					} else if(lastAckType == Frame.ACK_FIREWALL) {
-						System.out.println(tag() + "Got firewall ACK from " + lastAckFrom + " no resend");
+						log.debug(() -> "Got firewall ACK from " + Address.toString(lastAckFrom) + " no resend");
+						stats.firewalled(tries);
 						return;
 					} else if(lastAckType == Frame.ACK_CRC_ERR) {
-						System.out.println(tag() + "Got CRC error ACK from " + lastAckFrom + " on attempt " + attempt + " will retry");
+						stats.crcNack();
+						log.debug(() -> "Got CRC error ACK from " + Address.toString(lastAckFrom) + " on attempt " + tries + " will retry");
 					} else if(lastAckType == Frame.ACK_TIMEOUT) {
-						System.out.println(tag() + "Got Timeout ACK from " + lastAckFrom + " on attempt " + attempt + " will retry");
+						log.debug(() -> "Got Timeout ACK from " + Address.toString(lastAckFrom) + " on attempt " + tries + " will retry");
 					} else {
-						System.out.println(tag() + "Got unknown ACK type 0x" + Integer.toHexString(lastAckType & 0xFF) + " from " + lastAckFrom + ", will retry");
+						log.debug(() -> "Got unknown ACK type 0x" + Integer.toHexString(lastAckType & 0xFF) + " from " + Address.toString(lastAckFrom) + ", will retry");
 					}
 				}
 			}
 		}
 		
-		System.out.println(tag() + "Failed to deliver to " + dst + " after " + MAX_RETRIES + "attempts");
+		log.warn("Failed to deliver to " + Address.toString(dst) + " after " + MAX_RETRIES + " attempts");
+		stats.failed(MAX_RETRIES);
+		failures.inc();
+	}
+	
+	// Sends the next frame once the window has room, latency counts from startNanos
+	private void sendWindowed(int dst, byte[] payload, long startNanos) throws IOException {
+		waitForWindow(windowSize - 1);
+		sendFrame(track(dst, payload, startNanos, null, 0).frame(nodeId));
+	}
+	
+	// Splits a message longer than one frame into fragments and sends them through the window, so they go out
+	// back to back instead of one round trip each. With a window of 1 the message is finished before the next
+	private void sendMessage(int dst, byte[] message, long startNanos) throws IOException {
+		int window = Math.max(windowSize, FRAGMENT_WINDOW);
+		Message m = new Message(nextMessageId, message.length, (message.length + Frame.MAX_DATA - 1) / Frame.MAX_DATA);
+		nextMessageId = (nextMessageId + 1) & 0xFFFF;
+		
+		for(int off = 0; off < message.length && running; off += Frame.MAX_DATA) {
+			byte[] part = Arrays.copyOfRange(message, off, Math.min(message.length, off + Frame.MAX_DATA));
+			waitForWindow(window - 1);
+			sendFrame(track(dst, part, startNanos, m, off).frame(nodeId));
+		}
+		if(windowSize == 1) {
+			waitForWindow(0);
+		}
+	}
+	
+	// Puts a frame into the window under the next seq
+	private PendingFrame track(int dst, byte[] payload, long startNanos, Message message, int offset) {
+		synchronized(ackLock) {
+			PendingFrame p = new PendingFrame(nextSeq, dst, payload, startNanos);
+			nextSeq = (nextSeq + 1) & 0xFFFF;
+			p.message = message;
+			p.offset = offset;
+			p.attempts = 1;
+			p.deadline = System.currentTimeMillis() + ACK_TIMEOUT_MS;
+			inFlight.put(p.seq, p);
+			return p;
+		}
+	}
+	
+	// Records how a frame ended in the stats, a fragment's message counts once its last fragment has ended
+	private void resolved(PendingFrame p, byte result) {
+		int attempts = p.attempts;
+		if(p.message != null) {
+			if(!p.message.fragmentDone(result, p.attempts)) {
+				return;
+			}
+			result = p.message.result;
+			attempts = p.message.attempts;
+		}
+		if(result == Frame.ACK_ok) {
+			stats.delivered(System.nanoTime() - p.startNanos, attempts);
+		} else if(result == Frame.ACK_FIREWALL) {
+			stats.firewalled(attempts);
+		} else {
+			stats.failed(attempts);
+		}
+	}
+	
+	// Retransmits expired or NACKed frames until no more than maxInFlight are outstanding
+	private void waitForWindow(int maxInFlight) throws IOException {
+		while(true) {
+			List<PendingFrame> resend = new ArrayList<>();
+			
+			synchronized(ackLock) {
+				long now = System.currentTimeMillis();
+				long earliest = Long.MAX_VALUE;
+				
+				Iterator<PendingFrame> it = inFlight.values().iterator();
+				while(it.hasNext()) {
+					PendingFrame p = it.next();
+					if(p.deadline > now) {
+						earliest = Math.min(earliest, p.deadline);
+						continue;
+					}
+					if(!p.nacked) {
+						log.debug(() -> "Timeout waiting for ACK from " + Address.toString(p.dst) + " seq " + p.seq + " attempt " + p.attempts);
+						stats.timeout();
+						timeouts.inc();
+					}
+					if(p.attempts >= MAX_RETRIES) {
+						log.warn("Failed to deliver seq " + p.seq + " to " + Address.toString(p.dst) + " after " + MAX_RETRIES + " attempts");
+						resolved(p, Frame.ACK_TIMEOUT);
+						failures.inc();
+						it.remove();
+						continue;
+					}
+					p.attempts++;
+					retries.inc();
+					p.nacked = false;
+					p.deadline = now + ACK_TIMEOUT_MS;
+					earliest = Math.min(earliest, p.deadline);
+					resend.add(p);
+				}
+				
+				if(resend.isEmpty()) {
+					if(inFlight.size() <= maxInFlight || !running) {
+						return;
+					}
+					try {
+						ackLock.wait(Math.max(1, earliest - now));
+					} catch(InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+					continue;
+				}
+			}
+			
+			for(PendingFrame p : resend) {
+				sendFrame(p.frame(nodeId));
+			}
+		}
+	}
+	
+	// Matches a sequenced ACK to its frame in the window
+	private void handleWindowedAck(Frame frame) {
+		synchronized(ackLock) {
+			PendingFrame p = inFlight.get(frame.getSeq());
+			if(p == null || p.dst != frame.getSrc()) {
+				return; // late or duplicate ACK
+			}
+			
+			byte type = frame.getAckType();
+			if(type == Frame.ACK_ok) {
+				log.trace(() -> "Got positive ACK from " + Address.toString(frame.getSrc()) + " for seq " + p.seq + " after " + p.attempts + " attempts");
+				inFlight.remove(p.seq);
+				resolved(p, Frame.ACK_ok);
+			} else if(type == Frame.ACK_FIREWALL) {
+				log.debug(() -> "Got firewall ACK from " + Address.toString(frame.getSrc()) + " for seq " + p.seq + " no resend");
+				inFlight.remove(p.seq);
+				resolved(p, Frame.ACK_FIREWALL);
+			} else {
+				if(type == Frame.ACK_CRC_ERR) {
+					stats.crcNack();
+				}
+				// CRC error, timeout or unknown, resend right away
+				log.debug(() -> "Got ACK type 0x" + Integer.toHexString(type & 0xFF) + " from " + Address.toString(frame.getSrc()) + " for seq " + p.seq + " on attempt " + p.attempts + " will retry");
+				p.nacked = true;
+				p.deadline = 0;
+			}
+			ackLock.notifyAll();
+		}
 	}
 	
 	// Handles acknowledgement
@@ -294,7 +694,16 @@ public class Node implements Runnable{
 		if(frame.getDst() != nodeId) {
 			return;
 		}
-		System.out.println("Node " + nodeId + " RECIEVED ACK from " + frame.getSrc() + "type-0x" + Integer.toHexString(frame.getAckType() & 0xFF));
+		log.trace(() -> "RECIEVED ACK from " + Address.toString(frame.getSrc()) + "type-0x" + Integer.toHexString(frame.getAckType() & 0xFF));
+		Metrics.Counter acks = ackCounter(frame.getAckType());
+		if(acks != null) {
+			acks.inc();
+		}
+		
+		if(frame.hasSeq()) {
+			handleWindowedAck(frame);
+			return;
+		}
 		
 		synchronized(ackLock) {
 			if(waitingForAck) {
@@ -308,38 +717,180 @@ public class Node implements Runnable{
 	
 	private void handleDataFrame(Frame frame) throws IOException  {
 		if(frame.getDst() != nodeId) {
+			if(groups.contains(frame.getDst())) {
+				handleGroupFrame(frame);
+			}
 			return;
 		}
 		
 		if(!frame.isCrcValid()) {
-			System.err.println(tag() + "CRC error on frame from " + frame.getSrc());
-			Frame noAck = Frame.ackFrame(nodeId, frame.getSrc(), Frame.ACK_CRC_ERR);
+			log.debug(() -> "CRC error on frame from " + Address.toString(frame.getSrc()));
+			Frame noAck = Frame.ackFrame(nodeId, frame.getSrc(), Frame.ACK_CRC_ERR, frame.getSeq());
 			sendFrame(noAck);
 			return;
 		}
 		
-		String message = new String(frame.getData(), StandardCharsets.UTF_8);
+		// A resend whose ACK got lost, ACK it again without writing it twice
+		if(frame.hasSeq() && wasDelivered(frame.getSrc(), frame.getSeq())) {
+			sendFrame(Frame.ackFrame(nodeId, frame.getSrc(), Frame.ACK_ok, frame.getSeq()));
+			return;
+		}
 		
+		if(frame.isFragment()) {
+			handleFragment(frame);
+			return;
+		}
+		if(frame.hasSeq()) {
+			markDelivered(frame.getSrc(), frame.getSeq());
+		}
+		
+		deliver(frame.getSrc(), frame.getData(), Frame.ackFrame(nodeId, frame.getSrc(), Frame.ACK_ok, frame.getSeq()));
+	}
+	
+	// Group frames are best effort like the fan-out that brings them, a corrupted one is dropped rather than NACKed
+	// and none is ACKed, the sender never waits on them
+	private void handleGroupFrame(Frame frame) throws IOException {
+		if(!frame.isCrcValid() || frame.isFragment()) {
+			log.debug(() -> "Dropping " + (frame.isFragment() ? "fragment" : "corrupted frame") + " for group " + Address.toString(frame.getDst()) + " from " + Address.toString(frame.getSrc()));
+			return;
+		}
+		deliver(frame.getSrc(), frame.getData(), null);
+	}
+	
+	// Queues a received message for node#output.txt and ACKs it, right away or once the writer has it on disk.
+	// A null ack is for a group frame
+	private void deliver(int srcId, byte[] data, Frame ack) throws IOException {
+		int srcNet = Address.net(srcId);
+		int srcLocal = Address.local(srcId);
+		
+		log.debug(() -> "RECIEVED from " + srcNet + "_" + srcLocal + "msg=\"" + new String(data, StandardCharsets.UTF_8) + "\"");
+		
+		if(output == null) {
+			if(ack != null) {
+				sendFrame(ack);
+			}
+			return;
+		}
+		byte[] prefix = (srcNet + "_" + srcLocal + ": ").getBytes(StandardCharsets.UTF_8);
+		byte[] line = Arrays.copyOf(prefix, prefix.length + data.length + LINE_END.length);
+		System.arraycopy(data, 0, line, prefix.length, data.length);
+		System.arraycopy(LINE_END, 0, line, prefix.length + data.length, LINE_END.length);
+		if(ack == null) {
+			output.append(line, null);
+		} else if(output.durability() == OutputLog.Durability.FSYNC) {
+			output.append(line, () -> sendCommitted(ack));
+		} else {
+			output.append(line, null);
+			sendFrame(ack);
+		}
+	}
+	
+	private static final byte[] LINE_END = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+	
+	// Sends the ACK of a message the output writer just forced to disk
+	private void sendCommitted(Frame ack) {
+		try {
+			sendFrame(ack);
+		} catch(IOException e) {
+			log.debug(() -> "Could not send ACK after writing: " + e.getMessage());
+		}
+	}
+	
+	// Copies a fragment into its message and ACKs it, the message is delivered once every fragment is in.
+	// A fragment that would go over the reassembly budget is left unACKed, so the sender tries it again after its timeout
+	private void handleFragment(Frame frame) throws IOException {
 		int srcId = frame.getSrc();
-		int srcNet = srcId / 16;
-		int srcLocal = srcId % 16;
+		int total = frame.getMessageLength();
+		int offset = frame.getFragmentOffset();
+		int len = frame.getDataLength();
+		if(total > MAX_MESSAGE || offset % Frame.MAX_DATA != 0 || offset + len > total || (offset + len < total && len != Frame.MAX_DATA)) {
+			log.warn("Dropping bad fragment from " + Address.toString(srcId) + ": " + frame);
+			return;
+		}
 		
-		outputWriter.write(srcNet + "_" + srcLocal + ": " + message);
-		outputWriter.newLine();
-		outputWriter.flush();
+		expireReassemblies();
+		long key = ((long) srcId << 16) | frame.getMessageId();
+		Reassembly r = partial.get(key);
+		if(r != null && r.data.length != total) {
+			log.warn("Dropping fragment from " + Address.toString(srcId) + " that doesn't match its message: " + frame);
+			return;
+		}
+		if(r == null) {
+			if(partialBytes + total > REASSEMBLY_BUDGET) {
+				reassemblyRefused.inc();
+				log.debug(() -> "No room to reassemble message " + frame.getMessageId() + " from " + Address.toString(srcId));
+				return;
+			}
+			r = new Reassembly(total);
+			partial.put(key, r);
+			partialBytes += total;
+		}
 		
-		System.out.println(tag() + " RECIEVED from " + srcNet + "_" + srcLocal + "msg=\"" + message + "\"");
+		markDelivered(srcId, frame.getSeq());
+		int index = offset / Frame.MAX_DATA;
+		if(!r.received.get(index)) {
+			System.arraycopy(frame.getData(), 0, r.data, offset, len);
+			r.received.set(index);
+			r.missing--;
+		}
+		r.deadline = System.currentTimeMillis() + REASSEMBLY_TIMEOUT_MS;
 		
-		Frame ack = Frame.ackFrame(nodeId, frame.getSrc(), Frame.ACK_ok);
-		sendFrame(ack);
+		if(r.missing == 0) {
+			partial.remove(key);
+			partialBytes -= total;
+			deliver(srcId, r.data, Frame.ackFrame(nodeId, srcId, Frame.ACK_ok, frame.getSeq()));
+			return;
+		}
+		sendFrame(Frame.ackFrame(nodeId, srcId, Frame.ACK_ok, frame.getSeq()));
+	}
+	
+	// Drops partial messages whose fragments stopped coming
+	private void expireReassemblies() {
+		long now = System.currentTimeMillis();
+		Iterator<Map.Entry<Long, Reassembly>> it = partial.entrySet().iterator();
+		while(it.hasNext()) {
+			Map.Entry<Long, Reassembly> e = it.next();
+			Reassembly r = e.getValue();
+			if(r.deadline <= now) {
+				it.remove();
+				partialBytes -= r.data.length;
+				reassemblyTimeouts.inc();
+				log.warn("Gave up on message " + (e.getKey() & 0xFFFF) + " from " + Address.toString((int) (e.getKey() >>> 16)) + ", " + r.missing + " fragments never came");
+			}
+		}
+	}
+	
+	// True if a recent seq from a source was already delivered
+	private boolean wasDelivered(int srcId, int seq) {
+		Set<Integer> seen = delivered.get(srcId);
+		return seen != null && seen.contains(seq);
+	}
+	
+	// Remembers a recent seq from a source, false if it was already delivered
+	private boolean markDelivered(int srcId, int seq) {
+		Set<Integer> seen = delivered.computeIfAbsent(srcId, k -> new LinkedHashSet<>());
+		if(!seen.add(seq)) {
+			return false;
+		}
+		if(seen.size() > DEDUP_HISTORY) {
+			Iterator<Integer> it = seen.iterator();
+			it.next();
+			it.remove();
+		}
+		return true;
 	}
 	
 	// Closes the input/output and socket connection
 	private void cleanup() {
 		try {
-			if(outputWriter != null) outputWriter.close();
+			if(output != null) {
+				output.close();
+				if(output.linesWritten() > 0) {
+					log.info("Output " + output.stats());
+				}
+			}
 			if(socket != null) socket.close();
-			System.out.println("Node " + nodeId + " shutdown complete ");
+			log.info("shutdown complete ");
 		} catch(IOException ignored) {
 			
 		}
@@ -349,4 +900,69 @@ public class Node implements Runnable{
 	private String tag() {
 		return "[Node" + networkId + "_" + localId + "]";
 	}
+	
+	// A frame in the send window waiting for its ACK
+	private static class PendingFrame {
+		private final int seq;
+		private final int dst;
+		private final byte[] payload;
+		private final long startNanos;
+		private int attempts;
+		private long deadline;
+		private boolean nacked;
+		private Message message; // set for a fragment
+		private int offset;
+		
+		PendingFrame(int seq, int dst, byte[] payload, long startNanos) {
+			this.seq = seq;
+			this.dst = dst;
+			this.payload = payload;
+			this.startNanos = startNanos;
+		}
+		
+		Frame frame(int src) {
+			if(message == null) {
+				return Frame.dataFrame(src, dst, payload, seq);
+			}
+			return Frame.fragmentFrame(src, dst, payload, seq, message.id, offset, message.length);
+		}
+	}
+	
+	// A message being sent as fragments, its outcome is the worst of theirs
+	private static class Message {
+		private final int id;
+		private final int length;
+		private int remaining; // fragments not yet ACKed or given up on, guarded by ackLock
+		private byte result = Frame.ACK_ok;
+		private int attempts;
+		
+		Message(int id, int length, int fragments) {
+			this.id = id;
+			this.length = length;
+			this.remaining = fragments;
+		}
+		
+		// Counts one fragment as ended, true once it was the last
+		boolean fragmentDone(byte fragmentResult, int fragmentAttempts) {
+			if(fragmentResult == Frame.ACK_TIMEOUT || result == Frame.ACK_ok) {
+				result = fragmentResult;
+			}
+			attempts = Math.max(attempts, fragmentAttempts);
+			return --remaining == 0;
+		}
+	}
+	
+	// A message being put back together from its fragments
+	private static class Reassembly {
+		private final byte[] data;
+		private final BitSet received;
+		private int missing;
+		private long deadline;
+		
+		Reassembly(int length) {
+			this.data = new byte[length];
+			this.missing = (length + Frame.MAX_DATA - 1) / Frame.MAX_DATA;
+			this.received = new BitSet(missing);
+		}
+	}
 }
@@ -0,0 +1,269 @@
+package p1;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// A node's node#_#output.txt, appended to by one daemon thread so the listener never waits on a write call
+// The listener queues each message and goes back to reading, the writer takes everything queued in one go and
+// writes it as one batch (group commit), lingering up to lingerMicros for more while the batch is under maxBatchBytes
+// With Durability.FSYNC every batch is forced to disk before the writer runs the ACKs queued with its messages
+public class OutputLog {
+	public static final int CAPACITY = 4096;
+	public static final int DEFAULT_BATCH_BYTES = 64 * 1024;
+	static final int MAP_REGION = 16 << 20; // mmap backend maps the file this much at a time
+
+	// When a message's ACK may go out
+	public enum Durability {
+		ENQUEUE, // once it is queued, a crash can lose the last batch
+		FSYNC; // once the batch holding it is on disk
+
+		public static Durability parse(String value) {
+			return valueOf(value.trim().toUpperCase());
+		}
+	}
+
+	// How batches reach the file
+	public enum Backend {
+		FILE, // a write call per batch
+		MMAP; // copied into a mapped region of the file, which is cut back to its length on close
+
+		public static Backend parse(String value) {
+			return valueOf(value.trim().toUpperCase());
+		}
+	}
+
+	private final byte[][] lines = new byte[CAPACITY][];
+	private final Runnable[] commits = new Runnable[CAPACITY]; // ACKs to run once the line is durable, FSYNC only
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	private int head = 0;
+	private int count = 0;
+	private int queuedBytes = 0;
+	private boolean closed = false;
+
+	private final Durability durability;
+	private final Backend backend;
+	private final int maxBatchBytes;
+	private final long lingerNanos;
+	private final FileChannel channel;
+	private MappedByteBuffer region; // mmap backend only, the part of the file being filled
+	private long regionStart;
+	private int forcedTo; // region bytes already forced, FSYNC only
+	private final Thread writer;
+	private final Log log;
+
+	private volatile long batchesWritten = 0;
+	private volatile long linesWritten = 0;
+
+	public OutputLog(String fileName, Durability durability, Backend backend, int maxBatchBytes, long lingerMicros, Log log) throws IOException {
+		if(maxBatchBytes < 1 || lingerMicros < 0) {
+			throw new IllegalArgumentException("batch size must be positive and linger not negative");
+		}
+		this.durability = durability;
+		this.backend = backend;
+		this.maxBatchBytes = maxBatchBytes;
+		this.lingerNanos = TimeUnit.MICROSECONDS.toNanos(lingerMicros);
+		this.log = log;
+		this.channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		this.writer = new Thread(this::drainLoop, fileName + "-writer");
+		writer.setDaemon(true);
+		writer.start();
+		// Lines still queued when the JVM exits without the node closing its output are written out too
+		Runtime.getRuntime().addShutdownHook(new Thread(this::close, fileName + "-flush"));
+	}
+
+	public Durability durability() {
+		return durability;
+	}
+
+	// Queues a line for the file, waiting while the ring is full. commit runs on the writer thread once the line
+	// is on disk, pass null under ENQUEUE. False once closed
+	public boolean append(byte[] line, Runnable commit) {
+		lock.lock();
+		try {
+			while(count == CAPACITY && !closed) {
+				notFull.awaitUninterruptibly();
+			}
+			if(closed) {
+				return false;
+			}
+			int slot = (head + count) % CAPACITY;
+			lines[slot] = line;
+			commits[slot] = commit;
+			count++;
+			queuedBytes += line.length;
+			if(count == 1 || queuedBytes >= maxBatchBytes) {
+				notEmpty.signal();
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Takes everything queued, writes it as one batch, forces it under FSYNC and then runs its commits
+	private void drainLoop() {
+		byte[][] batchLines = new byte[CAPACITY][];
+		Runnable[] batchCommits = new Runnable[CAPACITY];
+		ByteBuffer batch = ByteBuffer.allocateDirect(maxBatchBytes);
+
+		while(true) {
+			int n;
+			lock.lock();
+			try {
+				while(count == 0 && !closed) {
+					notEmpty.awaitUninterruptibly();
+				}
+				if(count == 0) {
+					return; // closed and drained
+				}
+				// A small batch waits out the linger for more, a full one or a close cuts it short
+				long wait = lingerNanos;
+				while(queuedBytes < maxBatchBytes && count < CAPACITY && !closed && wait > 0) {
+					wait = notEmpty.awaitNanos(wait);
+				}
+				n = count;
+				for(int i = 0; i < n; i++) {
+					int slot = (head + i) % CAPACITY;
+					batchLines[i] = lines[slot];
+					batchCommits[i] = commits[slot];
+					lines[slot] = null;
+					commits[slot] = null;
+				}
+				head = (head + n) % CAPACITY;
+				count = 0;
+				queuedBytes = 0;
+				notFull.signalAll();
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} finally {
+				lock.unlock();
+			}
+
+			try {
+				for(int i = 0; i < n; i++) {
+					byte[] line = batchLines[i];
+					if(batch.remaining() < line.length) {
+						write(batch.flip());
+						batch.clear();
+					}
+					if(line.length > batch.capacity()) {
+						write(ByteBuffer.wrap(line)); // longer than a whole batch, goes out on its own
+					} else {
+						batch.put(line);
+					}
+					batchLines[i] = null;
+				}
+				write(batch.flip());
+				batch.clear();
+				if(durability == Durability.FSYNC) {
+					force();
+				}
+				batchesWritten++;
+				linesWritten += n;
+			} catch(IOException e) {
+				log.error("Output write failed, " + n + " messages not written: " + e.getMessage());
+				batch.clear();
+				for(int i = 0; i < n; i++) {
+					batchLines[i] = null;
+					batchCommits[i] = null; // their ACKs are not sent
+				}
+				continue;
+			}
+			for(int i = 0; i < n; i++) {
+				if(batchCommits[i] != null) {
+					batchCommits[i].run();
+					batchCommits[i] = null;
+				}
+			}
+		}
+	}
+
+	private void write(ByteBuffer buf) throws IOException {
+		if(backend == Backend.FILE) {
+			while(buf.hasRemaining()) {
+				channel.write(buf);
+			}
+			return;
+		}
+		while(buf.hasRemaining()) {
+			if(region == null || !region.hasRemaining()) {
+				mapNext();
+			}
+			int n = Math.min(buf.remaining(), region.remaining());
+			region.put(region.position(), buf, buf.position(), n);
+			region.position(region.position() + n);
+			buf.position(buf.position() + n);
+		}
+	}
+
+	// Forces the full region before moving on, FSYNC only forces the one being filled
+	private void mapNext() throws IOException {
+		if(region != null) {
+			if(durability == Durability.FSYNC) {
+				region.force();
+			}
+			regionStart += region.capacity();
+			forcedTo = 0;
+		}
+		region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart, MAP_REGION);
+	}
+
+	private void force() throws IOException {
+		if(backend == Backend.FILE) {
+			channel.force(false);
+		} else if(region != null) {
+			region.force(forcedTo, region.position() - forcedTo);
+			forcedTo = region.position();
+		}
+	}
+
+	// Stops taking lines, waits for the queued ones to be written and closes the file
+	public void close() {
+		lock.lock();
+		try {
+			if(closed) {
+				return;
+			}
+			closed = true;
+			notEmpty.signalAll();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		try {
+			writer.join(2000);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			if(region != null) {
+				region.force();
+				channel.truncate(regionStart + region.position()); // the mapping grew the file to a whole region
+			}
+			channel.close();
+		} catch(IOException e) {
+			log.warn("Could not close output file: " + e.getMessage());
+		}
+	}
+
+	public long linesWritten() {
+		return linesWritten;
+	}
+
+	// Average lines per batch so far, 1.0 means no grouping happened
+	public String stats() {
+		long batches = batchesWritten;
+		return "lines=" + linesWritten + " batches=" + batches + " linesPerBatch=" + (batches == 0 ? "0" : String.format("%.1f", (double) linesWritten / batches));
+	}
+}
@@ -0,0 +1,126 @@
+package p1;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Which CCS shard owns which networks, loaded once from a file every CCS and CAS of the cluster reads
+// One shard per line: <id> <host>:<port> <nets>, nets is a comma separated list of <net> or <a>-<b>, # starts a comment
+// Each shard's shadow CCS listens on port + 1, like the single CCS's does
+public final class ShardMap {
+	public static final int MAX_SHARD = 0xFFFF;
+
+	private final List<Shard> shards;
+	private final char[] owner; // shard id by network, 0 for a network no shard owns
+
+	private ShardMap(List<Shard> shards, char[] owner) {
+		this.shards = Collections.unmodifiableList(shards);
+		this.owner = owner;
+	}
+
+	public static ShardMap load(Path file) throws IOException {
+		return parse(Files.readString(file));
+	}
+
+	// Unlike firewall rules a bad line is fatal, a shard left out would silently lose its networks
+	public static ShardMap parse(String source) {
+		List<Shard> shards = new ArrayList<>();
+		char[] owner = new char[Address.MAX_NET + 1];
+		String[] lines = source.split("\r?\n");
+		for(int i = 0; i < lines.length; i++) {
+			String line = lines[i].trim();
+			if(line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			try {
+				String[] parts = line.split("\\s+");
+				if(parts.length != 3) {
+					throw new IllegalArgumentException("need <id> <host>:<port> <nets>");
+				}
+				int id = ConfigText.number(parts[0], 1, MAX_SHARD);
+				int colon = parts[1].lastIndexOf(':');
+				if(colon < 1) {
+					throw new IllegalArgumentException("need <host>:<port>");
+				}
+				Shard shard = new Shard(id, parts[1].substring(0, colon), ConfigText.number(parts[1].substring(colon + 1), 1, 65534));
+				for(Shard other : shards) {
+					if(other.id == id) {
+						throw new IllegalArgumentException("shard " + id + " is listed twice");
+					}
+				}
+				for(String nets : parts[2].split(",")) {
+					int[] range = ConfigText.range(nets, 1, Address.MAX_NET);
+					for(int net = range[0]; net <= range[1]; net++) {
+						if(owner[net] != 0) {
+							throw new IllegalArgumentException("network " + net + " already belongs to shard " + (int) owner[net]);
+						}
+						owner[net] = (char) id;
+					}
+				}
+				shards.add(shard);
+			} catch(IllegalArgumentException e) {
+				throw new IllegalArgumentException("line " + (i + 1) + " (" + e.getMessage() + "): " + line);
+			}
+		}
+		if(shards.isEmpty()) {
+			throw new IllegalArgumentException("no shards");
+		}
+		return new ShardMap(shards, owner);
+	}
+
+	// Id of the shard owning net, 0 if none does
+	public int ownerOf(int net) {
+		return owner[net];
+	}
+
+	// Shard owning net, null if none does
+	public Shard shardOf(int net) {
+		return shard(owner[net]);
+	}
+
+	public Shard shard(int id) {
+		for(Shard s : shards) {
+			if(s.id == id) {
+				return s;
+			}
+		}
+		return null;
+	}
+
+	public List<Shard> shards() {
+		return shards;
+	}
+
+	public static final class Shard {
+		private final int id;
+		private final String host;
+		private final int port;
+
+		private Shard(int id, String host, int port) {
+			this.id = id;
+			this.host = host;
+			this.port = port;
+		}
+
+		public int id() {
+			return id;
+		}
+
+		public String host() {
+			return host;
+		}
+
+		// Primary CCS port, the shadow is on port + 1
+		public int port() {
+			return port;
+		}
+
+		@Override
+		public String toString() {
+			return id + "@" + host + ":" + port;
+		}
+	}
+}
@@ -0,0 +1,207 @@
+package p1;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+// A node#_#.txt traffic file read line by line from a memory-mapped window, "<net>_<id>: <message>" per line
+// The window slides over the file WINDOW bytes at a time, so a file of any size takes the same memory, and lines
+// are scanned for ':' and '_' byte by byte, so no String is made for a good line. Same rules as the old
+// readLine, trim and split parsing: blank lines are skipped, both parts are trimmed, the message is sent as its bytes
+public final class TrafficFile implements Closeable {
+	static final int WINDOW = 16 << 20;
+	static final int MAX_LINE = Node.MAX_MESSAGE + 64; // longest line that can hold a message, longer ones are skipped
+
+	private final FileChannel channel;
+	private final long size;
+	private MappedByteBuffer window;
+	private long windowStart;
+	private long pos; // file offset of the next line
+
+	// The line next() stopped at, offsets into window
+	private int lineStart;
+	private int lineEnd;
+	private int payloadStart;
+	private int payloadEnd;
+	private int dst;
+	private String error;
+
+	public TrafficFile(String fileName) throws IOException {
+		this.channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+		this.size = channel.size();
+	}
+
+	// Moves to the next line that isn't blank, false at the end of the file. A line that can't be sent still
+	// counts, error() then says why
+	public boolean next() throws IOException {
+		while(pos < size) {
+			int end = mapLine();
+			if(end < 0) {
+				lineStart = lineEnd = 0;
+				error = "Skipping line longer than " + MAX_LINE + " bytes";
+				return true;
+			}
+			pos = windowStart + end + 1;
+			int from = trimStart(lineStart, end);
+			int to = trimEnd(from, end);
+			if(from == to) {
+				continue; // skip blank lines
+			}
+			lineStart = from;
+			lineEnd = to;
+			parse();
+			return true;
+		}
+		return false;
+	}
+
+	// Maps the window so the line at pos lies in it, sets lineStart and returns the offset of its end (the '\n' or
+	// the end of the file). -1 for a line over MAX_LINE, which is skipped along with the rest of it
+	private int mapLine() throws IOException {
+		long windowEnd = window == null ? 0 : windowStart + window.limit();
+		if(window == null || pos < windowStart || pos >= windowEnd || (pos + MAX_LINE > windowEnd && windowEnd < size)) {
+			windowStart = pos;
+			window = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(WINDOW, size - pos));
+		}
+		lineStart = (int) (pos - windowStart);
+		int limit = (int) Math.min(window.limit(), lineStart + (long) MAX_LINE);
+		for(int i = lineStart; i < limit; i++) {
+			if(window.get(i) == '\n') {
+				return i;
+			}
+		}
+		if(limit == window.limit() && windowStart + limit == size) {
+			return limit; // last line without a newline
+		}
+		skipLongLine(windowStart + limit);
+		return -1;
+	}
+
+	// Moves pos past the newline that ends an overlong line, or to the end of the file
+	private void skipLongLine(long from) throws IOException {
+		pos = from;
+		while(pos < size) {
+			windowStart = pos;
+			window = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(WINDOW, size - pos));
+			for(int i = 0; i < window.limit(); i++) {
+				if(window.get(i) == '\n') {
+					pos = windowStart + i + 1;
+					return;
+				}
+			}
+			pos = windowStart + window.limit();
+		}
+	}
+
+	// Splits the trimmed line at its first ':' and the destination at its first '_'
+	private void parse() {
+		error = null;
+		int colon = indexOf(':', lineStart, lineEnd);
+		if(colon < 0) {
+			error = "Skipping bad line (no ':'): " + text(lineStart, lineEnd);
+			return;
+		}
+		int dstEnd = trimEnd(lineStart, colon);
+		payloadStart = trimStart(colon + 1, lineEnd);
+		payloadEnd = lineEnd;
+		if(payloadStart == payloadEnd) {
+			error = "Skipping empty message to " + text(lineStart, dstEnd);
+			return;
+		}
+		int underscore = indexOf('_', lineStart, dstEnd);
+		if(underscore < 0) {
+			error = "Bad format (no '_'): " + text(lineStart, dstEnd);
+			return;
+		}
+		int net = number(lineStart, underscore);
+		int local = number(underscore + 1, dstEnd);
+		if(net < 0 || local < 0) {
+			error = "Bad destination numbers in: " + text(lineStart, dstEnd);
+			return;
+		}
+		dst = Address.of(net, local);
+	}
+
+	// Decimal digits from..to, -1 if there are none, anything else is in there or the number is past 16 bits
+	private int number(int from, int to) {
+		if(from == to) {
+			return -1;
+		}
+		int n = 0;
+		for(int i = from; i < to; i++) {
+			int d = window.get(i) - '0';
+			if(d < 0 || d > 9) {
+				return -1;
+			}
+			n = n * 10 + d;
+			if(n > Address.MAX_NET) {
+				return -1;
+			}
+		}
+		return n;
+	}
+
+	private int indexOf(char c, int from, int to) {
+		for(int i = from; i < to; i++) {
+			if(window.get(i) == c) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	// String.trim drops chars up to ' ', in UTF-8 those are all single bytes
+	private int trimStart(int from, int to) {
+		while(from < to && (window.get(from) & 0xFF) <= ' ') {
+			from++;
+		}
+		return from;
+	}
+
+	private int trimEnd(int from, int to) {
+		while(to > from && (window.get(to - 1) & 0xFF) <= ' ') {
+			to--;
+		}
+		return to;
+	}
+
+	private String text(int from, int to) {
+		byte[] bytes = new byte[to - from];
+		window.get(from, bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	// Why the current line can't be sent, for the log, null when it can
+	public String error() {
+		return error;
+	}
+
+	public int destination() {
+		return dst;
+	}
+
+	public int payloadLength() {
+		return payloadEnd - payloadStart;
+	}
+
+	// The message bytes of the current line, a view into the mapped file valid until the next call to next()
+	public ByteBuffer payload() {
+		return window.slice(payloadStart, payloadEnd - payloadStart);
+	}
+
+	// The current line as text, only made for log messages
+	public String line() {
+		return text(lineStart, lineEnd);
+	}
+
+	@Override
+	public void close() throws IOException {
+		window = null;
+		channel.close();
+	}
+}